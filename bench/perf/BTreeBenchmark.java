@@ -0,0 +1,180 @@
+package perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BTreeBenchmark {
+	private static final int BATCH = 1000;	//keys per call of the batched benchmarks
+	
+	@State(Scope.Benchmark)
+	public static class Empty {
+		//a new tree for every iteration, filled by the benchmark itself
+		@Param({"120", "1024", "4096"})
+		public int bSize;
+		
+		@Param({"10000", "100000"})
+		public int size;
+		
+		public int sequential[];
+		public int random[];
+		public Object tree;
+		private File dir;
+		
+		@Setup(Level.Trial)
+		public void data() {
+			sequential = BenchData.sequentialKeys(size);
+			random = BenchData.randomKeys(size, BenchData.SEED);
+		}
+		
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			dir = BenchData.tempDir();
+			tree = Engine.newTree(new File(dir, "tree").getPath(), bSize);
+		}
+		
+		@TearDown(Level.Iteration)
+		public void close() {
+			Engine.treeClose(tree);
+			BenchData.delete(dir);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Loaded {
+		//a tree built by inserting every key in random order, shared by the read benchmarks
+		@Param({"120", "1024", "4096"})
+		public int bSize;
+		
+		@Param({"10000", "100000"})
+		public int size;
+		
+		public int probes[];
+		public int next;
+		public Object tree;
+		private File dir;
+		
+		@Setup(Level.Trial)
+		public void open() throws IOException {
+			dir = BenchData.tempDir();
+			tree = Engine.newTree(new File(dir, "tree").getPath(), bSize);
+			for(int key : BenchData.randomKeys(size, BenchData.SEED)) Engine.treeInsert(tree, key, key);
+			probes = BenchData.randomKeys(size, BenchData.SEED + 1);
+		}
+		
+		public int nextProbe() {
+			int key = probes[next];
+			next = next + 1 == probes.length ? 0 : next + 1;
+			return key;
+		}
+		
+		@TearDown(Level.Trial)
+		public void close() {
+			Engine.treeClose(tree);
+			BenchData.delete(dir);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Ranged extends Loaded {
+		//fraction of all keys covered by each range
+		@Param({"0.0001", "0.01", "0.1"})
+		public double selectivity;
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Full extends Empty {
+		//a new full tree for every iteration, emptied by the benchmark itself
+		@Setup(Level.Iteration)
+		public void fill() {
+			for(int key : sequential) Engine.treeInsert(tree, key, key);
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insertSequential(Empty s) {
+		for(int key : s.sequential) Engine.treeInsert(s.tree, key, key);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insertRandom(Empty s) {
+		for(int key : s.random) Engine.treeInsert(s.tree, key, key);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insertRandomBatched(Empty s) {
+		//the random keys in batches of BATCH, as ingest delivers them
+		for(int from = 0; from < s.random.length; from += BATCH) {
+			int keys[] = Arrays.copyOfRange(s.random, from, Math.min(from + BATCH, s.random.length));
+			long addrs[] = new long[keys.length];
+			for(int i = 0; i < keys.length; i++) addrs[i] = keys[i];
+			Engine.treeInsertAll(s.tree, keys, addrs);
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void removeRandom(Full s, Blackhole bh) {
+		for(int key : s.random) bh.consume(Engine.treeRemove(s.tree, key));
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public long search(Loaded s) {
+		return Engine.treeSearch(s.tree, s.nextProbe());
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long[] searchBatched(Loaded s) {
+		//BATCH probes looked up together, compare against BATCH times search
+		int keys[] = new int[BATCH];
+		for(int i = 0; i < BATCH; i++) keys[i] = s.nextProbe();
+		return Engine.treeSearchAll(s.tree, keys);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int rangeSearch(Ranged s) {
+		int width = Math.max(1, (int) (s.size*s.selectivity));
+		int low = s.nextProbe();
+		return Engine.treeRangeSearch(s.tree, low, low + width - 1).size();
+	}
+}
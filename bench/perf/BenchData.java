@@ -0,0 +1,60 @@
+package perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+
+public class BenchData {
+	//fixed seed so every run and every machine benchmarks the same keys in the same order
+	public static final long SEED = 0x5EEDL;
+	
+	public static int[] sequentialKeys(int n) {
+		int keys[] = new int[n];
+		for(int i = 0; i < n; i++) keys[i] = i + 1;
+		return keys;
+	}
+	
+	public static int[] randomKeys(int n, long seed) {
+		//the keys 1..n in a shuffled order
+		int keys[] = sequentialKeys(n);
+		SplittableRandom random = new SplittableRandom(seed);
+		for(int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = keys[i];
+			keys[i] = keys[j];
+			keys[j] = temp;
+		}
+		return keys;
+	}
+	
+	public static int[] fieldLengths(String spec) {
+		//"16,16" -> {16, 16}
+		String parts[] = spec.split(",");
+		int lengths[] = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) lengths[i] = Integer.parseInt(parts[i].trim());
+		return lengths;
+	}
+	
+	public static char[][] fields(int lengths[], int key) {
+		//fills every field with characters derived from the key
+		char fields[][] = new char[lengths.length][];
+		for(int i = 0; i < lengths.length; i++) {
+			fields[i] = new char[lengths[i]];
+			for(int j = 0; j < lengths[i]; j++) fields[i][j] = (char) ('a' + (key + i + j) % 26);
+		}
+		return fields;
+	}
+	
+	public static File tempDir() throws IOException {
+		return Files.createTempDirectory("btree-bench").toFile();
+	}
+	
+	public static void delete(File dir) {
+		File files[] = dir.listFiles();
+		if(files != null) {
+			for(File file : files) file.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,107 @@
+package perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//the same keys and block sizes as BTreeBenchmark, so the compressed pages can be compared against BTree's fixed slots
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ByteKeyBTreeBenchmark {
+	@State(Scope.Benchmark)
+	public static class Empty {
+		//a new tree for every iteration, filled by the benchmark itself
+		@Param({"120", "1024", "4096"})
+		public int bSize;
+
+		@Param({"10000", "100000"})
+		public int size;
+
+		public int random[];
+		public Object tree;
+		private File dir;
+
+		@Setup(Level.Trial)
+		public void data() {
+			random = BenchData.randomKeys(size, BenchData.SEED);
+		}
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			dir = BenchData.tempDir();
+			tree = Engine.newKeyTree(new File(dir, "tree").getPath(), bSize);
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			Engine.keyTreeClose(tree);
+			BenchData.delete(dir);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Loaded {
+		//a tree built by inserting every key in random order
+		@Param({"120", "1024", "4096"})
+		public int bSize;
+
+		@Param({"10000", "100000"})
+		public int size;
+
+		public int probes[];
+		public int next;
+		public Object tree;
+		private File dir;
+
+		@Setup(Level.Trial)
+		public void open() throws IOException {
+			dir = BenchData.tempDir();
+			tree = Engine.newKeyTree(new File(dir, "tree").getPath(), bSize);
+			for(int key : BenchData.randomKeys(size, BenchData.SEED)) Engine.keyTreeInsert(tree, key, key);
+			probes = BenchData.randomKeys(size, BenchData.SEED + 1);
+		}
+
+		public int nextProbe() {
+			int key = probes[next];
+			next = next + 1 == probes.length ? 0 : next + 1;
+			return key;
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			Engine.keyTreeClose(tree);
+			BenchData.delete(dir);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insertRandom(Empty s) {
+		for(int key : s.random) Engine.keyTreeInsert(s.tree, key, key);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public long search(Loaded s) {
+		return Engine.keyTreeSearch(s.tree, s.nextProbe());
+	}
+}
@@ -0,0 +1,125 @@
+package perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DBTableBenchmark {
+	private static final int FIRST_COLUMN[] = {0};
+	
+	@State(Scope.Benchmark)
+	public static class Table {
+		@Param({"120", "4096"})
+		public int bSize;
+		
+		@Param({"10000", "100000"})
+		public int size;
+		
+		//otherFieldLengths of the table, one comma separated list per run
+		@Param({"8", "16,16", "32,32,32,32"})
+		public String fields;
+		
+		public int lengths[];
+		public int keys[];
+		public char rows[][][];
+		public Object table;
+		private File dir;
+		
+		@Setup(Level.Trial)
+		public void data() {
+			lengths = BenchData.fieldLengths(fields);
+			keys = BenchData.randomKeys(size, BenchData.SEED);
+			rows = new char[size][][];
+			for(int i = 0; i < size; i++) rows[i] = BenchData.fields(lengths, keys[i]);
+		}
+		
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			dir = BenchData.tempDir();
+			table = Engine.newTable(new File(dir, "table").getPath(), lengths, bSize);
+		}
+		
+		@TearDown(Level.Iteration)
+		public void close() {
+			Engine.tableClose(table);
+			BenchData.delete(dir);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Loaded extends Table {
+		public int probes[];
+		public int next;
+		
+		@Override
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			//filled in the same setup as the table is opened, JMH does not order setups of one level
+			super.open();
+			for(int i = 0; i < size; i++) Engine.tableInsert(table, keys[i], rows[i]);
+			probes = BenchData.randomKeys(size, BenchData.SEED + 1);
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insert(Table s) {
+		for(int i = 0; i < s.size; i++) Engine.tableInsert(s.table, s.keys[i], s.rows[i]);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public LinkedList<String> search(Loaded s) {
+		int key = s.probes[s.next];
+		s.next = s.next + 1 == s.probes.length ? 0 : s.next + 1;
+		return Engine.tableSearch(s.table, key);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public LinkedList<CharSequence> searchFirstColumn(Loaded s) {
+		//projected lookup of one field, compare against search
+		int key = s.probes[s.next];
+		s.next = s.next + 1 == s.probes.length ? 0 : s.next + 1;
+		return Engine.tableSearch(s.table, key, FIRST_COLUMN);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public LinkedList<LinkedList<String>> rangeSearchAll(Loaded s) {
+		//every row in key order on one thread, compare against rangeSearchAllParallel
+		return Engine.tableRangeSearch(s.table, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public LinkedList<LinkedList<String>> rangeSearchAllParallel(Loaded s) {
+		//the same rows read on the common ForkJoinPool, parts split at separators of the index
+		return Engine.tableRangeSearch(s.table, Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+	}
+}
@@ -0,0 +1,273 @@
+package perf;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+//BTree, ByteKeyBTree and DBTable live in the unnamed package, which a named package cannot import, and JMH
+//refuses benchmarks in the unnamed package. The engine is reached through constant method
+//handles instead, which the JIT inlines like direct calls.
+final class Engine {
+	private static final MethodHandle NEW_TREE;
+	private static final MethodHandle TREE_INSERT;
+	private static final MethodHandle TREE_SEARCH;
+	private static final MethodHandle TREE_REMOVE;
+	private static final MethodHandle TREE_INSERT_ALL;
+	private static final MethodHandle TREE_SEARCH_ALL;
+	private static final MethodHandle TREE_RANGE;
+	private static final MethodHandle TREE_CLOSE;
+	private static final MethodHandle NEW_KEY_TREE;
+	private static final MethodHandle KEY_TREE_INSERT;
+	private static final MethodHandle KEY_TREE_SEARCH;
+	private static final MethodHandle KEY_TREE_CLOSE;
+	private static final MethodHandle NEW_TABLE;
+	private static final MethodHandle TABLE_INSERT;
+	private static final MethodHandle TABLE_SEARCH;
+	private static final MethodHandle TABLE_SEARCH_COLUMNS;
+	private static final MethodHandle TABLE_RANGE;
+	private static final MethodHandle TABLE_RANGE_PARALLEL;
+	private static final MethodHandle TABLE_CLOSE;
+	private static final MethodHandle SCALAR_KEY_SEARCH;
+	private static final MethodHandle VECTOR_KEY_SEARCH;
+	private static final MethodHandle KEY_SEARCH_UPPER;
+	private static final MethodHandle KEY_SEARCH_UPPER_PAGE;
+	
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> tree = Class.forName("BTree");
+			Class<?> table = Class.forName("DBTable");
+			Class<?> keyTree = Class.forName("ByteKeyBTree");
+			Class<?> keySearch = Class.forName("KeySearch");
+			NEW_TREE = generic(lookup.findConstructor(tree, MethodType.methodType(void.class, String.class, int.class)));
+			TREE_INSERT = generic(lookup.findVirtual(tree, "insert", MethodType.methodType(boolean.class, int.class, long.class)));
+			TREE_SEARCH = generic(lookup.findVirtual(tree, "search", MethodType.methodType(long.class, int.class)));
+			TREE_REMOVE = generic(lookup.findVirtual(tree, "remove", MethodType.methodType(long.class, int.class)));
+			TREE_INSERT_ALL = generic(lookup.findVirtual(tree, "insertAll", MethodType.methodType(boolean[].class, int[].class, long[].class)));
+			TREE_SEARCH_ALL = generic(lookup.findVirtual(tree, "searchAll", MethodType.methodType(long[].class, int[].class)));
+			TREE_RANGE = generic(lookup.findVirtual(tree, "rangeSearch", MethodType.methodType(LinkedList.class, int.class, int.class)));
+			TREE_CLOSE = generic(lookup.findVirtual(tree, "close", MethodType.methodType(void.class)));
+			NEW_KEY_TREE = generic(lookup.findConstructor(keyTree, MethodType.methodType(void.class, String.class, int.class)));
+			KEY_TREE_INSERT = generic(lookup.findVirtual(keyTree, "insert", MethodType.methodType(boolean.class, long.class, long.class)));
+			KEY_TREE_SEARCH = generic(lookup.findVirtual(keyTree, "search", MethodType.methodType(long.class, long.class)));
+			KEY_TREE_CLOSE = generic(lookup.findVirtual(keyTree, "close", MethodType.methodType(void.class)));
+			NEW_TABLE = generic(lookup.findConstructor(table, MethodType.methodType(void.class, String.class, int[].class, int.class)));
+			TABLE_INSERT = generic(lookup.findVirtual(table, "insert", MethodType.methodType(boolean.class, int.class, char[][].class)));
+			TABLE_SEARCH = generic(lookup.findVirtual(table, "search", MethodType.methodType(LinkedList.class, int.class)));
+			TABLE_SEARCH_COLUMNS = generic(lookup.findVirtual(table, "search", MethodType.methodType(LinkedList.class, int.class, int[].class)));
+			TABLE_RANGE = generic(lookup.findVirtual(table, "rangeSearch", MethodType.methodType(LinkedList.class, int.class, boolean.class, int.class, boolean.class, boolean.class)));
+			TABLE_RANGE_PARALLEL = generic(lookup.findVirtual(table, "rangeSearchParallel", MethodType.methodType(LinkedList.class, int.class, boolean.class, int.class, boolean.class, boolean.class)));
+			TABLE_CLOSE = generic(lookup.findVirtual(table, "close", MethodType.methodType(void.class)));
+			SCALAR_KEY_SEARCH = generic(lookup.findStaticGetter(keySearch, "SCALAR", keySearch));
+			VECTOR_KEY_SEARCH = generic(lookup.findStatic(keySearch, "vector", MethodType.methodType(keySearch)));
+			KEY_SEARCH_UPPER = generic(lookup.findVirtual(keySearch, "upper", MethodType.methodType(int.class, int[].class, int.class, int.class)));
+			KEY_SEARCH_UPPER_PAGE = lookup.findVirtual(keySearch, "upper", MethodType.methodType(int.class, ByteBuffer.class, int.class, int.class, int.class)).asType(MethodType.methodType(int.class, Object.class, ByteBuffer.class, int.class, int.class, int.class));
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private Engine() {
+	}
+	
+	private static MethodHandle generic(MethodHandle handle) {
+		//receivers and results of the engine's own types are passed around as Object
+		MethodType type = handle.type();
+		for(int i = 0; i < type.parameterCount(); i++) {
+			Class<?> p = type.parameterType(i);
+			if(!p.isPrimitive() && !p.isArray() && p != String.class) type = type.changeParameterType(i, Object.class);
+		}
+		if(!type.returnType().isPrimitive() && !type.returnType().isArray()) type = type.changeReturnType(Object.class);
+		return handle.asType(type);
+	}
+	
+	private static RuntimeException rethrow(Throwable t) {
+		if(t instanceof RuntimeException) return (RuntimeException) t;
+		if(t instanceof Error) throw (Error) t;
+		return new RuntimeException(t);
+	}
+	
+	static Object newTree(String filename, int bSize) {
+		try {
+			return (Object) NEW_TREE.invokeExact(filename, bSize);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static boolean treeInsert(Object tree, int key, long addr) {
+		try {
+			return (boolean) TREE_INSERT.invokeExact(tree, key, addr);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static long treeSearch(Object tree, int key) {
+		try {
+			return (long) TREE_SEARCH.invokeExact(tree, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static long treeRemove(Object tree, int key) {
+		try {
+			return (long) TREE_REMOVE.invokeExact(tree, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static boolean[] treeInsertAll(Object tree, int keys[], long addrs[]) {
+		try {
+			return (boolean[]) TREE_INSERT_ALL.invokeExact(tree, keys, addrs);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static long[] treeSearchAll(Object tree, int keys[]) {
+		try {
+			return (long[]) TREE_SEARCH_ALL.invokeExact(tree, keys);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	static LinkedList<Long> treeRangeSearch(Object tree, int low, int high) {
+		try {
+			return (LinkedList<Long>) (Object) TREE_RANGE.invokeExact(tree, low, high);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static void treeClose(Object tree) {
+		try {
+			TREE_CLOSE.invokeExact(tree);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static Object newKeyTree(String filename, int bSize) {
+		try {
+			return (Object) NEW_KEY_TREE.invokeExact(filename, bSize);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static boolean keyTreeInsert(Object tree, long key, long addr) {
+		try {
+			return (boolean) KEY_TREE_INSERT.invokeExact(tree, key, addr);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static long keyTreeSearch(Object tree, long key) {
+		try {
+			return (long) KEY_TREE_SEARCH.invokeExact(tree, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static void keyTreeClose(Object tree) {
+		try {
+			KEY_TREE_CLOSE.invokeExact(tree);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static Object newTable(String filename, int fieldLengths[], int bSize) {
+		try {
+			return (Object) NEW_TABLE.invokeExact(filename, fieldLengths, bSize);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static boolean tableInsert(Object table, int key, char fields[][]) {
+		try {
+			return (boolean) TABLE_INSERT.invokeExact(table, key, fields);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	static LinkedList<String> tableSearch(Object table, int key) {
+		try {
+			return (LinkedList<String>) (Object) TABLE_SEARCH.invokeExact(table, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	static LinkedList<CharSequence> tableSearch(Object table, int key, int columns[]) {
+		try {
+			return (LinkedList<CharSequence>) (Object) TABLE_SEARCH_COLUMNS.invokeExact(table, key, columns);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	static LinkedList<LinkedList<String>> tableRangeSearch(Object table, int low, int high, boolean parallel) {
+		try {
+			if(parallel) return (LinkedList<LinkedList<String>>) (Object) TABLE_RANGE_PARALLEL.invokeExact(table, low, true, high, true, false);
+			return (LinkedList<LinkedList<String>>) (Object) TABLE_RANGE.invokeExact(table, low, true, high, true, false);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static void tableClose(Object table) {
+		try {
+			TABLE_CLOSE.invokeExact(table);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static Object scalarKeySearch() {
+		try {
+			return (Object) SCALAR_KEY_SEARCH.invokeExact();
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static Object vectorKeySearch() {
+		//null when the jar was built without the vector profile
+		try {
+			return (Object) VECTOR_KEY_SEARCH.invokeExact();
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static int keySearchUpper(Object search, int keys[], int count, int key) {
+		try {
+			return (int) KEY_SEARCH_UPPER.invokeExact(search, keys, count, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	static int keySearchUpper(Object search, ByteBuffer page, int offset, int count, int key) {
+		try {
+			return (int) KEY_SEARCH_UPPER_PAGE.invokeExact(search, page, offset, count, key);
+		} catch(Throwable t) {
+			throw rethrow(t);
+		}
+	}
+}
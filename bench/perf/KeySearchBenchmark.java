@@ -0,0 +1,93 @@
+package perf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//the search for a key within one full node, with no tree around it, for each kernel BTree could use
+//vector needs the jar built with -P jmh,vector, the forks add the incubator module themselves
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeySearchBenchmark {
+	@State(Scope.Benchmark)
+	public static class Node {
+		@Param({"120", "1024", "4096", "16384"})
+		public int bSize;
+		
+		//linear compares one key after another, scalar is the binary search, vector the SIMD search
+		@Param({"linear", "scalar", "vector"})
+		public String kernel;
+		
+		public int keys[];
+		public ByteBuffer page;	//the keys as a page holds them, after the count
+		public int probes[];
+		public int next;
+		public boolean linear;
+		public Object search;
+		
+		@Setup(Level.Trial)
+		public void fill() {
+			int n = bSize/12 - 1;	//keys of a full node
+			keys = new int[n];
+			page = ByteBuffer.allocate(4 + 4*n);
+			for(int i = 0; i < n; i++) {
+				keys[i] = 2*i + 1;
+				page.putInt(4 + 4*i, keys[i]);
+			}
+			probes = BenchData.randomKeys(4096, BenchData.SEED);
+			for(int i = 0; i < probes.length; i++) probes[i] %= 2*n + 2;	//hits, misses between keys and both ends
+			linear = kernel.equals("linear");
+			search = kernel.equals("vector") ? Engine.vectorKeySearch() : Engine.scalarKeySearch();
+			if(search == null) throw new IllegalStateException("no vector search, build the jar with -P jmh,vector");
+		}
+		
+		public int nextProbe() {
+			int key = probes[next];
+			next = (next + 1) & (probes.length - 1);
+			return key;
+		}
+	}
+	
+	private static int linear(int keys[], int count, int key) {
+		int i = 0;
+		while(i < count && keys[i] <= key) i++;
+		return i;
+	}
+	
+	private static int linear(ByteBuffer page, int offset, int count, int key) {
+		int i = 0;
+		while(i < count && page.getInt(offset + 4*i) <= key) i++;
+		return i;
+	}
+	
+	@Benchmark
+	public int array(Node s) {
+		//a node already read into a Node, as writes and cursors search it
+		int key = s.nextProbe();
+		if(s.linear) return linear(s.keys, s.keys.length, key);
+		return Engine.keySearchUpper(s.search, s.keys, s.keys.length, key);
+	}
+	
+	@Benchmark
+	public int page(Node s) {
+		//a node searched where it lies in its page, as search does
+		int key = s.nextProbe();
+		if(s.linear) return linear(s.page, 4, s.keys.length, key);
+		return Engine.keySearchUpper(s.search, s.page, 4, s.keys.length, key);
+	}
+}
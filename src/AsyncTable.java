@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class AsyncTable implements AutoCloseable {
+	//DBTable calls that return at once with a future, run on virtual threads where the runtime has them
+	//a failed call completes its future exceptionally with the IOException the table threw
+	public static final int DEFAULT_THREADS = 4*Runtime.getRuntime().availableProcessors();	//threads of the pool used when there are no virtual threads
+
+	private DBTable table;
+	private ExecutorService executor;
+	private boolean ownsExecutor;	//the executor was made here, so close shuts it down
+	private ReentrantLock serial;	//one call at a time on a table that is not concurrent, null otherwise
+
+	private interface Call<T> {
+		public T call() throws IOException;
+	}
+
+	public AsyncTable(DBTable t) {
+		this(t, defaultExecutor());
+		ownsExecutor = true;
+	}
+
+	public AsyncTable(DBTable t, ExecutorService e) {
+		//e <- runs the calls, left running by close
+		table = t;
+		executor = e;
+		if(!table.isConcurrent()) serial = new ReentrantLock();
+	}
+
+	private static ExecutorService defaultExecutor() {
+		//the build targets Java 17, so virtual threads (Java 21 on) are looked up by name and a pool of daemon threads stands in without them
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(DEFAULT_THREADS, r -> {
+				Thread t = new Thread(r, "AsyncTable");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(Call<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			if(serial != null) serial.lock();
+			try {
+				future.complete(call.call());
+			} catch(Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				if(serial != null) serial.unlock();
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<Boolean> insertAsync(int key, char fields[][]) {
+		return submit(() -> table.insert(key, fields));
+	}
+
+	public CompletableFuture<Boolean> removeAsync(int key) {
+		return submit(() -> table.remove(key));
+	}
+
+	public CompletableFuture<LinkedList<String>> searchAsync(int key) {
+		return submit(() -> table.search(key));
+	}
+
+	public CompletableFuture<LinkedList<CharSequence>> searchAsync(int key, int... columns) {
+		return submit(() -> table.search(key, columns));
+	}
+
+	public CompletableFuture<LinkedList<LinkedList<String>>> rangeSearchAsync(int low, int high) {
+		return submit(() -> table.rangeSearch(low, high));
+	}
+
+	public CompletableFuture<LinkedList<LinkedList<String>>> rangeSearchAsync(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) {
+		return submit(() -> table.rangeSearch(low, lowInclusive, high, highInclusive, descending));
+	}
+
+	public CompletableFuture<boolean[]> insertAllAsync(int keys[], char fields[][][]) {
+		return submit(() -> table.insertAll(keys, fields));
+	}
+
+	public CompletableFuture<boolean[]> removeAllAsync(int keys[]) {
+		return submit(() -> table.removeAll(keys));
+	}
+
+	public CompletableFuture<LinkedList<LinkedList<String>>> searchAllAsync(int keys[]) {
+		//one walk of the index for every key, as searchAll, rather than a call per key
+		return submit(() -> table.searchAll(keys));
+	}
+
+	public CompletableFuture<Void> bulkInsertAsync(Iterator<Map.Entry<Integer, char[][]>> input, boolean sorted) {
+		return submit(() -> {
+			table.bulkInsert(input, sorted);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> syncAsync() {
+		return submit(() -> {
+			table.sync();
+			return null;
+		});
+	}
+
+	public DBTable getTable() {
+		return table;
+	}
+
+	public void close() {
+		//stops taking calls, calls already submitted still run, the table stays open
+		if(ownsExecutor) executor.shutdown();
+	}
+}
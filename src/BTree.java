@@ -1,15 +1,48 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Stack;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 
 public class BTree {
+	public static final long DEFAULT_CACHE_SIZE = 1 << 20;	//bytes of nodes kept in memory when no cache size is given
+	public static final double DEFAULT_FILL_FACTOR = 0.9;	//fraction of each node filled by bulkLoad when none is given
+	private static final int HEADER = 20;	//bytes before the first node
+	private static final long SPACE_SAVED = -1;	//header value in place of a free list head, the free space map was saved on close
+	private static final KeySearch KEYS = KeySearch.best();	//searches the keys of every node
+	
 	private RandomAccessFile f;
+	private PageStore pool;	//pages of f, every node read and write goes through it
 	private int order;
 	private int blockSize;
-	private long root;
-	private long free;
+	private int nodeSize;	//bytes occupied by a node on disk
+	private volatile long root;
+	private FreeSpace space;	//nodes of f not in use
+	private File spaceFile;	//where the free space map is kept while the tree is closed
+	private LatchTable latches;	//per node latches, null unless the tree was opened for concurrent use
+	private ReentrantReadWriteLock rootLatch;	//guards root itself, taken before the latch of the root node
+	private int batches;	//batch operations running, header writes wait for the last of them
+	private boolean headerDirty;	//header changed during the running batches
+	private volatile Metrics metrics;	//null unless enableMetrics was called
+	private ConcurrentHashMap<Long, Version> versions = new ConcurrentHashMap<>();	//nodes as open snapshots saw them, for the nodes changed since
+	private ConcurrentSkipListSet<Long> openSnapshots = new ConcurrentSkipListSet<>();	//epochs of the snapshots not yet closed
+	private volatile long epoch;	//epoch of the newest snapshot, 0 before the first
+	private volatile long snapshotLength;	//file length when the newest snapshot was taken, no snapshot holds a node past it
 	
 	private class Node {
 		private int count;
@@ -25,50 +58,96 @@ public class BTree {
 		}
 		
 		public Node(long addr) throws IOException {
-			f.seek(addr);
-			count = f.readInt();
+			read(pool.pin(addr));
+			pool.unpin(addr, false);
+			address = addr;
+		}
+		
+		public Node(ByteBuffer image, long addr) {
+			//node at addr as a snapshot kept it
+			read(image);
+			address = addr;
+		}
+		
+		private void load(long addr) throws IOException {
+			//reads the node at addr into this one, reusing its arrays
+			read(pool.pin(addr));
+			pool.unpin(addr, false);
+			address = addr;
+		}
+		
+		private void read(ByteBuffer page) {
+			count = page.getInt(0);
 			
-			keys = new int[order-1];
+			if(keys == null) keys = new int[order-1];
 			for(int i = 0; i < order-1; i++) {
-				keys[i] = f.readInt();
+				keys[i] = page.getInt(keyOffset(i));
 			}
 			
-			children = new long[order];
+			if(children == null) children = new long[order];
 			for(int i = 0; i < order; i++) {
-				children[i] = f.readLong();
+				children[i] = page.getLong(childOffset(i));
 			}
-			
-			address = addr;
 		}
 		
 		private void writeNode() throws IOException{
-			f.seek(address);
-			f.writeInt(count);
-			
-			for(int key : keys) {
-				f.writeInt(key);
-			}
-			
-			for(long child : children) {
-				f.writeLong(child);
-			}
+			writeNode(address);
 		}
 		
 		private void writeNode(long r) throws IOException{
-			f.seek(r);
-			f.writeInt(count);
+			ByteBuffer page = pool.pin(r);
+			if(!openSnapshots.isEmpty()) preserve(r, page);
+			page.putInt(0, count);
 			
-			for(int key : keys) {
-				f.writeInt(key);
+			for(int i = 0; i < order-1; i++) {
+				page.putInt(keyOffset(i), keys[i]);
 			}
 			
-			for(long child : children) {
-				f.writeLong(child);
+			for(int i = 0; i < order; i++) {
+				page.putLong(childOffset(i), children[i]);
 			}
+			pool.unpin(r, true);
+			count(Metrics.Event.WRITE);
+		}
+	}
+	
+	private class DirtyNodes {
+		//nodes an insert or remove changed, written once each in address order when it is done rather than after every change
+		//a split or merge changes the same nodes several times, so only the last of those changes reaches the page
+		private TreeMap<Long, Node> nodes = new TreeMap<>();
+		
+		private void add(Node n) {
+			nodes.put(n.address, n);
+		}
+		
+		private void release(long r) {
+			//r is free again and may be handed out before the operation ends, so it is not written
+			nodes.remove(r);
+			BTree.this.release(r);
+		}
+		
+		private void flush() throws IOException {
+			for(Node n : nodes.values()) n.writeNode();
+			nodes.clear();
 		}
 	}
 	
 	public BTree(String filename, int bSize) throws IOException {
+		this(filename, bSize, DEFAULT_CACHE_SIZE);
+	}
+	
+	public BTree(String filename, int bSize, long cacheSize) throws IOException {
+		this(filename, bSize, StorageMode.BUFFERED, cacheSize);
+	}
+	
+	public BTree(String filename, int bSize, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, bSize, mode, cacheSize, false);
+	}
+	
+	public BTree(String filename, int bSize, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		//mode <- how nodes are moved between memory and the file
+		//cacheSize <- bytes of nodes the buffer pool may hold when mode is BUFFERED
+		//concurrent <- true if the tree is shared between threads, nodes are then latched as they are read and written
 		f = new RandomAccessFile(filename, "rw");
 		f.seek(0);
 		
@@ -78,12 +157,27 @@ public class BTree {
 		order = blockSize/12;
 		
 		root = 0;
-		free = 0;
 		f.writeLong(root);
-		f.writeLong(free);
+		f.writeLong(0);
+		setupPool(mode, cacheSize, concurrent);
+		spaceFile = new File(filename + "Free");
+		space = new FreeSpace(HEADER, nodeSize);
 	}
 	
 	public BTree(String filename) throws IOException {
+		this(filename, StorageMode.BUFFERED, DEFAULT_CACHE_SIZE);
+	}
+	
+	public static BTree open(String filename, long cacheSize) throws IOException {
+		//not a constructor: BTree(filename, int) creates a tree, and an int cache size would pick it and truncate the file
+		return new BTree(filename, StorageMode.BUFFERED, cacheSize);
+	}
+	
+	public BTree(String filename, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, mode, cacheSize, false);
+	}
+	
+	public BTree(String filename, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
 		f = new RandomAccessFile(filename, "rw");
 		f.seek(0);
 		
@@ -91,77 +185,409 @@ public class BTree {
 		order = blockSize/12;
 		
 		root = f.readLong();
-		free = f.readLong();
+		long free = f.readLong();
+		setupPool(mode, cacheSize, concurrent);
+		setupSpace(filename, free);
+	}
+	
+	private void setupPool(StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		//a node is its count, order-1 keys and order children
+		nodeSize = 4 + 4*(order-1) + 8*order;
+		if(mode == StorageMode.MAPPED) pool = new MappedStore(f.getChannel(), nodeSize);
+		else pool = new BufferPool(f.getChannel(), nodeSize, cacheSize);
+		if(concurrent) {
+			latches = new LatchTable();
+			rootLatch = new ReentrantReadWriteLock();
+		}
+	}
+	
+	private void setupSpace(String filename, long free) throws IOException {
+		//free <- header value, SPACE_SAVED if the last close saved the map, otherwise 0 or the head of the free list older files keep in their free nodes
+		//the map is rebuilt from the nodes reachable from the root when it was not saved, as after a crash
+		spaceFile = new File(filename + "Free");
+		if(free == SPACE_SAVED) space = FreeSpace.load(spaceFile, HEADER, nodeSize, pool.length());
+		if(space == null && free > 0) {
+			space = new FreeSpace(HEADER, nodeSize);
+			for(long r = free; r != 0; ) {
+				space.release(r);
+				long next = pool.pin(r).getLong(0);
+				pool.unpin(r, false);
+				r = next;
+			}
+		} else if(space == null) {
+			space = new FreeSpace(HEADER, nodeSize, pool.length());
+			reserveReachable();
+		}
+		if(free != 0) {
+			//from here on the saved map or free list goes stale, so it must no longer be trusted should the tree not be closed
+			writeHeader();
+			f.getChannel().force(false);
+		}
+	}
+	
+	private void reserveReachable() throws IOException {
+		//marks every node reachable from the root as in use, the leaves are known from their parents and never read
+		if(root == 0) return;
+		int height = 0;
+		for(Node cur = new Node(root); cur.count > 0; cur = new Node(cur.children[0])) height++;
+		reserveBelow(root, height);
+	}
+	
+	private void reserveBelow(long addr, int height) throws IOException {
+		//height <- levels of internal nodes from addr down, 0 if addr is a leaf
+		space.reserve(addr);
+		if(height == 0) return;
+		Node cur = new Node(addr);
+		for(int i = 0; i <= cur.count; i++) reserveBelow(cur.children[i], height-1);
+	}
+	
+	private int keyOffset(int i) {
+		return 4 + 4*i;
+	}
+	
+	private int childOffset(int i) {
+		return 4 + 4*(order-1) + 8*i;
+	}
+	
+	public BufferPool getBufferPool() {
+		//null when the tree is mapped
+		PageStore store = pool instanceof LoggedStore ? ((LoggedStore) pool).getBase() : pool;
+		return store instanceof BufferPool ? (BufferPool) store : null;
+	}
+	
+	LoggedStore logTo(int file) {
+		//used by DBTable before any operation, node and header writes are held for its log from then on
+		//file <- number of the tree's file in the log records
+		LoggedStore logged = new LoggedStore(pool, f.getChannel(), file, nodeSize);
+		pool = logged;
+		return logged;
 	}
 	
 	public boolean insert(int key, long addr) throws IOException {
 		//key <- key to be inserted
 		//addr <- memory address of row in DBTable related to key
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(latches != null) {
+				//a leaf with room is reached latching only it exclusively, as most inserts need nothing more
+				Crab crab = new Crab(false);
+				try {
+					LongList path = leafPath(key, true, crab);
+					if(path != null) return insertAt(path, key, addr);
+				} finally {
+					crab.releaseAll();
+				}
+			}
+			return insertLocked(key, addr);
+		} finally {
+			if(m != null) m.end(Metrics.Op.INSERT, start);
+		}
+	}
+	
+	private boolean insertLocked(int key, long addr) throws IOException {
+		//insert that latches exclusively from the root down, for a split or an empty tree
+		Crab crab = new Crab();
+		try {
+			return insert(key, addr, crab);
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private boolean insert(int key, long addr, Crab crab) throws IOException {
 		if(root == 0) {	//tree is empty
-			long t = getFree();
-			removeFromFree();
-			root = t;
-			f.seek(0);
-			f.writeLong(root);
+			long t = allocate();
 			int[] rootKeys = new int[order-1];
 			rootKeys[0] = key;
 			long[] rootChildren = new long[order];
 			rootChildren[0] = addr;
 			Node root = new Node(-1, rootKeys, rootChildren, t);
 			root.writeNode(t);
+			this.root = t;
+			headerChanged();
 			return true;
 		}
+		return insertAt(writePath(key, true, crab), key, addr);
+	}
+	
+	private boolean insertAt(LongList path, int key, long addr) throws IOException {
+		//path <- latched nodes down to the leaf for key, from writePath
+		//a leaf with room takes the key in its page, only a split builds nodes
+		long r = path.removeLast();
+		ByteBuffer page = pool.pin(r);
+		int count = -page.getInt(0);
+		boolean exists = leafIndex(page, count, key) >= 0;
+		if(exists || count < order-1) {
+			if(!exists) leafAdd(r, page, count, key, addr);
+			pool.unpin(r, !exists);
+			return !exists;
+		}
+		pool.unpin(r, false);
 		
-		Stack<Long> path = getPathTo(key, true);
-		if(path == null) return false;
-		Long r = path.pop();
 		Node cur = new Node(r);
-		boolean split;	//tells program if split is necessary
-		int val = 0;
-		long loc = 0;
-		
-		if(Math.abs(cur.count) < order-1) {	//checks if node is full
-			sortedAdd(key, addr, cur);	//adds key and address to node cur
-			split = false;
-		} else {
-			Node newNode = splitLeaf(cur, key, addr);
-			val = newNode.keys[0];
-			loc = newNode.address;
-			split = true;
-		}
+		DirtyNodes dirty = new DirtyNodes();
+		Node newNode = splitLeaf(cur, key, addr, dirty);
+		int val = newNode.keys[0];
+		long loc = newNode.address;
+		boolean split = true;	//tells program if split is necessary
 		
-		while(!path.empty() && split) {	//runs while the parent nodes need to be updated because of a split
-			cur = new Node(path.pop());
+		while(!path.isEmpty() && split) {	//runs while the parent nodes need to be updated because of a split
+			cur = new Node(path.removeLast());
 			if(cur.count < order-1) {	//checks if node is full
-				sortedAdd(val, loc, cur);
+				sortedAdd(val, loc, cur, dirty);
 				split = false;
 			} else {
-				Node newNode = splitNode(cur, val, loc);	//get new node from split
+				newNode = splitNode(cur, val, loc, dirty);	//get new node from split
 				val = cur.keys[cur.count];	//remove new val from current node
 				cur.keys[cur.count] = 0;
-				cur.writeNode();
 				loc = newNode.address;
 			}
 		}
+		dirty.flush();
 		
 		if(split) {
 			long originalRoot = root;
-			root = getFree();
-			removeFromFree();
-			f.seek(0);
-			f.writeLong(root);
+			long newAddr = allocate();
 			int[] splitKeys = new int[order-1];
 			splitKeys[0] = val;
 			long[] splitChildren = new long[order];
 			splitChildren[0] = originalRoot;
 			splitChildren[1] = loc;
-			Node newRoot = new Node(1, splitKeys, splitChildren, root);
+			Node newRoot = new Node(1, splitKeys, splitChildren, newAddr);
 			newRoot.writeNode();
+			root = newAddr;
+			headerChanged();
 		}
 		return true;
 	}
 
-	private Node splitNode(Node cur, int key, long addr) throws IOException {
+	public void bulkLoad(Iterator<KeyAddr> sorted) throws IOException {
+		bulkLoad(sorted, DEFAULT_FILL_FACTOR);
+	}
+	
+	public void bulkLoad(Iterator<KeyAddr> sorted, double fillFactor) throws IOException {
+		//builds the tree bottom up from keys in strictly ascending order, the tree must be empty
+		//fillFactor <- fraction of each node filled, the rest is left for later inserts
+		//a concurrent tree is held as analyze holds it, so an insert started meanwhile waits and then finds the loaded tree
+		if(!(fillFactor > 0 && fillFactor <= 1)) throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		Crab crab = new Crab();
+		try {
+			if(latches != null) latches.awaitIdle();
+			if(root != 0) throw new IllegalStateException("bulk load requires an empty tree");
+			if(!openSnapshots.isEmpty()) throw new IllegalStateException("bulk load would overwrite nodes open snapshots hold");
+			load(sorted, fillFactor);
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private void load(Iterator<KeyAddr> sorted, double fillFactor) throws IOException {
+		int minKeys = (order-1)/2;
+		int perLeaf = Math.max(Math.max(minKeys, 1), (int) Math.round((order-1)*fillFactor));
+		//the tree is empty so none of its nodes are in use, the file starts over and the nodes are written one after another
+		space.clear();
+		pool.truncate(HEADER);
+		long next = HEADER;
+		Level leaves = new Level();
+		Node prev = null;	//last full leaf, held back in case the final leaf needs some of its entries
+		Node cur = null;
+		int last = 0;
+		while(sorted.hasNext()) {
+			KeyAddr pair = sorted.next();
+			if(cur != null && pair.key <= last) throw new IllegalArgumentException("keys must be strictly ascending");
+			last = pair.key;
+			if(cur == null || -cur.count == perLeaf) {	//start a new leaf
+				if(prev != null) prev.writeNode();
+				prev = cur;
+				cur = new Node(0, new int[order-1], new long[order], next);
+				next += nodeSize;
+				if(prev != null) {
+					prev.children[order-1] = cur.address;	//next leaf reference
+					leaves.add(prev.keys[0], prev.address);
+				}
+			}
+			cur.keys[-cur.count] = pair.key;
+			cur.children[-cur.count] = pair.addr;
+			cur.count--;
+		}
+		if(cur == null) return;	//nothing to load
+		
+		if(prev != null && -cur.count < minKeys) {	//final leaf is too small, share entries with the leaf before it
+			int total = -prev.count - cur.count;
+			int keep = total <= order-1 ? total : total - total/2;
+			int allKeys[] = Arrays.copyOf(prev.keys, total);
+			long allAddrs[] = Arrays.copyOf(prev.children, total);
+			System.arraycopy(cur.keys, 0, allKeys, -prev.count, -cur.count);
+			System.arraycopy(cur.children, 0, allAddrs, -prev.count, -cur.count);
+			Arrays.fill(prev.keys, 0);
+			Arrays.fill(cur.keys, 0);
+			Arrays.fill(cur.children, 0);
+			System.arraycopy(allKeys, 0, prev.keys, 0, keep);
+			System.arraycopy(allAddrs, 0, prev.children, 0, keep);
+			System.arraycopy(allKeys, keep, cur.keys, 0, total - keep);
+			System.arraycopy(allAddrs, keep, cur.children, 0, total - keep);
+			prev.count = -keep;
+			cur.count = keep - total;
+			if(cur.count == 0) {	//everything fit in the leaf before it
+				prev.children[order-1] = 0;
+				next -= nodeSize;
+				cur = null;
+			}
+		}
+		if(prev != null) prev.writeNode();
+		if(cur != null) {
+			cur.writeNode();
+			leaves.add(cur.keys[0], cur.address);
+		}
+		
+		Level level = leaves;
+		int perNode = Math.max(minKeys+1, (int) Math.round(order*fillFactor));
+		while(level.n > 1) {	//each pass builds the internal level above the current one
+			Level parents = new Level();
+			int c = 0;
+			for(int size : groupSizes(level.n, perNode, minKeys+1, order)) {
+				Node parent = new Node(size-1, new int[order-1], new long[order], next);
+				next += nodeSize;
+				for(int i = 0; i < size; i++) {
+					parent.children[i] = level.addrs[c+i];
+					if(i > 0) parent.keys[i-1] = level.keys[c+i];	//separator is the smallest key under the child
+				}
+				parent.writeNode();
+				parents.add(level.keys[c], parent.address);
+				c += size;
+			}
+			level = parents;
+		}
+		root = level.addrs[0];
+		pool.flush();	//nodes go out before the header that points at them
+		writeHeader();
+	}
+	
+	private int[] groupSizes(int n, int per, int min, int max) {
+		//splits n children into nodes of per children, evening out the last two if the last is below min
+		int groups = (n + per - 1)/per;
+		int sizes[] = new int[groups];
+		Arrays.fill(sizes, per);
+		sizes[groups-1] = n - per*(groups-1);
+		if(groups > 1 && sizes[groups-1] < min) {
+			int total = per + sizes[groups-1];
+			if(total <= max) {
+				sizes = Arrays.copyOf(sizes, groups-1);
+				sizes[groups-2] = total;
+			} else {
+				sizes[groups-2] = total - total/2;
+				sizes[groups-1] = total/2;
+			}
+		}
+		return sizes;
+	}
+	
+	private static class Level {
+		//smallest key and address of every node of one level, in key order
+		private int keys[] = new int[64];
+		private long addrs[] = new long[64];
+		private int n;
+		
+		private void add(int key, long addr) {
+			if(n == keys.length) {
+				keys = Arrays.copyOf(keys, 2*n);
+				addrs = Arrays.copyOf(addrs, 2*n);
+			}
+			keys[n] = key;
+			addrs[n] = addr;
+			n++;
+		}
+	}
+	
+	public boolean isEmpty() {
+		return root == 0;
+	}
+	
+	public void compact() throws IOException {
+		//moves every node into one run at the start of the file, the internal nodes level by level and then the leaves in key order,
+		//and cuts the file after them, so the file shrinks to what is in use and a scan reads the leaves one after another
+		//a concurrent tree is latched whole meanwhile, and a crash part way through leaves the file unusable
+		if(!openSnapshots.isEmpty()) throw new IllegalStateException("compact would move nodes open snapshots hold");
+		Crab crab = new Crab();
+		try {
+			truncate(relocate(crab));
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	long relocate() throws IOException {
+		//the moving half of compact, DBTable logs the moves before it cuts the file
+		Crab crab = new Crab();
+		try {
+			return relocate(crab);
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private long relocate(Crab crab) throws IOException {
+		//returns the length of the file the nodes take once moved
+		if(root == 0) {
+			space.clear();
+			return HEADER;
+		}
+		long nodes[] = new long[64];	//breadth first order, which is where each node goes
+		int n = 0;
+		crab.latch(root);
+		nodes[n++] = root;
+		for(int i = 0; i < n; i++) {
+			Node cur = new Node(nodes[i]);
+			if(cur.count <= 0) break;	//the leaves are all on the last level, so the rest of nodes are leaves too
+			if(n + cur.count + 1 > nodes.length) nodes = Arrays.copyOf(nodes, 2*(n + cur.count + 1));
+			for(int c = 0; c <= cur.count; c++) {
+				crab.latch(cur.children[c]);	//parents are latched before children, as every other operation does
+				nodes[n++] = cur.children[c];
+			}
+		}
+		int to[] = new int[(int) ((pool.length() - HEADER)/nodeSize)];	//new position of the node at each position, -1 where none is in use
+		Arrays.fill(to, -1);
+		for(int i = 0; i < n; i++) to[(int) ((nodes[i] - HEADER)/nodeSize)] = i;
+		space.clear();	//only now that every operation that could still free a node is done
+		FreeSpace.relocate(pool, HEADER, nodeSize, to, page -> {
+			//internal nodes point at their children, leaves only at the next leaf, their other children are rows
+			int count = page.getInt(0);
+			for(int c = count > 0 ? 0 : order-1; c <= (count > 0 ? count : order-1); c++) {
+				long child = page.getLong(childOffset(c));
+				if(child != 0) page.putLong(childOffset(c), HEADER + (long) to[(int) ((child - HEADER)/nodeSize)]*nodeSize);
+			}
+		});
+		root = HEADER;
+		headerChanged();
+		return HEADER + (long) n*nodeSize;
+	}
+	
+	void truncate(long length) throws IOException {
+		//cuts the file after the nodes relocate moved together
+		pool.truncate(length);
+	}
+	
+	void renumber(long first, int size) throws IOException {
+		//points the keys in order at first, first + size, first + 2*size and so on, for DBTable once it has moved its rows into key order
+		if(root == 0) return;
+		long addr = root;
+		for(Node cur = new Node(addr); cur.count > 0; cur = new Node(addr)) addr = cur.children[0];
+		long next = first;
+		while(addr != 0) {
+			ByteBuffer page = pool.pin(addr);
+			int count = -page.getInt(0);
+			for(int i = 0; i < count; i++) {
+				page.putLong(childOffset(i), next);
+				next += size;
+			}
+			long following = page.getLong(childOffset(order-1));
+			pool.unpin(addr, true);
+			addr = following;
+		}
+	}
+
+	private Node splitNode(Node cur, int key, long addr, DirtyNodes dirty) throws IOException {
 		int splitKeys[] = new int[order-1];
 		long splitChildren[] = new long[order];
 		int mid = cur.keys[(order-1)/2]; //getting the middle of the key array, simplifies code post split
@@ -177,17 +603,15 @@ public class BTree {
 			i++;
 			j++;
 		}
-		long r = getFree();
-		removeFromFree();
+		long r = allocateNear(cur.address);
+		count(Metrics.Event.SPLIT);
 		cur.count = i - j;
 		Node newNode = new Node(j, splitKeys, splitChildren, r);
-		newNode.writeNode();
-		cur.writeNode();
 		
 		if(key > mid) {	//ensuring new val is at end of current node and the appropriate smallest node is placed in new node
 			newNode.children[0] = cur.children[cur.count];
 			cur.children[cur.count] = 0;
-			sortedAdd(key, addr, newNode);
+			sortedAdd(key, addr, newNode, dirty);
 			cur.count--;
 		} else if(key > cur.keys[cur.count-1]) {	//key is the new val being sent to the root
 			cur.keys[cur.count] = key;
@@ -195,15 +619,15 @@ public class BTree {
 		} else {	//key < largest key in current node, so it is not the new val
 			newNode.children[0] = cur.children[cur.count];
 			cur.children[cur.count] = 0;
-			sortedAdd(key, addr, cur);
+			sortedAdd(key, addr, cur, dirty);
 			cur.count--;
 		}
-		newNode.writeNode();
-		cur.writeNode();
+		dirty.add(newNode);
+		dirty.add(cur);
 		return newNode;
 	}
 
-	private Node splitLeaf(Node cur, int key, long addr) throws IOException {
+	private Node splitLeaf(Node cur, int key, long addr, DirtyNodes dirty) throws IOException {
 		//cur will always be full
 		int splitKeys[] = new int[order-1];
 		long splitChildren[] = new long[order];
@@ -221,149 +645,387 @@ public class BTree {
 			j++;
 		}
 		splitChildren[i] = cur.children[i];	//moving reference to next node to new node
-		long r = getFree();
-		removeFromFree();
+		long r = allocateNear(cur.address);
+		count(Metrics.Event.SPLIT);
 		cur.children[i] = r;	//putting reference to new node into current node
 		cur.count = -1*(i - j);
 		Node newNode = new Node(-1*j, splitKeys, splitChildren, r);
-		newNode.writeNode();
-		cur.writeNode();
-		if(key < mid) sortedAdd(key, addr, cur);	//adding new value to node dependant on where node was split
-		else sortedAdd(key, addr, newNode);
+		if(key < mid) sortedAdd(key, addr, cur, dirty);	//adding new value to node dependant on where node was split
+		else sortedAdd(key, addr, newNode, dirty);
+		dirty.add(newNode);
+		dirty.add(cur);
 		return newNode;
 	}
 	
-	private Stack<Long> getPathTo(int key, boolean insert) throws IOException {
-		Stack<Long> path = new Stack<>();	//keeps track of path to search pointer
-		Node temp = new Node(root);	
-		path.push(root);
-		boolean searching = true;
-		int i;
-		while(searching) {	//while searching for node
-			i = 0;
-			while(i < Math.abs(temp.count) && temp.keys[i] <= key) {
-				if(temp.keys[i] == key && insert && temp.count < 0) return null;	//key already exists and method is called from insert
-				i++;
+	private LongList writePath(int key, boolean insert, Crab crab) throws IOException {
+		//latches the nodes from the root to the leaf that would hold key, reading each where it lies in its page
+		//a node that cannot split (insert) or underflow (remove) stops changes from climbing past it, so everything above it is let go
+		LongList path = new LongList(8);	//nodes that may still change, leaf last
+		long addr = root;
+		while(true) {
+			crab.latch(addr);
+			ByteBuffer page = pool.pin(addr);
+			int count = page.getInt(0);
+			if(insert ? Math.abs(count) < order-1 : Math.abs(count) > (addr == root ? 1 : (order-1)/2)) {
+				crab.releaseAbove();
+				path.clear();
+			}
+			path.add(addr);
+			if(count <= 0) {
+				pool.unpin(addr, false);
+				return path;
 			}
-			if(temp.count < 0) {
-				searching = false;
-			} else if(temp.count > 0) {
-				path.push(temp.children[i]);
-				temp = new Node(temp.children[i]);
+			int c = childIndex(page, count, key);
+			if(c < count) crab.upper(page.getInt(keyOffset(c)));
+			long child = page.getLong(childOffset(c));
+			pool.unpin(addr, false);
+			addr = child;
+		}
+	}
+	
+	private LongList leafPath(int key, boolean insert, Crab crab) throws IOException {
+		//the leaf that would hold key, latched exclusively in crab, if it takes key (insert) or loses it (remove) without a split, borrow or merge
+		//null if it does not or the tree is empty, nothing is latched then once crab is released and the caller goes the way of writePath
+		//the nodes above are latched shared two at a time as a search does, and the leaf's parent (the root lock for a leaf root) is kept
+		//until the leaf is latched, so the leaf cannot be split, merged or freed in between
+		ReentrantReadWriteLock.ReadLock rootLock = latches == null ? null : rootLatch.readLock();
+		if(rootLock != null) rootLock.lock();
+		long parent = 0;	//node above addr latched shared, 0 while the root lock stands for it
+		long addr = root;
+		boolean shared = false;	//addr is latched shared
+		try {
+			if(addr == 0) return null;
+			if(latches != null) latches.acquire(addr, false);
+			shared = true;
+			while(true) {
+				ByteBuffer page = pool.pin(addr);
+				int count = page.getInt(0);
+				if(count <= 0) {
+					pool.unpin(addr, false);
+					if(latches != null) latches.release(addr, false);
+					shared = false;
+					crab.latch(addr);
+					count = -pool.pin(addr).getInt(0);	//others may have changed the leaf in between
+					pool.unpin(addr, false);
+					if(insert ? count >= order-1 : count <= (addr == root ? 1 : (order-1)/2)) return null;
+					LongList path = new LongList(1);
+					path.add(addr);
+					return path;
+				}
+				int c = childIndex(page, count, key);
+				if(c < count) crab.upper(page.getInt(keyOffset(c)));
+				long child = page.getLong(childOffset(c));
+				pool.unpin(addr, false);
+				if(latches != null) {
+					latches.acquire(child, false);
+					if(parent != 0) latches.release(parent, false);
+				}
+				if(rootLock != null && parent == 0) {
+					rootLock.unlock();
+					rootLock = null;
+				}
+				parent = addr;
+				addr = child;
 			}
+		} finally {
+			if(latches != null) {
+				if(shared) latches.release(addr, false);
+				if(parent != 0) latches.release(parent, false);
+			}
+			if(rootLock != null) rootLock.unlock();
 		}
-		return path;
 	}
 
 	public long remove(int key) throws IOException {
+		//returns the address related to key or 0 if key is not in the tree
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(latches != null) {
+				//a leaf that stays at least half full is reached latching only it exclusively
+				Crab crab = new Crab(false);
+				try {
+					LongList path = leafPath(key, false, crab);
+					if(path != null) return removeAt(path, key, crab);
+				} finally {
+					crab.releaseAll();
+				}
+			}
+			return removeLocked(key);
+		} finally {
+			if(m != null) m.end(Metrics.Op.REMOVE, start);
+		}
+	}
+	
+	private long removeLocked(int key) throws IOException {
+		//remove that latches exclusively from the root down, for a borrow or merge
+		Crab crab = new Crab();
+		try {
+			return remove(key, crab);
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private long remove(int key, Crab crab) throws IOException {
+		if(root == 0) return 0;	//tree is empty
+		return removeAt(writePath(key, false, crab), key, crab);
+	}
+	
+	private long removeAt(LongList path, int key, Crab crab) throws IOException {
+		//path <- latched nodes down to the leaf for key, from writePath
+		//a leaf that stays at least half full loses the key in its page, only a borrow or merge builds nodes
 		long keyAddr;
-		boolean tooSmall = false;
-		Stack<Long> path = getPathTo(key, false);
-		Node cur = new Node(path.pop());
-
-		int i = 0;	//checking to see if key is in node
-		while(i < Math.abs(cur.count) && cur.keys[i] != key) i++;
-		if(i == Math.abs(cur.count)) return 0;	//key is not in node
+		int minKeys = (order-1)/2;
+		long r = path.removeLast();
+		ByteBuffer page = pool.pin(r);
+		int count = -page.getInt(0);
+		int i = leafIndex(page, count, key);	//checking to see if key is in node
+		if(i < 0 || (r == root ? count > 1 : count > minKeys)) {
+			keyAddr = i < 0 ? 0 : leafRemove(r, page, count, i);
+			pool.unpin(r, i >= 0);
+			return keyAddr;
+		}
+		pool.unpin(r, false);
+		
+		Node cur = new Node(r);
 		keyAddr = cur.children[i];
-		removeVal(key, cur);
-		if(Math.abs(cur.count) < (order-1)/2) tooSmall = true;
+		DirtyNodes dirty = new DirtyNodes();
+		removeVal(key, cur, dirty);
+		boolean tooSmall = cur.address == root ? cur.count == 0 : Math.abs(cur.count) < minKeys;
+		boolean leaf = true;	//cur is still the leaf the key was removed from
 
 		Node child;
-		while(!path.empty() && tooSmall) {
+		while(!path.isEmpty() && tooSmall) {
 			child = cur;
-			cur = new Node(path.pop());
+			cur = new Node(path.removeLast());
+			leaf = false;
 			int loc = getIndex(child.address, cur);	//loc <- index of child in cur
-			Node neighbor;
-			boolean right = false; //right <- true if neighbor is right neighbor of child
-			if(loc == 0) {
-				neighbor = new Node(cur.children[loc+1]);
-				right = true;
-			} else {
-				neighbor = new Node(cur.children[loc-1]);
-				loc--;	//setting loc to index of key in between neighbor and child
-			}
-			if(Math.abs(neighbor.count) > (order-1)/2) {
-				//borrow
-				Node rightChild = borrowVal(child, neighbor, right);
-				if(child.count < 0) cur.keys[loc] = rightChild.keys[0];
-				else swapVals(cur, child, right, loc);
+			boolean right = loc == 0; //right <- true if neighbor is right neighbor of child
+			if(!right) loc--;	//setting loc to index of key in between neighbor and child
+			long neighborAddr = cur.children[right ? 1 : loc];
+			crab.latch(neighborAddr);
+			Node neighbor = new Node(neighborAddr);
+			boolean leafLevel = neighbor.count < 0;	//child may be down to 0 keys, which reads the same for leaves and internal nodes
+			if(Math.abs(neighbor.count) > minKeys) {
+				borrowVal(cur, child, neighbor, right, loc, leafLevel, dirty);
 				tooSmall = false;
 			} else {
-				//merge
-				mergeNodes(cur, child, neighbor, right);
-				if(right) staticRemoveVal(cur.keys[loc], cur);
-				else removeVal(cur.keys[loc], cur);
-				if(cur.count >= (order-1)/2 || (cur.address == root && cur.count > 0)) tooSmall = false;
+				//merge, the right node of the pair always goes into the left one so the leaf before them keeps a valid next reference
+				if(right) mergeNodes(cur, child, neighbor, loc, leafLevel, dirty);
+				else mergeNodes(cur, neighbor, child, loc, leafLevel, dirty);
+				tooSmall = cur.address == root ? cur.count == 0 : cur.count < minKeys;
 			}
-			cur.writeNode();
 		}
 		
-		if(tooSmall) {
-			root = cur.children[0];
-			f.seek(0);
-			f.writeLong(root);
-			addToFree(cur.address);
+		if(tooSmall) {	//root has run out of keys
+			root = leaf ? 0 : cur.children[0];
+			headerChanged();
+			dirty.release(cur.address);
 		}
+		dirty.flush();
 		return keyAddr;
 	}
 
-	private void mergeNodes(Node cur, Node child, Node neighbor, boolean right) throws IOException {
-		//child being merged into neighbor
-		int childCount = Math.abs(child.count);
-		int loc = getIndex(child.address, cur);
-		if(loc != 0) loc--;	//loc <- index of key in between nodes
-		if(child.count > 0)	//placing key from root into child before merging
-			addKey(cur.keys[loc], child);
-		else if(!right)	//placing reference to next leaf node if merging left
-			neighbor.children[order-1] = child.children[order-1];
-		for(int i = 0; i < childCount; i++) {
-			if(right) staticSortedAdd(child.keys[i], child.children[i], neighbor);
-			else sortedAdd(child.keys[i], child.children[i], neighbor);
-		}
-		neighbor.writeNode();
+	public boolean[] insertAll(int keys[], long addrs[]) throws IOException {
+		//inserts each key with the address at the same index, true where the key was new
+		//pairs go in key order and every pair that fits in a leaf is added with one write of it, a full leaf is split as in insert
+		//a key repeated in keys is inserted once, for its first occurrence
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(keys.length != addrs.length) throw new IllegalArgumentException("keys and addrs differ in length");
+			boolean inserted[] = new boolean[keys.length];
+			long sorted[] = sortedOrder(keys);
+			beginBatch();
+			try {
+				int i = 0;
+				while(i < sorted.length) i = insertRun(keys, addrs, sorted, i, inserted);
+			} finally {
+				endBatch();
+			}
+			return inserted;
+		} finally {
+			if(m != null) m.end(Metrics.Op.INSERT_BATCH, start);
+		}
+	}
+	
+	private int insertRun(int keys[], long addrs[], long sorted[], int from, boolean inserted[]) throws IOException {
+		//inserts sorted[from] and the pairs after it bound for the same leaf, returns the index of the first pair left
+		int first = (int) sorted[from];
+		if(from > 0 && keys[(int) sorted[from-1]] == keys[first]) return from + 1;
+		Crab crab = new Crab(false);	//only the leaf is latched, a full leaf or an empty tree takes the first pair the way insert does
+		try {
+			LongList path = leafPath(keys[first], true, crab);
+			if(path == null) {
+				crab.releaseAll();
+				inserted[first] = insertLocked(keys[first], addrs[first]);
+				return from + 1;
+			}
+			Node leaf = new Node(path.last());
+			int count = Math.abs(leaf.count);
+			int run[] = new int[order-1-count];	//indices into keys of the pairs going into leaf
+			int n = 0;
+			int i = from;
+			for(; i < sorted.length && n < run.length; i++) {
+				int at = (int) sorted[i];
+				if(!crab.fits(keys[at])) break;
+				if(i > from && keys[(int) sorted[i-1]] == keys[at]) continue;
+				if(leafIndex(leaf, keys[at]) >= 0) continue;
+				run[n++] = at;
+				inserted[at] = true;
+			}
+			//merges the run into the leaf from the back so nothing is overwritten before it is moved
+			int k = count + n;
+			leaf.count = -k;
+			for(int a = count - 1, b = n - 1; b >= 0; ) {
+				k--;
+				if(a >= 0 && leaf.keys[a] > keys[run[b]]) {
+					leaf.keys[k] = leaf.keys[a];
+					leaf.children[k] = leaf.children[a--];
+				} else {
+					leaf.keys[k] = keys[run[b]];
+					leaf.children[k] = addrs[run[b--]];
+				}
+			}
+			if(n > 0) leaf.writeNode();
+			return i;
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	public long[] removeAll(int keys[]) throws IOException {
+		//removes every key, returning the address each was related to or 0 where it was not in the tree
+		//keys go in order and every key a leaf can lose without underflowing is removed with one write of it
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			long removed[] = new long[keys.length];
+			long sorted[] = sortedOrder(keys);
+			beginBatch();
+			try {
+				int i = 0;
+				while(i < sorted.length) i = removeRun(keys, sorted, i, removed);
+			} finally {
+				endBatch();
+			}
+			return removed;
+		} finally {
+			if(m != null) m.end(Metrics.Op.REMOVE_BATCH, start);
+		}
+	}
+	
+	private int removeRun(int keys[], long sorted[], int from, long removed[]) throws IOException {
+		//removes sorted[from] and the keys after it in the same leaf, returns the index of the first key left
+		int first = (int) sorted[from];
+		if(from > 0 && keys[(int) sorted[from-1]] == keys[first]) return from + 1;
+		Crab crab = new Crab(false);	//only the leaf is latched, a leaf with no key to spare loses the first key the way remove does
+		try {
+			LongList path = leafPath(keys[first], false, crab);
+			if(path == null) {
+				crab.releaseAll();
+				removed[first] = removeLocked(keys[first]);
+				return from + 1;
+			}
+			Node leaf = new Node(path.last());
+			int count = Math.abs(leaf.count);
+			int spare = count - (leaf.address == root ? 1 : (order-1)/2);	//keys the leaf can lose before it needs a neighbor
+			boolean gone[] = new boolean[count];
+			int n = 0;
+			int i = from;
+			for(; i < sorted.length && n < spare; i++) {
+				int at = (int) sorted[i];
+				if(!crab.fits(keys[at])) break;
+				if(i > from && keys[(int) sorted[i-1]] == keys[at]) continue;
+				int j = leafIndex(leaf, keys[at]);
+				if(j < 0) continue;
+				removed[at] = leaf.children[j];
+				gone[j] = true;
+				n++;
+			}
+			if(n == 0) return i;
+			int k = 0;
+			for(int j = 0; j < count; j++) {
+				if(gone[j]) continue;
+				leaf.keys[k] = leaf.keys[j];
+				leaf.children[k++] = leaf.children[j];
+			}
+			for(; k < count; k++) {
+				leaf.keys[k] = 0;
+				leaf.children[k] = 0;
+			}
+			leaf.count = -(count - n);
+			leaf.writeNode();
+			return i;
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private static long[] sortedOrder(int keys[]) {
+		//each key in the high half and its index in the low half, so sorting orders by key and equal keys stay in input order
+		long sorted[] = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) sorted[i] = (long) keys[i] << 32 | i;
+		Arrays.sort(sorted);
+		return sorted;
 	}
 
-	private Node borrowVal(Node child, Node neighbor, boolean right) throws IOException {
-		//Shifting val from neighbor into child
-		//returns rightmost node
-		int key;
-		long addr;
-		Node toReturn;
-		int buf = 0;
-		if(child.count > 0) buf = 1;
-		int neighborCount = Math.abs(neighbor.count);
-		if(right) {
-			key = neighbor.keys[0];
-			addr = neighbor.children[0];
-			staticRemoveVal(key, neighbor);
-			sortedAdd(key, addr, child);
-			toReturn = neighbor;
+	private void mergeNodes(Node cur, Node left, Node right, int loc, boolean leaf, DirtyNodes dirty) throws IOException {
+		//moves every entry of right to the end of left, then drops right and the key between them from cur
+		//loc <- index of the key in cur in between left and right
+		int leftCount = Math.abs(left.count);
+		int rightCount = Math.abs(right.count);
+		if(leaf) {
+			System.arraycopy(right.keys, 0, left.keys, leftCount, rightCount);
+			System.arraycopy(right.children, 0, left.children, leftCount, rightCount);
+			left.children[order-1] = right.children[order-1];	//left takes over the next leaf reference of right
+			left.count = -(leftCount + rightCount);
 		} else {
-			key = neighbor.keys[neighborCount-1];
-			addr = neighbor.children[neighborCount-1+buf];
-			removeVal(key, neighbor);
-			staticSortedAdd(key, addr, child);
-			toReturn = child;
+			left.keys[leftCount] = cur.keys[loc];	//key from cur separates the children of left from those of right
+			System.arraycopy(right.keys, 0, left.keys, leftCount+1, rightCount);
+			System.arraycopy(right.children, 0, left.children, leftCount+1, rightCount+1);
+			left.count = leftCount + rightCount + 1;
 		}
-		child.writeNode();	//updates nodes in file
-		neighbor.writeNode();
-		return toReturn;	//returns new key for cur
+		dirty.add(left);
+		removeVal(cur.keys[loc], cur, dirty);
+		dirty.release(right.address);
+		count(Metrics.Event.MERGE);
 	}
 
-	private void swapVals(Node cur, Node child, boolean right, int loc) throws IOException {
-		int tempKey = cur.keys[loc];
+	private void borrowVal(Node cur, Node child, Node neighbor, boolean right, int loc, boolean leaf, DirtyNodes dirty) throws IOException {
+		//moves the entry of neighbor closest to child into child and fixes the key at loc in cur that separates them
+		//internal nodes rotate through cur, the separator comes down into child and the neighbor's key goes up
+		int childCount = Math.abs(child.count);
+		int neighborCount = Math.abs(neighbor.count);
+		int buf = leaf ? 0 : 1;	//internal nodes hold one more child than keys
 		if(right) {
-			cur.keys[loc] = child.keys[child.count-1];
-			child.keys[child.count-1] = tempKey;
+			child.keys[childCount] = leaf ? neighbor.keys[0] : cur.keys[loc];
+			child.children[childCount+buf] = neighbor.children[0];
+			if(!leaf) cur.keys[loc] = neighbor.keys[0];
+			System.arraycopy(neighbor.keys, 1, neighbor.keys, 0, neighborCount-1);
+			System.arraycopy(neighbor.children, 1, neighbor.children, 0, neighborCount-1+buf);
+			neighbor.keys[neighborCount-1] = 0;
+			neighbor.children[neighborCount-1+buf] = 0;
+			if(leaf) cur.keys[loc] = neighbor.keys[0];
 		} else {
-			cur.keys[loc] = child.keys[0];
-			child.keys[0] = tempKey;
+			System.arraycopy(child.keys, 0, child.keys, 1, childCount);
+			System.arraycopy(child.children, 0, child.children, 1, childCount+buf);
+			child.keys[0] = leaf ? neighbor.keys[neighborCount-1] : cur.keys[loc];
+			child.children[0] = neighbor.children[neighborCount-1+buf];
+			cur.keys[loc] = neighbor.keys[neighborCount-1];
+			neighbor.keys[neighborCount-1] = 0;
+			neighbor.children[neighborCount-1+buf] = 0;
 		}
-		cur.writeNode();
-		child.writeNode();
+		child.count = leaf ? -(childCount+1) : childCount+1;
+		neighbor.count = leaf ? -(neighborCount-1) : neighborCount-1;
+		dirty.add(child);
+		dirty.add(neighbor);
+		dirty.add(cur);
+		count(Metrics.Event.BORROW);
 	}
 
-	private void sortedAdd(int key, long addr, Node cur) throws IOException {
+	private void sortedAdd(int key, long addr, Node cur, DirtyNodes dirty) {
 		int buf = 0;
 		if(cur.count > 0) buf = 1;	//creating buffer for internal nodes
 		int i = Math.abs(cur.count);
@@ -376,40 +1038,40 @@ public class BTree {
 		cur.children[i+buf] = addr;
 		if(cur.count < 0) cur.count--;
 		else cur.count++;
-		cur.writeNode();
+		dirty.add(cur);
 	}
 
-	private void staticSortedAdd(int key, long addr, Node cur) throws IOException {
-		//Just like staticRemoveKey, staticSortedAdd functions as a sortedAdd with no buffer for internal nodes
-		int i = Math.abs(cur.count);
-		if(cur.count > 0) cur.children[Math.abs(cur.count)+1] = cur.children[Math.abs(cur.count)];
-		while(i > 0 && cur.keys[i-1] > key) {	//adjusting array to insert key and addr
-			cur.keys[i] = cur.keys[i-1];
-			cur.children[i] = cur.children[i-1];
-			i--;
+
+	private void leafAdd(long r, ByteBuffer page, int count, int key, long addr) {
+		//sortedAdd on a leaf with room, in its pinned page
+		if(!openSnapshots.isEmpty()) preserve(r, page);
+		int i = count;
+		for(; i > 0 && page.getInt(keyOffset(i-1)) > key; i--) {
+			page.putInt(keyOffset(i), page.getInt(keyOffset(i-1)));
+			page.putLong(childOffset(i), page.getLong(childOffset(i-1)));
 		}
-		cur.keys[i] = key;	//inserting key and addr into array
-		cur.children[i] = addr;
-		if(cur.count < 0) cur.count--;
-		else cur.count++;
-		cur.writeNode();
+		page.putInt(keyOffset(i), key);
+		page.putLong(childOffset(i), addr);
+		page.putInt(0, -(count + 1));
+		count(Metrics.Event.WRITE);
 	}
-
-	private void addKey(int key, Node cur) throws IOException {
-		//Adds only a key
-		int i = Math.abs(cur.count);
-		if(cur.count > 0) cur.keys[i+1] = cur.keys[i];
-		while(i < 0 && cur.keys[i-1] > key) {
-			cur.keys[i] = cur.keys[i-1];
-			i--;
+	
+	private long leafRemove(long r, ByteBuffer page, int count, int i) {
+		//removes entry i of a leaf in its pinned page, returns the address it held
+		if(!openSnapshots.isEmpty()) preserve(r, page);
+		long addr = page.getLong(childOffset(i));
+		for(; i < count-1; i++) {
+			page.putInt(keyOffset(i), page.getInt(keyOffset(i+1)));
+			page.putLong(childOffset(i), page.getLong(childOffset(i+1)));
 		}
-		cur.keys[i] = key;
-		if(cur.count < 0) cur.count--;
-		else cur.count++;
-		cur.writeNode();
+		page.putInt(keyOffset(count-1), 0);
+		page.putLong(childOffset(count-1), 0);
+		page.putInt(0, -(count - 1));
+		count(Metrics.Event.WRITE);
+		return addr;
 	}
-
-	private void removeVal(int key, Node cur) throws IOException {
+	
+	private void removeVal(int key, Node cur, DirtyNodes dirty) {
 		//Removes key and child related to key
 		int i = 0;
 		int buf = 0;
@@ -425,28 +1087,9 @@ public class BTree {
 		cur.children[i+buf] = 0;
 		if(cur.count < 0) cur.count++;
 		else cur.count--;
-		cur.writeNode();
+		dirty.add(cur);
 	}
 
-	private void staticRemoveVal(int key, Node cur) throws IOException {
-		//Unlike standard removeKey, staticRemoveKey has no buffer for internal nodes
-		int i = 0;
-		while(i < Math.abs(cur.count)-1) {
-			if(cur.keys[i] >= key) {
-				cur.keys[i] = cur.keys[i+1];
-				cur.children[i] = cur.children[i+1];
-			}
-			i++;
-		}
-		cur.keys[i] = 0;
-		if(cur.count < 0) cur.count++;
-		else {
-			cur.children[i++] = cur.children[i];
-			cur.count--;
-		}
-		cur.children[i] = 0;
-		cur.writeNode();
-	}
 
 	private int getIndex(long addr, Node cur) {
 		for(int i = 0; i < cur.children.length; i++) {
@@ -456,80 +1099,794 @@ public class BTree {
 	}
 	
 	public long search(int key) throws IOException {
-		return search(key, root);
+		//returns the address related to key or 0 if key is not in the tree
+		return searchOrDefault(key, 0);
 	}
 	
-	private long search(int key, long addr) throws IOException {
-		Node temp = new Node(addr);
-		int i = 0;
-		while(i < temp.keys.length) {
-			if(key == temp.keys[i] && temp.count < 0) return temp.children[i];	//at search value and at leaf
-			else if(key < temp.keys[i]) return search(key, temp.children[i]);
-			else if(temp.keys[i] == 0 && key > temp.keys[i-1]) return search(key, temp.children[i]);	//node with key is in last child reference
-			i++;
+	public long searchOrDefault(int key, long dflt) throws IOException {
+		//reads keys straight from the cached pages instead of building nodes, so a lookup creates no objects
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		long addr = latchRoot();
+		if(addr == 0) {
+			if(m != null) m.end(Metrics.Op.SEARCH, start);
+			return dflt;
+		}
+		try {
+			while(true) {
+				ByteBuffer page = pool.pin(addr);
+				int count = page.getInt(0);
+				if(count <= 0) {
+					int i = leafIndex(page, -count, key);
+					long found = i < 0 ? dflt : page.getLong(childOffset(i));
+					pool.unpin(addr, false);
+					return found;
+				}
+				long child = page.getLong(childOffset(childIndex(page, count, key)));
+				pool.unpin(addr, false);
+				couple(addr, child);
+				addr = child;
+			}
+		} finally {
+			unlatch(addr);
+			if(m != null) m.end(Metrics.Op.SEARCH, start);
+		}
+	}
+	
+	public long[] searchAll(int keys[]) throws IOException {
+		//addresses related to keys, 0 where a key is not in the tree
+		//the keys are looked up in order in one walk of the tree, so a node on the way to several of them is read once
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			long found[] = new long[keys.length];
+			long sorted[] = sortedOrder(keys);
+			long addr = latchRoot();
+			if(addr == 0) return found;
+			try {
+				searchAll(addr, keys, sorted, 0, sorted.length, found);
+			} finally {
+				unlatch(addr);
+			}
+			return found;
+		} finally {
+			if(m != null) m.end(Metrics.Op.SEARCH_BATCH, start);
+		}
+	}
+	
+	private void searchAll(long addr, int keys[], long sorted[], int from, int to, long found[]) throws IOException {
+		//looks up the keys of sorted[from, to) below the node at addr, which the caller holds latched
+		int i = from;
+		while(i < to) {
+			ByteBuffer page = pool.pin(addr);
+			int count = page.getInt(0);
+			if(count <= 0) {
+				for(; i < to; i++) {
+					int at = (int) sorted[i];
+					int j = leafIndex(page, -count, keys[at]);
+					if(j >= 0) found[at] = page.getLong(childOffset(j));
+				}
+				pool.unpin(addr, false);
+				return;
+			}
+			int c = childIndex(page, count, keys[(int) sorted[i]]);
+			long child = page.getLong(childOffset(c));
+			int upper = c < count ? page.getInt(keyOffset(c)) : 0;
+			pool.unpin(addr, false);
+			int j = i + 1;
+			while(j < to && (c == count || keys[(int) sorted[j]] < upper)) j++;	//keys sharing the child
+			if(latches != null) latches.acquire(child, false);
+			try {
+				searchAll(child, keys, sorted, i, j, found);
+			} finally {
+				unlatch(child);
+			}
+			i = j;
 		}
-		if(temp.count > 0) return search(key, temp.children[i]);
-		return 0;	//key is not found
 	}
 	
 	public LinkedList<Long> rangeSearch(int low, int high) throws IOException {
+		return rangeSearch(low, true, high, true, false);
+	}
+	
+	public LinkedList<Long> rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//returns the addresses of every key between low and high in ascending key order, or descending order if descending is set
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
 		LinkedList<Long> toReturn = new LinkedList<>();
-		if(root == 0) return toReturn;
-		Node cur = new Node(root);
-		while(cur.count > 0) cur = new Node(cur.children[0]);
-		int i;
-		boolean done = false;
-		while(!done) {
-			i = 0;
-			while(i < Math.abs(cur.count)) {
-				if(cur.keys[i] >= low && cur.keys[i] <= high) toReturn.add(cur.children[i]);
-				i++;
+		Cursor cur = cursor(low, lowInclusive, high, highInclusive, descending);
+		while(cur.hasNext()) toReturn.add(cur.nextLong());
+		if(m != null) m.end(Metrics.Op.RANGE_SEARCH, start);
+		return toReturn;
+	}
+	
+	public LongList rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending, LongList into) throws IOException {
+		//rangeSearch adding the addresses to into and returning it, without boxing them, into may be cleared and reused
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		Cursor cur = cursor(low, lowInclusive, high, highInclusive, descending);
+		while(cur.hasNext()) into.add(cur.nextLong());
+		if(m != null) m.end(Metrics.Op.RANGE_SEARCH, start);
+		return into;
+	}
+	
+	public Cursor cursor() throws IOException {
+		//every address in ascending key order
+		return cursor(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, false);
+	}
+	
+	public Cursor cursor(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		return new Cursor(low, lowInclusive, high, highInclusive, descending, null);
+	}
+	
+	public LongStream stream(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//lazy view of a range, I/O errors while streaming are thrown as UncheckedIOException
+		Cursor cur = cursor(low, lowInclusive, high, highInclusive, descending);
+		return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(cur, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	public int[] separators(int low, int high) throws IOException {
+		//keys of the highest node on the way to low that fall in (low, high], in ascending order, none if low to high lies within one leaf
+		//each is the smallest key its subtree may hold, so they cut the range into runs of whole subtrees for walking in parallel
+		if(low >= high) return new int[0];
+		long addr = latchRoot();
+		if(addr == 0) return new int[0];
+		try {
+			Node cur = new Node(addr);
+			while(cur.count > 0) {
+				int from = childIndex(cur, low);
+				int to = childIndex(cur, high);
+				if(from < to) return Arrays.copyOfRange(cur.keys, from, to);
+				long child = cur.children[from];
+				couple(addr, child);
+				addr = child;
+				cur.load(addr);
 			}
-			if(cur.children[order-1] != 0) cur = new Node(cur.children[order-1]);
-			else done = true;
+			return new int[0];
+		} finally {
+			unlatch(addr);
 		}
-		return toReturn;
 	}
 	
-	private long getFree() throws IOException {
-		//returns head of the free list or file length if free list is empty
-		return free == 0 ? f.length() : free;
+	public class Cursor implements PrimitiveIterator.OfLong {
+		//walks the addresses of a range holding a single leaf in memory, the next leaf is read only when this one runs out
+		//leaves link only to the next leaf, so a descending cursor (or any cursor on a concurrent tree) finds the
+		//neighboring leaf again from the root through the key that separates it from the current one
+		private int low;
+		private int high;
+		private boolean lowInclusive;
+		private boolean highInclusive;
+		private boolean descending;
+		private Node leaf;	//leaf holding the next address, null once the range is exhausted
+		private int i;	//index of the next address in leaf
+		private int lower;	//smallest key leaf may hold, valid if hasLower
+		private int upper;	//keys of leaf are below upper, valid if hasUpper
+		private boolean hasLower;
+		private boolean hasUpper;
+		private Snapshot snap;	//snapshot the cursor reads, null for the tree as it is
+		private Node node;	//every node the cursor reads from the tree is read into this one
+		
+		private Cursor(int l, boolean lInc, int h, boolean hInc, boolean desc, Snapshot s) throws IOException {
+			snap = s;
+			low = l;
+			high = h;
+			lowInclusive = lInc;
+			highInclusive = hInc;
+			descending = desc;
+			Metrics m = metrics;
+			long start = m == null ? 0 : m.start();
+			if(descending) {
+				descend(high, !highInclusive);
+				position(high, highInclusive);
+			} else {
+				descend(low, false);
+				position(low, lowInclusive);
+			}
+			if(m != null) m.end(Metrics.Op.CURSOR_READ, start);
+			settle();
+		}
+		
+		private void descend(int key, boolean below) throws IOException {
+			//reads the leaf that would hold key, or the leaf holding the keys just below key if below is set
+			hasLower = false;
+			hasUpper = false;
+			long addr = snap == null ? latchRoot() : snap.root;
+			if(addr == 0) {
+				leaf = null;
+				return;
+			}
+			try {
+				leaf = read(addr);
+				while(leaf.count > 0) {
+					int c = below ? childIndexBelow(leaf, key) : childIndex(leaf, key);
+					if(c > 0) {
+						lower = leaf.keys[c-1];
+						hasLower = true;
+					}
+					if(c < leaf.count) {
+						upper = leaf.keys[c];
+						hasUpper = true;
+					}
+					long child = leaf.children[c];
+					if(snap == null) couple(addr, child);
+					addr = child;
+					leaf = read(addr);
+				}
+			} finally {
+				if(snap == null) unlatch(addr);
+			}
+		}
+		
+		private Node read(long addr) throws IOException {
+			if(snap != null) return snap.node(addr);
+			if(node == null) node = new Node(addr);
+			else node.load(addr);
+			return node;
+		}
+		
+		private void position(int key, boolean inclusive) {
+			//points i at the first entry of leaf after key in the cursor's direction, key itself included if inclusive
+			if(leaf == null) return;
+			if(descending) {
+				i = Math.abs(leaf.count) - 1;
+				while(i >= 0 && (leaf.keys[i] > key || (leaf.keys[i] == key && !inclusive))) i--;
+			} else {
+				i = 0;
+				while(i < Math.abs(leaf.count) && (leaf.keys[i] < key || (leaf.keys[i] == key && !inclusive))) i++;
+			}
+		}
+		
+		private void settle() throws IOException {
+			//moves across leaves until i is a valid entry, then ends the cursor if that entry is out of range
+			if(descending) {
+				while(leaf != null && i < 0) {
+					Metrics m = metrics;
+					long start = m == null ? 0 : m.start();
+					previousLeaf();
+					if(m != null && leaf != null) m.end(Metrics.Op.CURSOR_READ, start);	//stepping off the end reads nothing
+				}
+				if(leaf != null && belowLow(leaf.keys[i])) leaf = null;
+			} else {
+				while(leaf != null && i >= Math.abs(leaf.count)) {
+					Metrics m = metrics;
+					long start = m == null ? 0 : m.start();
+					nextLeaf();
+					if(m != null && leaf != null) m.end(Metrics.Op.CURSOR_READ, start);
+				}
+				if(leaf != null && aboveHigh(leaf.keys[i])) leaf = null;
+			}
+		}
+		
+		private void nextLeaf() throws IOException {
+			int count = Math.abs(leaf.count);
+			if(latches == null || snap != null) {	//a snapshot never changes, so its links stay good
+				leaf = leaf.children[order-1] == 0 ? null : read(leaf.children[order-1]);
+				i = 0;
+			} else if(!hasUpper) {
+				leaf = null;
+			} else if(count == 0) {
+				descend(upper, false);
+				position(upper, true);
+			} else {
+				//picks up after the last key seen, a merge may have moved later keys into the leaf found
+				int last = leaf.keys[count-1];
+				descend(upper, false);
+				position(last, false);
+			}
+		}
+		
+		private void previousLeaf() throws IOException {
+			int count = Math.abs(leaf.count);
+			if(!hasLower) {
+				leaf = null;
+			} else if(count == 0) {
+				descend(lower, true);
+				position(lower, false);
+			} else {
+				int first = leaf.keys[0];
+				descend(lower, true);
+				position(first, false);
+			}
+		}
+		
+		private boolean belowLow(int key) {
+			return key < low || (key == low && !lowInclusive);
+		}
+		
+		private boolean aboveHigh(int key) {
+			return key > high || (key == high && !highInclusive);
+		}
+		
+		public boolean hasNext() {
+			return leaf != null;
+		}
+		
+		public int peekKey() {
+			//key of the address nextLong will return
+			if(leaf == null) throw new NoSuchElementException();
+			return leaf.keys[i];
+		}
+		
+		public long nextLong() {
+			if(leaf == null) throw new NoSuchElementException();
+			long addr = leaf.children[i];
+			i += descending ? -1 : 1;
+			try {
+				settle();
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return addr;
+		}
+	}
+	
+	private int childIndex(Node cur, int key) {
+		//index of the child of internal node cur whose keys cover key, the number of keys <= key
+		return KEYS.upper(cur.keys, cur.count, key);
+	}
+	
+	private int childIndexBelow(Node cur, int key) {
+		//index of the child of internal node cur holding the keys just below key, the number of keys < key
+		return KEYS.lower(cur.keys, cur.count, key);
+	}
+	
+	private int childIndex(ByteBuffer page, int count, int key) {
+		//childIndex over an encoded internal node
+		return KEYS.upper(page, keyOffset(0), count, key);
+	}
+	
+	private int leafIndex(Node cur, int key) {
+		//index of key in leaf cur or -1 if it is not there
+		return KEYS.find(cur.keys, Math.abs(cur.count), key);
+	}
+	
+	private int leafIndex(ByteBuffer page, int count, int key) {
+		//leafIndex over an encoded leaf holding count keys
+		return KEYS.find(page, keyOffset(0), count, key);
+	}
+	
+	private synchronized long allocate() throws IOException {
+		//lowest free node, or a node reserved at the end of the file if none is free
+		return claim(space.allocate(pool.length()));
+	}
+	
+	private synchronized long allocateNear(long addr) throws IOException {
+		//free node closest after addr, for a node split off from the one at addr
+		return claim(space.allocateNear(addr, pool.length()));
+	}
+	
+	private long claim(long r) throws IOException {
+		if(r == pool.length()) {
+			pool.pin(r);
+			pool.unpin(r, true);	//a dirty node counts toward the length, so the next allocation starts past it
+			count(Metrics.Event.APPEND);
+		} else count(Metrics.Event.FREE_HIT);
+		return r;
+	}
+	
+	private void release(long r) {
+		space.release(r);
+	}
+	
+	private void count(Metrics.Event e) {
+		Metrics m = metrics;
+		if(m != null) m.record(e);
+	}
+	
+	public Metrics enableMetrics(String name) {
+		//starts timing operations and counting node writes, splits, merges and allocations, and registers the counts with JMX as BTree:type=BTree,name=<name>
+		//name <- null to keep the metrics out of JMX
+		//calling it again returns the metrics already running
+		if(metrics == null) {
+			synchronized(this) {
+				if(metrics == null) metrics = new Metrics("BTree", name, new Metrics.Gauges() {
+					public int height() throws IOException {
+						return getHeight();
+					}
+					
+					public double fill() throws IOException {
+						return getFillFactor();
+					}
+					
+					public BufferPool pool() {
+						return getBufferPool();
+					}
+					
+					public int pageSize() {
+						return nodeSize;
+					}
+				});
+			}
+		}
+		return metrics;
+	}
+	
+	public synchronized void disableMetrics() {
+		Metrics m = metrics;
+		metrics = null;
+		if(m != null) m.unregister();
 	}
 	
-	private void removeFromFree() throws IOException {
-		//removes from head of the free list
-		if(free == 0) return;
-		f.seek(free);
-		long next = f.readLong();
-		f.seek(8);
-		f.writeLong(next);
-		free = next;
+	public Metrics getMetrics() {
+		//null while metrics are off
+		return metrics;
 	}
 	
-	private void addToFree(long r) throws IOException {
-		f.seek(8);
-		f.writeLong(r);
-		f.seek(r);
-		f.writeLong(free);
-		free = r;
+	public int getHeight() throws IOException {
+		//levels from the root to the leaves, 0 when the tree is empty
+		int height = 0;
+		for(long addr = root; addr != 0; height++) {
+			ByteBuffer page = pool.pin(addr);
+			int count = page.getInt(0);
+			long child = count > 0 ? page.getLong(childOffset(0)) : 0;
+			pool.unpin(addr, false);
+			addr = child;
+		}
+		return height;
+	}
+	
+	public double getFillFactor() throws IOException {
+		//keys held in the leaves over the keys they have room for, read leaf by leaf without latching, so only a snapshot on a tree in use
+		long addr = root;
+		if(addr == 0) return 0;
+		while(true) {
+			ByteBuffer page = pool.pin(addr);
+			int count = page.getInt(0);
+			long child = count > 0 ? page.getLong(childOffset(0)) : 0;
+			pool.unpin(addr, false);
+			if(count <= 0) break;
+			addr = child;
+		}
+		long keys = 0, leaves = 0;
+		while(addr != 0) {
+			ByteBuffer page = pool.pin(addr);
+			int count = page.getInt(0);
+			long next = page.getLong(childOffset(order-1));
+			pool.unpin(addr, false);
+			if(count > 0) break;	//the leaf was merged away and its node reused since it was linked
+			keys -= count;
+			leaves++;
+			addr = next;
+		}
+		return leaves == 0 ? 0 : (double) keys/(leaves*(order-1));
+	}
+	
+	public TreeStats analyze() throws IOException {
+		//walks every node once, depth first, so the leaves are read in key order, which is file order after compact, and only the path to the current node is held
+		//besides the shape of the tree it checks key order and bounds, count signs, leaf depths and links, and that no node is reached twice, free or lost
+		//a concurrent tree is held still meanwhile, operations started before it are let finish and later ones wait for it
+		Crab crab = new Crab();
+		try {
+			if(latches != null) latches.awaitIdle();
+			Analysis a = new Analysis();
+			a.stats.order = order;
+			a.stats.nodes = (pool.length() - HEADER)/nodeSize;
+			a.reached = new BitSet((int) a.stats.nodes);
+			if(root != 0) {
+				analyze(root, 0, Long.MIN_VALUE, Long.MAX_VALUE, a);
+				if(a.prevLeaf != 0 && a.next != 0) a.stats.problem("last leaf " + a.prevLeaf + " links on to " + a.next);
+			}
+			a.stats.freeNodes = space.count();
+			for(int p = 0; p < a.stats.nodes; p++) {
+				if(!a.reached.get(p) && !space.isFree(HEADER + (long) p*nodeSize)) a.stats.orphans++;
+			}
+			if(a.stats.orphans > 0) a.stats.problem(a.stats.orphans + " nodes are neither reachable nor free");
+			return a.stats;
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	public void verify() throws IOException {
+		//throws if analyze finds anything wrong with the tree
+		TreeStats stats = analyze();
+		if(!stats.isValid()) throw new IOException(stats.getProblemCount() + " problems in the tree, first " + stats.getProblems().get(0));
+	}
+	
+	private static class Analysis {
+		private TreeStats stats = new TreeStats();
+		private BitSet reached;	//bit i is set once the node at position i has been visited, one bit per node is all that grows with the file
+		private int leafDepth = -1;
+		private long prevLeaf;	//last leaf visited, 0 before the first
+		private long next;	//next leaf prevLeaf links to
+	}
+	
+	private void analyze(long addr, int depth, long low, long high, Analysis a) throws IOException {
+		//low, high <- every key under addr must be in [low, high), as the separators above it say
+		TreeStats stats = a.stats;
+		if(addr < HEADER || addr >= pool.length() || (addr - HEADER) % nodeSize != 0) {
+			stats.problem("reference to " + addr + ", which is not a node");
+			return;
+		}
+		int p = (int) ((addr - HEADER)/nodeSize);
+		if(a.reached.get(p)) {
+			stats.problem("node " + addr + " is reached twice");
+			return;
+		}
+		a.reached.set(p);
+		if(space.isFree(addr)) stats.problem("node " + addr + " is in use but marked free");
+		stats.level(depth);
+		Node cur = new Node(addr);
+		int n = Math.abs(cur.count);
+		if(n > order-1) {
+			stats.problem("node " + addr + " has count " + cur.count + ", more keys than fit");
+			return;
+		}
+		if(addr != root && n < (order-1)/2) stats.underfull++;
+		for(int i = 0; i < n; i++) {
+			if(i > 0 && cur.keys[i] <= cur.keys[i-1]) stats.problem("node " + addr + " has key " + cur.keys[i] + " after " + cur.keys[i-1]);
+			if(cur.keys[i] < low || cur.keys[i] >= high) stats.problem("node " + addr + " has key " + cur.keys[i] + " outside [" + low + ", " + high + ")");
+		}
+		if(cur.count > 0) {
+			stats.internalKeys += n;
+			for(int c = 0; c <= n; c++) analyze(cur.children[c], depth + 1, c == 0 ? low : cur.keys[c-1], c == n ? high : cur.keys[c], a);
+			return;
+		}
+		if(n == 0) stats.problem("leaf " + addr + " is empty");
+		if(a.leafDepth < 0) a.leafDepth = depth;
+		else if(depth != a.leafDepth) stats.problem("leaf " + addr + " is at depth " + depth + ", others at " + a.leafDepth);
+		for(int i = 0; i < n; i++) {
+			if(cur.children[i] == 0) stats.problem("leaf " + addr + " has no address for key " + cur.keys[i]);
+		}
+		if(a.prevLeaf != 0) {
+			if(a.next != addr) stats.problem("leaf " + a.prevLeaf + " links to " + a.next + " instead of the next leaf " + addr);
+			if(addr != a.prevLeaf + nodeSize) stats.leafJumps++;
+			if(addr < a.prevLeaf) stats.backwardLinks++;
+		}
+		stats.keys += n;
+		a.prevLeaf = addr;
+		a.next = cur.children[order-1];
+	}
+	
+	public Snapshot snapshot() throws IOException {
+		//the tree as it is now, which later operations do not change, read without latches until closed
+		//a concurrent tree lets running operations finish first, so none is half seen, and holds new ones only that long
+		//on a tree that is not concurrent it must be called from the thread making changes, the snapshot itself may be read from any thread
+		if(latches == null) return new Snapshot();
+		Crab crab = new Crab();
+		try {
+			latches.awaitIdle();
+			return new Snapshot();
+		} finally {
+			crab.releaseAll();
+		}
+	}
+	
+	private static class Version {
+		//a node as it was up to the end of epoch, kept when it was first changed after the snapshot of that epoch was taken
+		private final long epoch;
+		private final ByteBuffer image;
+		private final Version older;	//image kept before this one, for older snapshots
+		
+		private Version(long e, ByteBuffer i, Version o) {
+			epoch = e;
+			image = i;
+			older = o;
+		}
+	}
+	
+	private void preserve(long r, ByteBuffer page) {
+		//keeps the node at r as the newest snapshot sees it, before its first change since that snapshot
+		//r <- node about to be written, page <- its page, not yet changed
+		if(r >= snapshotLength) return;	//appended after every snapshot
+		long e = epoch;
+		versions.compute(r, (a, head) -> {
+			if(openSnapshots.isEmpty() || head != null && head.epoch == e) return head;
+			ByteBuffer image = ByteBuffer.allocate(nodeSize);
+			image.put(0, page, 0, nodeSize);
+			return new Version(e, image, head);
+		});
+	}
+	
+	private Version prune(Version v) {
+		//drops the images no open snapshot asks for, an image serves the snapshots taken after the image before it and no later than its own epoch
+		if(v == null) return null;
+		Version older = prune(v.older);
+		Long first = openSnapshots.ceiling(v.older == null ? 0 : v.older.epoch + 1);
+		if(first == null || first > v.epoch) return older;
+		return older == v.older ? v : new Version(v.epoch, v.image, older);
+	}
+	
+	public class Snapshot implements AutoCloseable {
+		//a consistent view of the tree, each node is read from the image kept for the snapshot if the node has changed since, otherwise from the file
+		//nodes it holds are kept in memory as they change, until it is closed
+		private final long epoch;
+		private final long root;
+		private volatile boolean closed;
+		
+		private Snapshot() {
+			synchronized(BTree.this) {
+				snapshotLength = pool.length();
+				epoch = BTree.this.epoch + 1;
+				root = BTree.this.root;
+				openSnapshots.add(epoch);
+				BTree.this.epoch = epoch;
+			}
+		}
+		
+		private Node node(long addr) throws IOException {
+			if(closed) throw new IllegalStateException("snapshot is closed");
+			ByteBuffer image = image(addr);
+			if(image != null) return new Node(image, addr);
+			Node cur = new Node(addr);
+			image = image(addr);	//the node changed while it was being read, its image was kept before the change began
+			return image == null ? cur : new Node(image, addr);
+		}
+		
+		private ByteBuffer image(long addr) {
+			//the oldest image kept no earlier than this snapshot, null if the node has not changed since
+			ByteBuffer found = null;
+			for(Version v = versions.get(addr); v != null && v.epoch >= epoch; v = v.older) found = v.image;
+			return found;
+		}
+		
+		public long search(int key) throws IOException {
+			//returns the address related to key when the snapshot was taken or 0 if key was not in the tree
+			if(root == 0) return 0;
+			Node cur = node(root);
+			while(cur.count > 0) cur = node(cur.children[childIndex(cur, key)]);
+			int i = leafIndex(cur, key);
+			return i < 0 ? 0 : cur.children[i];
+		}
+		
+		public LinkedList<Long> rangeSearch(int low, int high) throws IOException {
+			return rangeSearch(low, true, high, true, false);
+		}
+		
+		public LinkedList<Long> rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+			LinkedList<Long> toReturn = new LinkedList<>();
+			Cursor cur = cursor(low, lowInclusive, high, highInclusive, descending);
+			while(cur.hasNext()) toReturn.add(cur.nextLong());
+			return toReturn;
+		}
+		
+		public Cursor cursor() throws IOException {
+			return cursor(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, false);
+		}
+		
+		public Cursor cursor(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+			return new Cursor(low, lowInclusive, high, highInclusive, descending, this);
+		}
+		
+		public void close() {
+			//lets go of the images only this snapshot still needed
+			if(closed) return;
+			closed = true;
+			openSnapshots.remove(epoch);
+			for(Long addr : versions.keySet()) versions.computeIfPresent(addr, (a, head) -> prune(head));
+		}
+	}
+	
+	public int getFreeNodes() {
+		//nodes inside the file that are not in use, what compact would give back
+		return space.count();
+	}
+	
+	private synchronized void headerChanged() throws IOException {
+		//root moved, the header is written now or once the running batches are done
+		if(batches > 0) headerDirty = true;
+		else writeHeader();
+	}
+	
+	private synchronized void beginBatch() {
+		batches++;
+	}
+	
+	private synchronized void endBatch() throws IOException {
+		if(--batches == 0 && headerDirty) {
+			headerDirty = false;
+			writeHeader();
+		}
+	}
+	
+	private synchronized void writeHeader() throws IOException {
+		//positional write, so it never moves the file pointer under another thread
+		//free space is only tracked in memory while the tree is open, so the free field stays 0 until close
+		ByteBuffer header = header(0);
+		if(pool instanceof LoggedStore) ((LoggedStore) pool).writeHeader(header);
+		else while(header.hasRemaining()) f.getChannel().write(header, header.position());
+	}
+	
+	private ByteBuffer header(long free) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(blockSize);
+		header.putLong(root);
+		header.putLong(free);
+		header.flip();
+		return header;
+	}
+	
+	private class Crab {
+		//exclusive latches held by one insert or remove, in the order they were taken
+		//the tree's root lock is held exclusively too until a node below it is safe, unless only the leaf is to be latched
+		//nothing is latched when the tree is not concurrent
+		private long held[];
+		private int n;
+		private boolean rootHeld;
+		private int upper;	//keys of the leaf writePath reached are below upper, valid if hasUpper
+		private boolean hasUpper;
+		
+		public Crab() {
+			this(true);
+		}
+		
+		public Crab(boolean lockRoot) {
+			//lockRoot <- false for a leafPath descent, which takes only the root's read lock on its way
+			if(latches == null) return;
+			held = new long[8];
+			if(!lockRoot) return;
+			rootLatch.writeLock().lock();
+			rootHeld = true;
+		}
+		
+		private void latch(long addr) {
+			if(latches == null) return;
+			latches.acquire(addr, true);
+			if(n == held.length) held = Arrays.copyOf(held, 2*n);
+			held[n++] = addr;
+		}
+		
+		private void releaseAbove() {
+			//keeps only the latch taken last, the nodes above it will not change
+			if(latches == null) return;
+			for(int i = 0; i < n-1; i++) latches.release(held[i], true);
+			held[0] = held[n-1];
+			n = 1;
+			releaseRoot();
+		}
+		
+		private void releaseAll() {
+			if(latches == null) return;
+			for(int i = 0; i < n; i++) latches.release(held[i], true);
+			n = 0;
+			releaseRoot();
+		}
+		
+		private void upper(int key) {
+			//separator to the right of the path, deeper ones are tighter
+			upper = key;
+			hasUpper = true;
+		}
+		
+		private boolean fits(int key) {
+			//key belongs in the leaf writePath reached
+			return !hasUpper || key < upper;
+		}
+		
+		private void releaseRoot() {
+			if(rootHeld) rootLatch.writeLock().unlock();
+			rootHeld = false;
+		}
+	}
+	
+	private long latchRoot() {
+		//shared latch on the root node, returns the root or 0 if the tree is empty
+		if(latches == null) return root;
+		rootLatch.readLock().lock();
+		try {
+			long r = root;
+			if(r != 0) latches.acquire(r, false);
+			return r;
+		} finally {
+			rootLatch.readLock().unlock();
+		}
+	}
+	
+	private void couple(long parent, long child) {
+		//readers latch the child before letting go of the parent so no write can slip in between
+		if(latches == null) return;
+		latches.acquire(child, false);
+		latches.release(parent, false);
+	}
+	
+	private void unlatch(long addr) {
+		if(latches != null) latches.release(addr, false);
 	}
 
 	public LinkedList<Long> inOrder() throws IOException {
 		LinkedList<Long> toReturn = new LinkedList<>();
-		if(root == 0) return toReturn;
-		Node cur = new Node(root);
-		while(cur.count > 0) cur = new Node(cur.children[0]);	//travel as far left as possible
-		int i;
-		boolean done = false;
-		while(!done) {
-			i = 0;
-			while(i < Math.abs(cur.count)) {
-				toReturn.add(cur.children[i]);
-				i++;
-			}
-			if(cur.children[order-1] != 0) cur = new Node(cur.children[order-1]);
-			else done = true;
-		}
+		Cursor cur = cursor();
+		while(cur.hasNext()) toReturn.add(cur.nextLong());
 		return toReturn;
 	}
 	
@@ -553,9 +1910,8 @@ public class BTree {
 		int i = 0;
 		System.out.print("[" + cur.address + "| (" + cur.count + ") ");
 		while(i < Math.abs(cur.count)) {
-			if(cur.keys[i] == 0 && i > 0) break;
 			System.out.print("{" + cur.keys[i] + " - " + cur.children[i] + "}");
-			if(i < cur.keys.length-1 && cur.keys[i+1] != 0) System.out.print(", ");
+			if(i < Math.abs(cur.count)-1) System.out.print(", ");
 			i++;
 		}
 		System.out.print(" -> ");
@@ -565,10 +1921,13 @@ public class BTree {
 	}
 	
 	public void close() throws IOException {
-		f.seek(0);
-		f.writeInt(blockSize);
-		f.writeLong(root);
-		f.writeLong(free);
+		disableMetrics();
+		writeHeader();
+		pool.close();
+		//the map is forced before the header points at it, a crash in between only costs a rebuild on open
+		space.save(spaceFile, pool.length());
+		ByteBuffer header = header(SPACE_SAVED);
+		while(header.hasRemaining()) f.getChannel().write(header, header.position());
 		f.close();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class BufferPool implements PageStore {
+	private static final int MIN_FRAMES = 8;	//an operation pins a few pages at a time so the pool never holds fewer
+	
+	private FileChannel channel;	//file the cached pages belong to
+	private int pageSize;
+	private Frame frames[];	//every frame the pool may hold, filled lazily up to the byte budget
+	private int used;	//number of frames handed out so far
+	private long slotAddrs[];	//open addressing table from page address to the frame holding it, kept free of boxed keys
+	private Frame slotFrames[];	//null marks an empty slot
+	private int slotBits;
+	private int hand;	//clock hand used to pick eviction victims
+	private long end;	//length of the file including pages not yet written back
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long writeBacks;
+	private long coalesced;	//pins that waited for a read of their page already under way
+
+	private class Frame {
+		private long address;
+		private ByteBuffer data;
+		private int pins;
+		private boolean dirty;
+		private boolean referenced;	//second chance bit for the clock
+		private boolean loading;	//being read from the file outside the pool's lock, pins of it wait until it is in
+
+		public Frame() {
+			data = ByteBuffer.allocate(pageSize);
+			address = -1;
+		}
+	}
+
+	public BufferPool(FileChannel c, int pSize, long budget) throws IOException {
+		channel = c;
+		pageSize = pSize;
+		int capacity = (int) Math.max(MIN_FRAMES, budget/pageSize);
+		frames = new Frame[capacity];
+		slotBits = 32 - Integer.numberOfLeadingZeros(2*capacity - 1);	//at most half full
+		slotAddrs = new long[1 << slotBits];
+		slotFrames = new Frame[1 << slotBits];
+		end = channel.size();
+	}
+
+	public ByteBuffer pin(long addr) throws IOException {
+		//reads the page into a frame if it is not cached
+		//the pool may be shared between threads, so the buffer returned is only ever used with absolute gets and puts
+		//the read happens outside the lock, pins of other pages go ahead meanwhile and pins of the same page wait for this one read
+		Frame frame;
+		synchronized(this) {
+			while((frame = lookup(addr)) != null) {
+				frame.pins++;
+				frame.referenced = true;
+				if(!frame.loading) {
+					hits++;
+					return frame.data;
+				}
+				coalesced++;
+				awaitLoad(frame);
+				if(frame.address == addr) {
+					hits++;
+					return frame.data;
+				}
+				frame.pins--;	//the read failed and the frame was let go, the page is looked up again
+			}
+			misses++;
+			frame = victim();
+			frame.address = addr;
+			frame.pins = 1;
+			frame.referenced = true;
+			frame.dirty = false;
+			frame.loading = true;
+			insert(frame);
+		}
+		try {
+			readFrame(frame);
+		} catch(IOException e) {
+			synchronized(this) {
+				delete(addr);
+				frame.address = -1;
+				frame.pins--;
+				frame.loading = false;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized(this) {
+			frame.loading = false;
+			notifyAll();
+		}
+		return frame.data;
+	}
+
+	private void awaitLoad(Frame frame) {
+		//waits on the pool's lock, which the reading thread takes to mark the frame loaded
+		boolean interrupted = false;
+		while(frame.loading) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	public synchronized void unpin(long addr, boolean dirty) {
+		//dirty pages are written back before they leave the pool
+		Frame frame = lookup(addr);
+		if(frame == null || frame.pins == 0) throw new IllegalStateException("page " + addr + " is not pinned");
+		frame.pins--;
+		if(dirty) {
+			frame.dirty = true;
+			end = Math.max(end, addr + pageSize);
+		}
+	}
+
+	public synchronized long length() {
+		return end;
+	}
+
+	public synchronized void truncate(long length) throws IOException {
+		//frames of dropped pages are left unassigned for the clock to hand out again
+		for(int i = 0; i < used; i++) {
+			Frame frame = frames[i];
+			if(frame.address < length) continue;
+			if(frame.pins > 0) throw new IllegalStateException("page " + frame.address + " is pinned");
+			delete(frame.address);
+			frame.address = -1;
+			frame.dirty = false;
+			frame.referenced = false;
+		}
+		end = Math.min(end, length);
+		channel.truncate(length);
+	}
+
+	public synchronized void flush() throws IOException {
+		//writes every dirty page back in address order
+		Frame dirty[] = new Frame[used];
+		int n = 0;
+		for(int i = 0; i < used; i++) {
+			if(frames[i].dirty) dirty[n++] = frames[i];
+		}
+		Arrays.sort(dirty, 0, n, (a, b) -> Long.compare(a.address, b.address));
+		for(int i = 0; i < n; i++) writeFrame(dirty[i]);
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		Arrays.fill(slotFrames, null);
+	}
+
+	private Frame victim() throws IOException {
+		//hands out an unused frame while under budget, otherwise runs the clock over unpinned frames
+		if(used < frames.length) {
+			frames[used] = new Frame();
+			return frames[used++];
+		}
+		for(int swept = 0; swept < 2*frames.length; swept++) {
+			Frame frame = frames[hand];
+			hand = (hand + 1) % frames.length;
+			if(frame.pins > 0) continue;
+			if(frame.referenced) {
+				frame.referenced = false;
+				continue;
+			}
+			if(frame.address < 0) return frame;	//dropped by truncate
+			if(frame.dirty) writeFrame(frame);
+			delete(frame.address);
+			evictions++;
+			return frame;
+		}
+		throw new IOException("buffer pool exhausted, every page is pinned");
+	}
+
+	private int slot(long addr) {
+		return (int) ((addr*0x9E3779B97F4A7C15L) >>> (64 - slotBits));
+	}
+
+	private Frame lookup(long addr) {
+		int mask = slotFrames.length - 1;
+		for(int i = slot(addr); slotFrames[i] != null; i = (i + 1) & mask) {
+			if(slotAddrs[i] == addr) return slotFrames[i];
+		}
+		return null;
+	}
+
+	private void insert(Frame frame) {
+		int mask = slotFrames.length - 1;
+		int i = slot(frame.address);
+		while(slotFrames[i] != null) i = (i + 1) & mask;
+		slotAddrs[i] = frame.address;
+		slotFrames[i] = frame;
+	}
+
+	private void delete(long addr) {
+		//linear probing, so later entries of the same run are shifted back into the hole
+		int mask = slotFrames.length - 1;
+		int hole = slot(addr);
+		while(slotAddrs[hole] != addr || slotFrames[hole] == null) hole = (hole + 1) & mask;
+		for(int i = (hole + 1) & mask; slotFrames[i] != null; i = (i + 1) & mask) {
+			int home = slot(slotAddrs[i]);
+			if(((i - home) & mask) >= ((i - hole) & mask)) {	//entry may move back to the hole without passing its home slot
+				slotAddrs[hole] = slotAddrs[i];
+				slotFrames[hole] = slotFrames[i];
+				hole = i;
+			}
+		}
+		slotFrames[hole] = null;
+	}
+
+	private void readFrame(Frame frame) throws IOException {
+		//pages past the end of the file read as zeros
+		ByteBuffer data = frame.data;
+		data.clear();
+		while(data.hasRemaining()) {
+			if(channel.read(data, frame.address + data.position()) < 0) break;
+		}
+		while(data.hasRemaining()) data.put((byte) 0);
+		data.clear();
+	}
+
+	private void writeFrame(Frame frame) throws IOException {
+		ByteBuffer data = frame.data;
+		data.clear();
+		while(data.hasRemaining()) {
+			channel.write(data, frame.address + data.position());
+		}
+		data.clear();
+		frame.dirty = false;
+		writeBacks++;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getWriteBacks() {
+		return writeBacks;
+	}
+
+	public synchronized long getCoalesced() {
+		//reads saved by pins that found their page already being read
+		return coalesced;
+	}
+
+	public long getCapacity() {
+		//byte budget actually in use
+		return (long) frames.length*pageSize;
+	}
+}
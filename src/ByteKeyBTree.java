@@ -0,0 +1,808 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+public class ByteKeyBTree {
+	//B+ tree from byte string keys, compared as unsigned bytes, to row addresses, with long keys stored as 8 byte strings in the same order
+	//pages are encoded rather than laid out in fixed slots: a key keeps only the bytes it does not share with the key before it,
+	//addresses and children are varints, leaves store each address as its difference from the one before, and the separators of
+	//internal nodes are cut to the shortest prefix that still tells their children apart, so a page holds as many entries as fit
+	private static final int HEADER = 20;	//bytes before the first page
+	private static final long SPACE_SAVED = -1;	//header value once the free space map was saved on close, as in BTree
+	private static final byte LEAF = 1;
+	private static final byte INTERNAL = 2;
+	private static final byte EMPTY[] = new byte[0];
+	private static final int RESTART = 16;	//every 16th entry of a page keeps its whole key and address and is listed at the end of the page, so lookups binary search them
+
+	private RandomAccessFile f;
+	private PageStore pool;	//pages of f, every node read and write goes through it
+	private int pageSize;
+	private int maxKey;	//longest key accepted, short enough that any split leaves two halves that fit a page
+	private long root;
+	private FreeSpace space;	//pages of f not in use
+	private File spaceFile;	//where the free space map is kept while the tree is closed
+	private ReentrantReadWriteLock lock;	//null unless the tree was opened for concurrent use, lookups share the tree and changes have it to themselves
+
+	private class Node {
+		private boolean leaf;
+		private int count;	//keys held, entries of a leaf or separators of an internal node
+		private byte keys[][];
+		private long vals[];	//row address of each key in a leaf, count+1 children in an internal node
+		private long address;
+
+		public Node(boolean l, long addr) {
+			leaf = l;
+			keys = new byte[8][];
+			vals = new long[9];
+			address = addr;
+		}
+
+		public Node(long addr) throws IOException {
+			Page in = new Page(pool.pin(addr));
+			address = addr;
+			leaf = in.bytes.get(in.pos++) == LEAF;
+			count = (int) in.var();
+			keys = new byte[count + 1][];
+			vals = new long[count + 2];
+			if(!leaf) vals[0] = in.var();
+			byte prev[] = EMPTY;
+			for(int i = 0; i < count; i++) {
+				int shared = (int) in.var();
+				int rest = (int) in.var();
+				byte key[] = Arrays.copyOf(prev, shared + rest);
+				in.bytes.get(in.pos, key, shared, rest);
+				in.pos += rest;
+				keys[i] = key;
+				prev = key;
+				if(leaf) vals[i] = unzigzag(in.var()) + (i % RESTART == 0 ? 0 : vals[i-1]);
+				else vals[i+1] = in.var();
+			}
+			pool.unpin(addr, false);
+		}
+
+		private int size() {
+			//bytes the node takes encoded
+			return size(0, count);
+		}
+
+		private int size(int from, int to) {
+			//bytes a node made of keys from up to to of this one would take, with the child before from if internal
+			int size = 1 + varSize(to - from) + (leaf ? 0 : varSize(vals[from])) + 4*restarts(to - from);
+			for(int i = from; i < to; i++) {
+				boolean restart = (i - from) % RESTART == 0;
+				int shared = restart ? 0 : shared(keys[i-1], keys[i]);
+				int rest = keys[i].length - shared;
+				long val = leaf ? zigzag(vals[i] - (restart ? 0 : vals[i-1])) : vals[i+1];
+				size += varSize(shared) + varSize(rest) + rest + varSize(val);
+			}
+			return size;
+		}
+
+		private void writeNode() throws IOException {
+			if(size() > pageSize) throw new IllegalStateException("node does not fit a page");
+			Page out = new Page(ByteBuffer.allocate(pageSize));
+			out.bytes.put(out.pos++, leaf ? LEAF : INTERNAL);
+			out.putVar(count);
+			if(!leaf) out.putVar(vals[0]);
+			for(int i = 0; i < count; i++) {
+				boolean restart = i % RESTART == 0;
+				if(restart) out.bytes.putInt(pageSize - 4*(i/RESTART + 1), out.pos);
+				int shared = restart ? 0 : shared(keys[i-1], keys[i]);
+				int rest = keys[i].length - shared;
+				out.putVar(shared);
+				out.putVar(rest);
+				out.bytes.put(out.pos, keys[i], shared, rest);
+				out.pos += rest;
+				out.putVar(leaf ? zigzag(vals[i] - (restart ? 0 : vals[i-1])) : vals[i+1]);
+			}
+			pool.pin(address).put(0, out.bytes.array());
+			pool.unpin(address, true);
+		}
+
+		private void add(int i, byte key[], long val) {
+			//key goes in at i, with its address in a leaf or the child to its right in an internal node
+			int buf = leaf ? 0 : 1;
+			if(count + 1 >= keys.length) {
+				keys = Arrays.copyOf(keys, 2*keys.length + 1);
+				vals = Arrays.copyOf(vals, keys.length + 1);
+			}
+			System.arraycopy(keys, i, keys, i+1, count-i);
+			System.arraycopy(vals, i+buf, vals, i+1+buf, count-i);
+			keys[i] = key;
+			vals[i+buf] = val;
+			count++;
+		}
+
+		private void delete(int i) {
+			//drops key i, with its address in a leaf or the child to its right in an internal node
+			int buf = leaf ? 0 : 1;
+			System.arraycopy(keys, i+1, keys, i, count-i-1);
+			System.arraycopy(vals, i+1+buf, vals, i+buf, count-i-1);
+			count--;
+			keys[count] = null;
+		}
+	}
+
+	private static class Page {
+		//a page and a position in it, either pinned in the pool while it is read or built up before it is written
+		private ByteBuffer bytes;
+		private int pos;
+
+		public Page(ByteBuffer b) {
+			bytes = b;
+		}
+
+		private long var() {
+			long v = 0;
+			for(int shift = 0; ; shift += 7) {
+				byte b = bytes.get(pos++);
+				v |= (long) (b & 0x7F) << shift;
+				if(b >= 0) return v;
+			}
+		}
+
+		private void putVar(long v) {
+			while((v & ~0x7FL) != 0) {
+				bytes.put(pos++, (byte) (v | 0x80));
+				v >>>= 7;
+			}
+			bytes.put(pos++, (byte) v);
+		}
+	}
+
+	public ByteKeyBTree(String filename, int bSize) throws IOException {
+		this(filename, bSize, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE);
+	}
+
+	public ByteKeyBTree(String filename, int bSize, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, bSize, mode, cacheSize, false);
+	}
+
+	public ByteKeyBTree(String filename, int bSize, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		//bSize <- bytes per page, at least 112 so that a page holds four of the longest keys
+		//mode, cacheSize and concurrent as for BTree
+		if(bSize < 112) throw new IllegalArgumentException("block size must be at least 112");
+		f = new RandomAccessFile(filename, "rw");
+		pageSize = bSize;
+		root = 0;
+		f.seek(0);
+		f.writeInt(pageSize);
+		f.writeLong(root);
+		f.writeLong(0);
+		setup(mode, cacheSize, concurrent);
+		spaceFile = new File(filename + "Free");
+		space = new FreeSpace(HEADER, pageSize);
+	}
+
+	public ByteKeyBTree(String filename) throws IOException {
+		this(filename, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE);
+	}
+
+	public ByteKeyBTree(String filename, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, mode, cacheSize, false);
+	}
+
+	public ByteKeyBTree(String filename, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		f = new RandomAccessFile(filename, "rw");
+		f.seek(0);
+		pageSize = f.readInt();
+		root = f.readLong();
+		long free = f.readLong();
+		setup(mode, cacheSize, concurrent);
+		//the map is rebuilt from the nodes reachable from the root unless the last close saved it
+		spaceFile = new File(filename + "Free");
+		if(free == SPACE_SAVED) space = FreeSpace.load(spaceFile, HEADER, pageSize, pool.length());
+		if(space == null) {
+			space = new FreeSpace(HEADER, pageSize, pool.length());
+			if(root != 0) reserveBelow(root, getHeight() - 1);
+		}
+		if(free != 0) {
+			writeHeader();
+			f.getChannel().force(false);
+		}
+	}
+
+	private void setup(StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		//an entry takes at most the key and 16 bytes of lengths and address, and a page at most 16 bytes more
+		maxKey = (pageSize - 16)/4 - 16;
+		if(mode == StorageMode.MAPPED) pool = new MappedStore(f.getChannel(), pageSize);
+		else pool = new BufferPool(f.getChannel(), pageSize, cacheSize);
+		if(concurrent) lock = new ReentrantReadWriteLock();
+	}
+
+	private void reserveBelow(long addr, int height) throws IOException {
+		//height <- levels of internal nodes from addr down, 0 if addr is a leaf, which is then never read
+		space.reserve(addr);
+		if(height == 0) return;
+		Node cur = new Node(addr);
+		for(int i = 0; i <= cur.count; i++) reserveBelow(cur.vals[i], height-1);
+	}
+
+	public static byte[] key(long k) {
+		//big endian with the sign bit flipped, so the unsigned byte order of keys is the numeric order of k
+		byte key[] = new byte[8];
+		ByteBuffer.wrap(key).putLong(0, k ^ Long.MIN_VALUE);
+		return key;
+	}
+
+	public static long longKey(byte key[]) {
+		//inverse of key
+		return ByteBuffer.wrap(key).getLong(0) ^ Long.MIN_VALUE;
+	}
+
+	public int getMaxKeyLength() {
+		return maxKey;
+	}
+
+	public boolean insert(long key, long addr) throws IOException {
+		return insert(key(key), addr);
+	}
+
+	public long search(long key) throws IOException {
+		return search(key(key));
+	}
+
+	public long remove(long key) throws IOException {
+		return remove(key(key));
+	}
+
+	public LinkedList<Long> rangeSearch(long low, long high) throws IOException {
+		return rangeSearch(key(low), high == Long.MAX_VALUE ? null : key(high + 1));
+	}
+
+	public boolean insert(byte key[], long addr) throws IOException {
+		//key <- at most getMaxKeyLength bytes, it is copied
+		//addr <- memory address of the row related to key, returns false if key is already in the tree
+		return insert(key, addr, false);
+	}
+
+	void replace(byte key[], long addr) throws IOException {
+		//points key at addr whether or not it is in the tree, for DBTable once it has moved its rows
+		insert(key, addr, true);
+	}
+
+	private boolean insert(byte key[], long addr, boolean replace) throws IOException {
+		if(key.length > maxKey) throw new IllegalArgumentException("key longer than " + maxKey + " bytes");
+		key = key.clone();
+		exclusive();
+		try {
+			if(root == 0) {
+				Node leaf = new Node(true, allocate());
+				leaf.add(0, key, addr);
+				leaf.writeNode();
+				root = leaf.address;
+				writeHeader();
+				return true;
+			}
+			Node path[] = new Node[64];	//nodes from the root down
+			int at[] = new int[64];	//index of the child taken in each internal node
+			int depth = descend(key, path, at);
+			Node cur = path[depth];
+			int i = find(cur, key);
+			if(i >= 0 && !replace) return false;	//key already exists
+			if(i >= 0) cur.vals[i] = addr;	//the node can still grow, as the address is stored as a difference
+			else cur.add(-i - 1, key, addr);
+			write(path, at, depth);
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+
+	private void write(Node path[], int at[], int depth) throws IOException {
+		//writes path[depth], first splitting it if it outgrew its page, the separators go up the path and split the parents that outgrow theirs
+		//at <- index of the child taken in each internal node of path, where a separator for the node below goes
+		Node cur = path[depth];
+		while(cur.size() > pageSize) {
+			//the upper half moves to a new node right after cur, its first key (or separator) goes up to the parent
+			Node right = new Node(cur.leaf, allocateNear(cur.address));
+			byte up[] = split(cur, right);
+			cur.writeNode();
+			right.writeNode();
+			if(depth == 0) {
+				Node newRoot = new Node(false, allocate());
+				newRoot.vals[0] = cur.address;
+				newRoot.add(0, up, right.address);
+				newRoot.writeNode();
+				root = newRoot.address;
+				writeHeader();
+				return;
+			}
+			cur = path[--depth];
+			cur.add(at[depth], up, right.address);
+		}
+		cur.writeNode();
+	}
+
+	private byte[] split(Node left, Node right) {
+		//moves the entries from m on into right, where m evens out the encoded bytes of the two, returns the key that separates them
+		//an internal node's key at m goes up rather than into either node, right keeps the children after it
+		int lo = 1;
+		int hi = Math.max(1, left.leaf ? left.count - 1 : left.count - 2);
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(left.size(0, mid) < splitSize(left, mid)) lo = mid + 1;
+			else hi = mid;
+		}
+		int m = lo;
+		if(m > 1 && Math.max(left.size(0, m-1), splitSize(left, m-1)) < Math.max(left.size(0, m), splitSize(left, m))) m--;
+		byte up[];
+		if(left.leaf) {
+			for(int i = m; i < left.count; i++) right.add(i - m, left.keys[i], left.vals[i]);
+			up = separator(left.keys[m-1], left.keys[m]);
+		} else {
+			up = left.keys[m];
+			right.vals[0] = left.vals[m+1];
+			for(int i = m + 1; i < left.count; i++) right.add(i - m - 1, left.keys[i], left.vals[i+1]);
+		}
+		for(int i = m; i < left.count; i++) left.keys[i] = null;
+		left.count = m;
+		return up;
+	}
+
+	private int splitSize(Node n, int m) {
+		//bytes of the right node when n is split at m
+		return n.leaf ? n.size(m, n.count) : n.size(m + 1, n.count);
+	}
+
+	private static byte[] separator(byte left[], byte right[]) {
+		//shortest prefix of right that sorts after left, every key of a left node is below it and every key of a right node is not
+		int i = Arrays.mismatch(left, right);
+		return Arrays.copyOf(right, i + 1);
+	}
+
+	public long remove(byte key[]) throws IOException {
+		//returns the address related to key or 0 if key is not in the tree
+		exclusive();
+		try {
+			if(root == 0) return 0;
+			Node path[] = new Node[64];
+			int at[] = new int[64];
+			int depth = descend(key, path, at);
+			Node cur = path[depth];
+			int i = find(cur, key);
+			if(i < 0) return 0;
+			long addr = cur.vals[i];
+			cur.delete(i);
+			//dropping an entry can lengthen the page, the key after it shares less with the one before and later entries become restarts,
+			//so every node changed here is written with write, which splits it as insert would if it no longer fits
+			//a node under a quarter of a page is merged with a neighbor if the two fit in three quarters, which leaves room before the next split
+			while(depth > 0 && cur.size() < pageSize/4) {
+				Node parent = path[depth-1];
+				int c = at[depth-1];
+				if(parent.count == 0) {
+					//cur is an only child, its parent is the one to merge
+					cur.writeNode();
+					cur = parent;
+					depth--;
+					continue;
+				}
+				if(cur.leaf && cur.count == 0) {
+					//an empty leaf goes with the key next to it, the leaves around it take over its range
+					if(c == 0) parent.vals[0] = parent.vals[1];
+					parent.delete(c == 0 ? 0 : c-1);
+					space.release(cur.address);
+					cur = parent;
+					depth--;
+					continue;
+				}
+				boolean right = c < parent.count;	//neighbor is to the right of cur
+				Node neighbor = new Node(parent.vals[right ? c+1 : c-1]);
+				Node left = right ? cur : neighbor;
+				Node next = right ? neighbor : cur;
+				int loc = right ? c : c-1;	//index in parent of the key between left and next
+				//the 16 bytes cover the key taken down and the first address of next growing once it is stored as a difference
+				int merged = left.size() + next.size() + 16 + (left.leaf ? 0 : parent.keys[loc].length);
+				if(merged > pageSize*3/4 && !(cur.count == 0 && merged <= pageSize)) {
+					//an internal node left with one child borrows one from its neighbor instead, unless the key that comes up does not fit the parent
+					if(cur.count == 0 && borrow(cur, neighbor, parent, loc, right)) {
+						cur.writeNode();
+						if(neighbor.size() <= pageSize) {
+							neighbor.writeNode();
+							parent.writeNode();
+							return addr;
+						}
+						//neighbor lost its first or last entry and grew, it splits into parent, which is then written
+						path[depth] = neighbor;
+						at[depth-1] = right ? c+1 : c-1;
+						write(path, at, depth);
+						return addr;
+					}
+					break;
+				}
+				merge(left, next, parent.keys[loc]);
+				space.release(next.address);
+				parent.delete(loc);
+				if(left.size() > pageSize) {
+					//the estimate fell short, left splits again into parent where next was, so neither needs more rebalancing
+					path[depth] = left;
+					at[depth-1] = loc;
+					write(path, at, depth);
+					return addr;
+				}
+				left.writeNode();
+				cur = parent;
+				depth--;
+			}
+			if(depth == 0 && cur.count == 0) {
+				//a root without keys hands over to its only child, down to the first node with keys or an empty leaf, which leaves the tree empty
+				Node top = cur;
+				while(top.count == 0) {
+					space.release(top.address);
+					if(top.leaf) {
+						top = null;
+						break;
+					}
+					top = new Node(top.vals[0]);
+				}
+				root = top == null ? 0 : top.address;
+				writeHeader();
+				return addr;
+			}
+			write(path, at, depth);
+			return addr;
+		} finally {
+			unlock();
+		}
+	}
+
+	private boolean borrow(Node cur, Node neighbor, Node parent, int loc, boolean right) {
+		//rotates the child of neighbor nearest to internal node cur through parent into cur, returns false if parent would outgrow its page
+		byte up[] = right ? neighbor.keys[0] : neighbor.keys[neighbor.count-1];
+		byte down[] = parent.keys[loc];
+		parent.keys[loc] = up;
+		if(parent.size() > pageSize) {
+			parent.keys[loc] = down;
+			return false;
+		}
+		if(right) {
+			cur.add(cur.count, down, neighbor.vals[0]);
+			neighbor.vals[0] = neighbor.vals[1];
+			neighbor.delete(0);
+		} else {
+			long only = cur.vals[0];
+			cur.vals[0] = neighbor.vals[neighbor.count];
+			cur.add(0, down, only);
+			neighbor.delete(neighbor.count-1);
+		}
+		return true;
+	}
+
+	private void merge(Node left, Node right, byte between[]) {
+		//moves every entry of right to the end of left, internal nodes take the parent's key between them down
+		if(left.leaf) {
+			for(int i = 0; i < right.count; i++) left.add(left.count, right.keys[i], right.vals[i]);
+			return;
+		}
+		left.add(left.count, between, right.vals[0]);
+		for(int i = 0; i < right.count; i++) left.add(left.count, right.keys[i], right.vals[i+1]);
+	}
+
+	public long search(byte key[]) throws IOException {
+		//returns the address related to key or 0 if key is not in the tree
+		shared();
+		try {
+			//pages are searched where they are pinned rather than decoded into nodes
+			byte scratch[] = new byte[maxKey];
+			for(long addr = root; addr != 0; ) {
+				Page in = new Page(pool.pin(addr));
+				boolean leaf = in.bytes.get(0) == LEAF;
+				long next = seek(in, key, scratch);
+				pool.unpin(addr, false);
+				if(leaf) return next;
+				addr = next;
+			}
+			return 0;
+		} finally {
+			unlock();
+		}
+	}
+
+	private long seek(Page in, byte key[], byte scratch[]) {
+		//child of an internal page whose keys cover key, or the address of key in a leaf page or 0 if it is not there
+		//scratch <- room for the longest key, the keys of one run between restarts are rebuilt in it
+		boolean leaf = in.bytes.get(in.pos++) == LEAF;
+		int count = (int) in.var();
+		long found = leaf ? 0 : in.var();
+		//last restart whose key is <= key
+		int lo = 0;
+		int hi = restarts(count) - 1;
+		int r = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			in.pos = in.bytes.getInt(pageSize - 4*(mid + 1)) + 1;	//a restart shares nothing, its one byte count is skipped
+			int len = (int) in.var();
+			in.bytes.get(in.pos, scratch, 0, len);
+			if(Arrays.compareUnsigned(scratch, 0, len, key, 0, key.length) <= 0) {
+				r = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if(r < 0) return found;
+		in.pos = in.bytes.getInt(pageSize - 4*(r + 1));
+		long addr = 0;
+		for(int i = r*RESTART; i < Math.min(count, (r + 1)*RESTART); i++) {
+			int shared = (int) in.var();
+			int rest = (int) in.var();
+			in.bytes.get(in.pos, scratch, shared, rest);
+			in.pos += rest;
+			long val = in.var();
+			int c = Arrays.compareUnsigned(scratch, 0, shared + rest, key, 0, key.length);
+			if(leaf) {
+				addr += unzigzag(val);
+				if(c >= 0) return c == 0 ? addr : 0;
+			} else {
+				if(c > 0) return found;
+				found = val;
+			}
+		}
+		return found;
+	}
+
+	private int descend(byte key[], Node path[], int at[]) throws IOException {
+		//reads the nodes from the root to the leaf that would hold key, returns the depth of the leaf
+		int depth = 0;
+		path[0] = new Node(root);
+		while(!path[depth].leaf) {
+			at[depth] = childIndex(path[depth], key);
+			path[depth+1] = new Node(path[depth].vals[at[depth]]);
+			depth++;
+		}
+		return depth;
+	}
+
+	private int childIndex(Node cur, byte key[]) {
+		//index of the child of internal node cur whose keys cover key, the number of separators <= key
+		int lo = 0;
+		int hi = cur.count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(Arrays.compareUnsigned(cur.keys[mid], key) <= 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private int find(Node leaf, byte key[]) {
+		//index of key in leaf, or -(insertion point) - 1 if it is not there
+		int lo = 0;
+		int hi = leaf.count - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = Arrays.compareUnsigned(leaf.keys[mid], key);
+			if(c < 0) lo = mid + 1;
+			else if(c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -lo - 1;
+	}
+
+	public LinkedList<Long> rangeSearch(byte low[], byte high[]) throws IOException {
+		//addresses of every key from low up to but not including high in key order, a null bound leaves that end open
+		LinkedList<Long> toReturn = new LinkedList<>();
+		Cursor cur = cursor(low, true, high, false);
+		while(cur.hasNext()) toReturn.add(cur.nextLong());
+		return toReturn;
+	}
+
+	public Cursor cursor() throws IOException {
+		return cursor(null, true, null, true);
+	}
+
+	public Cursor cursor(byte low[], boolean lowInclusive, byte high[], boolean highInclusive) throws IOException {
+		return new Cursor(low, lowInclusive, high, highInclusive);
+	}
+
+	public class Cursor implements PrimitiveIterator.OfLong {
+		//walks the addresses of a range in ascending key order holding one decoded leaf, nodes do not link to their neighbors,
+		//so the next leaf is found again from the root through the separator above the current one as BTree's concurrent cursors do
+		private byte high[];
+		private boolean highInclusive;
+		private Node leaf;	//leaf holding the next address, null once the range is exhausted
+		private int i;	//index of the next address in leaf
+		private byte upper[];	//keys of leaf are below upper, null if leaf is the last one
+
+		private Cursor(byte l[], boolean lInc, byte h[], boolean hInc) throws IOException {
+			high = h;
+			highInclusive = hInc;
+			byte from[] = l == null ? EMPTY : l;
+			descend(from);
+			position(from, l == null || lInc);
+			settle();
+		}
+
+		private void descend(byte key[]) throws IOException {
+			shared();
+			try {
+				upper = null;
+				leaf = root == 0 ? null : new Node(root);
+				while(leaf != null && !leaf.leaf) {
+					int c = childIndex(leaf, key);
+					if(c < leaf.count) upper = leaf.keys[c];
+					leaf = new Node(leaf.vals[c]);
+				}
+			} finally {
+				unlock();
+			}
+		}
+
+		private void position(byte key[], boolean inclusive) {
+			if(leaf == null) return;
+			i = find(leaf, key);
+			if(i < 0) i = -i - 1;
+			else if(!inclusive) i++;
+		}
+
+		private void settle() throws IOException {
+			//moves across leaves until i is a valid entry, then ends the cursor if that entry is past high
+			while(leaf != null && i >= leaf.count) {
+				if(upper == null) {
+					leaf = null;
+					break;
+				}
+				//picks up after the last key seen, a merge may have moved later keys into the leaf found
+				byte last[] = leaf.count == 0 ? null : leaf.keys[leaf.count-1];
+				byte next[] = upper;
+				descend(next);
+				if(last == null) position(next, true);
+				else position(last, false);
+			}
+			if(leaf != null && high != null) {
+				int c = Arrays.compareUnsigned(leaf.keys[i], high);
+				if(c > 0 || (c == 0 && !highInclusive)) leaf = null;
+			}
+		}
+
+		public boolean hasNext() {
+			return leaf != null;
+		}
+
+		public byte[] peekKey() {
+			//key of the address nextLong will return
+			if(leaf == null) throw new NoSuchElementException();
+			return leaf.keys[i].clone();
+		}
+
+		public long nextLong() {
+			if(leaf == null) throw new NoSuchElementException();
+			long addr = leaf.vals[i++];
+			try {
+				settle();
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return addr;
+		}
+	}
+
+	public boolean isEmpty() {
+		return root == 0;
+	}
+
+	public int getHeight() throws IOException {
+		//levels from the root down to the leaves, 0 if the tree is empty
+		shared();
+		try {
+			if(root == 0) return 0;
+			int height = 1;
+			for(Node cur = new Node(root); !cur.leaf; cur = new Node(cur.vals[0])) height++;
+			return height;
+		} finally {
+			unlock();
+		}
+	}
+
+	public int getFreeNodes() {
+		return space.count();
+	}
+
+	public BufferPool getBufferPool() {
+		//null when the tree is mapped
+		PageStore store = pool instanceof LoggedStore ? ((LoggedStore) pool).getBase() : pool;
+		return store instanceof BufferPool ? (BufferPool) store : null;
+	}
+
+	LoggedStore logTo(int file) {
+		//used by DBTable for its field indexes as BTree.logTo is for its key index
+		LoggedStore logged = new LoggedStore(pool, f.getChannel(), file, pageSize);
+		pool = logged;
+		return logged;
+	}
+
+	private static int shared(byte a[], byte b[]) {
+		//length of the prefix a and b have in common
+		int i = Arrays.mismatch(a, b);
+		return i < 0 ? a.length : i;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int restarts(int count) {
+		return (count + RESTART - 1)/RESTART;
+	}
+
+	private static int varSize(long v) {
+		int n = 1;
+		while((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	private synchronized long allocate() throws IOException {
+		return claim(space.allocate(pool.length()));
+	}
+
+	private synchronized long allocateNear(long addr) throws IOException {
+		return claim(space.allocateNear(addr, pool.length()));
+	}
+
+	private long claim(long r) throws IOException {
+		if(r == pool.length()) {
+			pool.pin(r);
+			pool.unpin(r, true);	//a dirty page counts toward the length, so the next allocation starts past it
+		}
+		return r;
+	}
+
+	private void shared() {
+		if(lock != null) lock.readLock().lock();
+	}
+
+	private void exclusive() {
+		if(lock != null) lock.writeLock().lock();
+	}
+
+	private void unlock() {
+		if(lock == null) return;
+		if(lock.isWriteLockedByCurrentThread()) lock.writeLock().unlock();
+		else lock.readLock().unlock();
+	}
+
+	private void writeHeader() throws IOException {
+		//free space is only tracked in memory while the tree is open, so the free field stays 0 until close
+		ByteBuffer header = header(0);
+		if(pool instanceof LoggedStore) ((LoggedStore) pool).writeHeader(header);
+		else writeHeader(header);
+	}
+
+	private void writeHeader(ByteBuffer header) throws IOException {
+		//positional so it never moves the file pointer
+		while(header.hasRemaining()) f.getChannel().write(header, header.position());
+	}
+
+	private ByteBuffer header(long free) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(pageSize);
+		header.putLong(root);
+		header.putLong(free);
+		header.flip();
+		return header;
+	}
+
+	public void close() throws IOException {
+		writeHeader();
+		pool.close();
+		//the map is forced before the header points at it, a crash in between only costs a rebuild on open
+		space.save(spaceFile, pool.length());
+		writeHeader(header(SPACE_SAVED));
+		f.close();
+	}
+}
@@ -1,150 +1,1317 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DBTable {
+	private static final long SPACE_SAVED = -1;	//header value in place of a free list head, the free space map was saved on close
+	public static final int INDEX_BLOCK_SIZE = 4096;	//bytes per node of a field index, more if the field is too wide for four keys a node
+	public static final int SCAN_CHUNK_SIZE = 1 << 20;	//bytes scanRows reads from the file at a time, rounded down to whole rows
+	
 	private RandomAccessFile rows;	//the file that stores the rows in the table
-	private long free;	//head of the free list space for rows
+	private PageStore store;	//rows of the file, every row read and write goes through it
+	private int rowSize;	//bytes occupied by a row on disk
+	private FreeSpace space;	//rows of the file not in use
+	private File spaceFile;	//where the free space map is kept while the table is closed
+	private long firstRow;	//address of the first row, right after the header
 	private int numOtherFields;
 	private int otherFieldLengths[];
+	private int fieldOffsets[];	//byte offset of each of the other fields in a row
+	private int fieldWidths[];	//bytes each of the other fields takes in a row
+	private FieldEncoding encoding;	//kept in the top byte of the header's field count, 0 (CHARS) in files older than the option
 	private BTree tree;
+	private ByteKeyBTree indexes[];	//indexes[i] maps the values of other field i to the rows holding them, null if the field is not indexed
+	private String name;	//path of the table, its other files are named after it
+	private StorageMode mode;	//how the table was opened, indexes created later are opened the same way
+	private long cacheSize;
+	private boolean concurrent;
+	private Durability durability;
+	private RandomAccessFile log;	//redo log shared by the rows and the index, null unless durability is logged
+	private Wal wal;
+	private LoggedStore loggedRows;
+	private LoggedStore loggedTree;
+	private LoggedStore loggedIndexes[];
+	private ReentrantLock writes;	//logged tables commit one insert or remove at a time, the log waits happen outside it
+	private volatile Metrics metrics;	//null unless enableMetrics was called
 	
 	private class Row {
 		private int keyField;
 		private char otherFields[][];
+		private byte encoded[][];	//the fields as they are written, null when the table stores chars
 		
 		public Row(int k, char fields[][]) {
+			//fields that do not fit the table are refused here, before a row is allocated for them
 			keyField = k;
 			otherFields = fields;
+			if(fields.length > numOtherFields) throw new IllegalArgumentException("the table has " + numOtherFields + " other fields");
+			if(encoding != FieldEncoding.CHARS) encoded = new byte[fields.length][];
+			for(int i = 0; i < fields.length; i++) {
+				if(encoded != null) encoded[i] = encode(i, fields[i]);
+				int bytes = encoded == null ? 2*fields[i].length : encoded[i].length;
+				if(bytes > fieldWidths[i]) throw new IllegalArgumentException("field " + i + " does not fit in " + otherFieldLengths[i] + (encoding == FieldEncoding.UTF8 ? " bytes" : " chars"));
+			}
 		}
 		
 		public Row(long addr) throws IOException {
-			rows.seek(addr);
-			keyField = rows.readInt();
-			
+			ByteBuffer buffer = store.pin(addr);
+			read(buffer, 0);
+			store.unpin(addr, false);
+		}
+		
+		public Row(ByteBuffer bytes, int offset) {
+			//the row whose bytes start at offset, as scanRows reads them from the file
+			read(bytes, offset);
+		}
+		
+		private void read(ByteBuffer bytes, int offset) {
+			keyField = bytes.getInt(offset);
 			otherFields = new char[numOtherFields][];
+			if(encoding != FieldEncoding.CHARS) {
+				for(int i = 0; i < numOtherFields; i++) otherFields[i] = decode(bytes, offset + fieldOffsets[i], i);
+				return;
+			}
+			//the fields are copied out in bulk through a char view of the row
+			CharBuffer chars = bytes.slice(offset + 4, rowSize - 4).asCharBuffer();
 			for(int i = 0; i < numOtherFields; i++) {
 				otherFields[i] = new char[otherFieldLengths[i]];
-				for(int j = 0; j < otherFieldLengths[i]; j++) {
-					otherFields[i][j] = rows.readChar();
-				}
+				chars.get(otherFields[i]);
 			}
 		}
 		
 		private void writeRow(long addr) throws IOException {
-			rows.seek(addr);
-			rows.writeInt(keyField);
+			ByteBuffer buffer = store.pin(addr);
+			buffer.putInt(0, keyField);
 			
-			for(int i = 0; i < otherFields.length; i++) {
-				for(int j = 0; j < otherFields[i].length; j++) {
-					rows.writeChar(otherFields[i][j]);
+			//every field starts at its own offset and a short or missing one is padded with '\0's, which reads leave out
+			CharBuffer chars = encoded == null ? buffer.slice(4, rowSize - 4).asCharBuffer() : null;
+			for(int i = 0; i < numOtherFields; i++) {
+				int at = fieldOffsets[i];
+				int written = 0;
+				if(i < otherFields.length && encoded != null) {
+					buffer.put(at, encoded[i], 0, encoded[i].length);
+					written = encoded[i].length;
+				} else if(i < otherFields.length) {
+					chars.position((at - 4)/2);
+					chars.put(otherFields[i]);
+					written = 2*otherFields[i].length;
 				}
+				for(int j = written; j < fieldWidths[i]; j++) buffer.put(at + j, (byte) 0);
 			}
+			store.unpin(addr, true);
+			count(Metrics.Event.WRITE);
+		}
+	}
+	
+	private class RangeSpliterator implements Spliterator<LinkedList<String>> {
+		//rows from low to high, both included, cut at keys of the index's internal nodes until a part lies within one leaf
+		private int low;
+		private int high;
+		private boolean descending;
+		private long estimate;	//halved by every split, the tree keeps no counts
+		private Iterator<LinkedList<String>> rows;	//opened by the first advance, the part is no longer split after that
+		
+		public RangeSpliterator(int l, int h, boolean desc, long est) {
+			low = l;
+			high = h;
+			descending = desc;
+			estimate = est;
+		}
+		
+		public boolean tryAdvance(Consumer<? super LinkedList<String>> action) {
+			if(rows == null) {
+				try {
+					rows = low > high ? Collections.emptyIterator() : iterator(low, true, high, true, descending);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			if(!rows.hasNext()) return false;
+			action.accept(rows.next());
+			return true;
+		}
+		
+		public Spliterator<LinkedList<String>> trySplit() {
+			//the middle separator of the highest node that has any in the range, the part before it in the order of the rows is handed off
+			if(rows != null || low >= high) return null;
+			int cut[];
+			try {
+				cut = tree.separators(low, high);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if(cut.length == 0) return null;
+			int s = cut[cut.length/2];
+			estimate >>>= 1;
+			RangeSpliterator prefix;
+			if(descending) {
+				prefix = new RangeSpliterator(s, high, true, estimate);
+				high = s - 1;
+			} else {
+				prefix = new RangeSpliterator(low, s - 1, false, estimate);
+				low = s;
+			}
+			return prefix;
+		}
+		
+		public long estimateSize() {
+			return estimate;
+		}
+		
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.NONNULL;
 		}
 	}
 	
 	public DBTable(String filename, int fl[], int bSize) throws IOException {
+		this(filename, fl, bSize, BTree.DEFAULT_CACHE_SIZE);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, long cacheSize) throws IOException {
+		this(filename, fl, bSize, StorageMode.BUFFERED, cacheSize);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, StorageMode mode) throws IOException {
+		this(filename, fl, bSize, mode, BTree.DEFAULT_CACHE_SIZE);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, fl, bSize, mode, cacheSize, false);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		this(filename, fl, bSize, mode, cacheSize, concurrent, Durability.NONE);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, StorageMode mode, long cacheSize, boolean concurrent, Durability d) throws IOException {
+		this(filename, fl, bSize, mode, cacheSize, concurrent, d, FieldEncoding.CHARS);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, FieldEncoding e) throws IOException {
+		this(filename, fl, bSize, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE, false, Durability.NONE, e);
+	}
+	
+	public DBTable(String filename, int fl[], int bSize, StorageMode mode, long cacheSize, boolean concurrent, Durability d, FieldEncoding e) throws IOException {
+		//mode <- how rows and index nodes are moved between memory and the files
+		//cacheSize <- bytes of rows and bytes of index nodes kept in memory when mode is BUFFERED
+		//concurrent <- true if the table is shared between threads
+		//d <- whether inserts and removes are logged to filename + "Wal" and when the log is forced
+		//e <- how the other fields are stored, LATIN1 and UTF8 take half the room of CHARS for the same lengths
+		checkDurability(mode, d);
+		new File(filename + "Wal").delete();	//a log left by an earlier table of the same name must never be replayed into this one
+		for(int i = 0; i < fl.length; i++) {
+			new File(filename + "Index" + i).delete();	//and neither must its indexes be picked up
+			new File(filename + "Index" + i + "Free").delete();
+		}
 		rows = new RandomAccessFile(filename, "rw");
-		free = 0;
-		rows.writeLong(free);
+		rows.writeLong(0);
 		
 		numOtherFields = fl.length;
-		rows.writeInt(numOtherFields);
+		encoding = e;
+		rows.writeInt(numOtherFields | encoding.ordinal() << 24);
 		otherFieldLengths = new int[numOtherFields];
 		for(int i = 0; i < numOtherFields; i++) {
 			otherFieldLengths[i] = fl[i];
 			rows.writeInt(otherFieldLengths[i]);
 		}
-		tree = new BTree(filename + "BTree", bSize);
+		setupStore(mode, cacheSize);
+		tree = new BTree(filename + "BTree", bSize, mode, cacheSize, concurrent);
+		spaceFile = new File(filename + "Free");
+		space = new FreeSpace(firstRow, rowSize);
+		setupIndexes(filename, mode, cacheSize, concurrent);
+		setupLog(filename, d);
 	}
 	
 	public DBTable(String filename) throws IOException {
+		this(filename, BTree.DEFAULT_CACHE_SIZE);
+	}
+	
+	public DBTable(String filename, long cacheSize) throws IOException {
+		this(filename, StorageMode.BUFFERED, cacheSize);
+	}
+	
+	public DBTable(String filename, StorageMode mode) throws IOException {
+		this(filename, mode, BTree.DEFAULT_CACHE_SIZE);
+	}
+	
+	public DBTable(String filename, StorageMode mode, long cacheSize) throws IOException {
+		this(filename, mode, cacheSize, false);
+	}
+	
+	public DBTable(String filename, StorageMode mode, long cacheSize, boolean concurrent) throws IOException {
+		this(filename, mode, cacheSize, concurrent, Durability.NONE);
+	}
+	
+	public DBTable(String filename, StorageMode mode, long cacheSize, boolean concurrent, Durability d) throws IOException {
+		//a log left by a table that was not closed is replayed first, whatever d is
+		checkDurability(mode, d);
 		rows = new RandomAccessFile(filename, "rw");
+		recover(filename);
 		rows.seek(0);
-		free = rows.readLong();
+		long free = rows.readLong();
 		
-		numOtherFields = rows.readInt();
+		int fields = rows.readInt();
+		numOtherFields = fields & 0xFFFFFF;
+		encoding = FieldEncoding.values()[fields >>> 24];
 		otherFieldLengths = new int[numOtherFields];
 		for(int i = 0; i < numOtherFields; i++) {
 			otherFieldLengths[i] = rows.readInt();
 		}
-		filename += "BTree";
-		tree = new BTree(filename);
+		setupStore(mode, cacheSize);
+		tree = new BTree(filename + "BTree", mode, cacheSize, concurrent);
+		setupSpace(filename, free);
+		setupIndexes(filename, mode, cacheSize, concurrent);
+		setupLog(filename, d);
+	}
+	
+	private void checkDurability(StorageMode mode, Durability d) {
+		//writes through a mapping reach the file before they could be logged
+		if(d != Durability.NONE && mode == StorageMode.MAPPED) throw new IllegalArgumentException("a logged table needs buffered storage");
+	}
+	
+	private void recover(String filename) throws IOException {
+		File logFile = new File(filename + "Wal");
+		if(!logFile.exists()) return;
+		//the field indexes are files 2 and on, numbered by field, the header holding the number of fields is never logged
+		rows.seek(8);
+		int fields = rows.readInt() & 0xFFFFFF;
+		RandomAccessFile files[] = new RandomAccessFile[2 + fields];
+		FileChannel channels[] = new FileChannel[files.length];
+		try(RandomAccessFile oldLog = new RandomAccessFile(logFile, "rw")) {
+			files[1] = new RandomAccessFile(filename + "BTree", "rw");
+			for(int i = 0; i < fields; i++) {
+				if(new File(filename + "Index" + i).exists()) files[2 + i] = new RandomAccessFile(filename + "Index" + i, "rw");
+			}
+			channels[0] = rows.getChannel();
+			for(int i = 1; i < files.length; i++) {
+				if(files[i] != null) channels[i] = files[i].getChannel();
+			}
+			Wal.recover(oldLog.getChannel(), channels);
+		} finally {
+			for(RandomAccessFile file : files) {
+				if(file != null) file.close();
+			}
+		}
+	}
+	
+	private void setupIndexes(String filename, StorageMode m, long size, boolean c) throws IOException {
+		//opens the index of every field that has one
+		name = filename;
+		mode = m;
+		cacheSize = size;
+		concurrent = c;
+		indexes = new ByteKeyBTree[numOtherFields];
+		for(int i = 0; i < numOtherFields; i++) {
+			if(indexFile(i).exists()) indexes[i] = new ByteKeyBTree(indexFile(i).getPath(), mode, cacheSize, concurrent);
+		}
+	}
+	
+	private File indexFile(int field) {
+		return new File(name + "Index" + field);
+	}
+	
+	private void setupSpace(String filename, long free) throws IOException {
+		//free <- header value, as for BTree the saved map, the free list of an older file, or a rebuild from the rows the index reaches
+		spaceFile = new File(filename + "Free");
+		if(free == SPACE_SAVED) space = FreeSpace.load(spaceFile, firstRow, rowSize, store.length());
+		if(space == null && free > 0) {
+			space = new FreeSpace(firstRow, rowSize);
+			for(long r = free; r != 0; ) {
+				space.release(r);
+				long next = store.pin(r).getLong(0);
+				store.unpin(r, false);
+				r = next;
+			}
+		} else if(space == null) {
+			space = new FreeSpace(firstRow, rowSize, store.length());
+			BTree.Cursor cursor = tree.cursor();
+			while(cursor.hasNext()) space.reserve(cursor.nextLong());
+		}
+		if(free != 0) {
+			writeHeader(0);
+			rows.getChannel().force(false);
+		}
+	}
+	
+	private void setupLog(String filename, Durability d) throws IOException {
+		durability = d;
+		if(d == Durability.NONE) return;
+		loggedRows = new LoggedStore(store, rows.getChannel(), 0, rowSize);
+		store = loggedRows;
+		loggedTree = tree.logTo(1);
+		loggedIndexes = new LoggedStore[numOtherFields];
+		LoggedStore stores[] = new LoggedStore[2 + numOtherFields];
+		stores[0] = loggedRows;
+		stores[1] = loggedTree;
+		for(int i = 0; i < numOtherFields; i++) {
+			if(indexes[i] != null) stores[2 + i] = loggedIndexes[i] = indexes[i].logTo(2 + i);
+		}
+		log = new RandomAccessFile(filename + "Wal", "rw");
+		wal = new Wal(log.getChannel(), stores);
+		writes = new ReentrantLock();
+	}
+	
+	private void setupStore(StorageMode mode, long cacheSize) throws IOException {
+		//a row is its key followed by every other field stored as chars, or as bytes in the table's encoding
+		rowSize = 4;
+		fieldOffsets = new int[numOtherFields];
+		fieldWidths = new int[numOtherFields];
+		for(int i = 0; i < numOtherFields; i++) {
+			fieldOffsets[i] = rowSize;
+			fieldWidths[i] = encoding == FieldEncoding.CHARS ? 2*otherFieldLengths[i] : otherFieldLengths[i];
+			rowSize += fieldWidths[i];
+		}
+		firstRow = 12 + 4*numOtherFields;
+		//every row has the same width, so rows are cached in slabs of neighbours read and written with one transfer
+		if(mode == StorageMode.MAPPED) store = new MappedStore(rows.getChannel(), rowSize);
+		else store = new SlabStore(rows.getChannel(), firstRow, rowSize, cacheSize);
 	}
 	
 	public boolean insert(int key, char fields[][]) throws IOException {
-		long r = getFree();
-		removeFromFree();
-		rows.seek(r);
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(wal == null) return insertRow(key, fields);
+			boolean inserted;
+			long pos;
+			writes.lock();
+			try {
+				inserted = insertRow(key, fields);
+				pos = commit();
+			} finally {
+				writes.unlock();
+			}
+			if(durability == Durability.SYNC) wal.sync(pos);
+			return inserted;
+		} finally {
+			if(m != null) m.end(Metrics.Op.INSERT, start);
+		}
+	}
+	
+	private boolean insertRow(int key, char fields[][]) throws IOException {
 		Row toInsert = new Row(key, fields);
+		long r = allocate();
 		toInsert.writeRow(r);
-		return tree.insert(key, r);
+		if(!tree.insert(key, r)) {
+			release(r);	//key already exists, the row is not referenced
+			return false;
+		}
+		try {
+			index(key, fields, r);
+		} catch(IOException | RuntimeException e) {
+			//the field indexes are as they were, so the key goes too and the table stays in step with them
+			tree.remove(key);
+			release(r);
+			throw e;
+		}
+		return true;
+	}
+	
+	public void bulkInsert(Iterator<Map.Entry<Integer, char[][]>> input, boolean sorted) throws IOException {
+		bulkInsert(input, sorted, BTree.DEFAULT_FILL_FACTOR);
+	}
+	
+	public void bulkInsert(Iterator<Map.Entry<Integer, char[][]>> input, boolean sorted, double fillFactor) throws IOException {
+		//loads an empty table, rows are appended one after another and the index is built bottom up from their keys
+		//sorted <- true if input is in strictly ascending key order, otherwise the keys are sorted in runs spilled to temporary files
+		//fillFactor <- fraction of each index node filled
+		if(!tree.isEmpty()) throw new IllegalStateException("bulk insert requires an empty table");
+		if(wal == null) {
+			load(input, sorted, fillFactor);
+			indexRows();
+			return;
+		}
+		//a logged table is loaded straight into its files, the index header is written last so a crash part way leaves it empty
+		writes.lock();
+		try {
+			wal.checkpoint();
+			setLogging(false);
+			try {
+				load(input, sorted, fillFactor);
+				indexRows();
+			} finally {
+				setLogging(true);
+			}
+			wal.checkpoint();
+		} finally {
+			writes.unlock();
+		}
+	}
+	
+	private void setLogging(boolean on) {
+		loggedRows.setLogging(on);
+		loggedTree.setLogging(on);
+		for(LoggedStore logged : loggedIndexes) {
+			if(logged != null) logged.setLogging(on);
+		}
+	}
+	
+	private void load(Iterator<Map.Entry<Integer, char[][]>> input, boolean sorted, double fillFactor) throws IOException {
+		//the table is empty so none of its rows are in use, the file starts over and the rows are written one after another
+		space.clear();
+		store.truncate(firstRow);
+		if(sorted) {
+			Iterator<KeyAddr> pairs = new Iterator<KeyAddr>() {
+				public boolean hasNext() {
+					return input.hasNext();
+				}
+				
+				public KeyAddr next() {
+					try {
+						return appendRow(input.next());
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+			try {
+				tree.bulkLoad(pairs, fillFactor);
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return;
+		}
+		
+		KeyAddrSorter sorter = new KeyAddrSorter();
+		try {
+			while(input.hasNext()) {
+				KeyAddr pair = appendRow(input.next());
+				sorter.add(pair.key, pair.addr);
+			}
+			tree.bulkLoad(sorter.sorted(), fillFactor);
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			sorter.close();
+		}
+	}
+	
+	private KeyAddr appendRow(Map.Entry<Integer, char[][]> entry) throws IOException {
+		//writes the row at the end of the file rather than into free space so the rows stay sequential
+		long r = store.length();
+		Row toInsert = new Row(entry.getKey(), entry.getValue());
+		toInsert.writeRow(r);
+		return new KeyAddr(entry.getKey(), r);
 	}
 	
 	public boolean remove(int key) throws IOException {
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(wal == null) return removeRow(key);
+			boolean removed;
+			long pos;
+			writes.lock();
+			try {
+				removed = removeRow(key);
+				pos = commit();
+			} finally {
+				writes.unlock();
+			}
+			if(durability == Durability.SYNC) wal.sync(pos);
+			return removed;
+		} finally {
+			if(m != null) m.end(Metrics.Op.REMOVE, start);
+		}
+	}
+	
+	private long commit() throws IOException {
+		//logs the operation just made, checkpointing once the log has grown large, returns the position to wait for
+		long pos = wal.commit();
+		if(wal.size() >= Wal.DEFAULT_CHECKPOINT_SIZE) wal.checkpoint();
+		return pos;
+	}
+	
+	public void sync() throws IOException {
+		//forces every logged insert and remove made so far, so DEFERRED tables can pay one force for many operations
+		if(wal != null) wal.sync();
+	}
+	
+	public void checkpoint() throws IOException {
+		//writes every logged change to the table's files and empties the log
+		if(wal == null) return;
+		writes.lock();
+		try {
+			wal.checkpoint();
+		} finally {
+			writes.unlock();
+		}
+	}
+	
+	public boolean[] insertAll(int keys[], char fields[][][]) throws IOException {
+		//inserts each key with the fields at the same index, true where the key was new
+		//the rows are allocated as one run and the index adds them as one batch, see BTree.insertAll
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(wal == null) return insertRows(keys, fields);
+			boolean inserted[];
+			long pos;
+			writes.lock();
+			try {
+				inserted = insertRows(keys, fields);
+				pos = commit();
+			} finally {
+				writes.unlock();
+			}
+			if(durability == Durability.SYNC) wal.sync(pos);
+			return inserted;
+		} finally {
+			if(m != null) m.end(Metrics.Op.INSERT_BATCH, start);
+		}
+	}
+	
+	private boolean[] insertRows(int keys[], char fields[][][]) throws IOException {
+		if(keys.length != fields.length) throw new IllegalArgumentException("keys and fields differ in length");
+		Row toInsert[] = new Row[keys.length];
+		for(int i = 0; i < keys.length; i++) toInsert[i] = new Row(keys[i], fields[i]);
+		long addrs[] = allocate(keys.length);
+		for(int i = 0; i < keys.length; i++) toInsert[i].writeRow(addrs[i]);
+		boolean inserted[] = tree.insertAll(keys, addrs);
+		int i = 0;
+		try {
+			for(; i < keys.length; i++) {
+				if(!inserted[i]) continue;
+				index(keys[i], fields[i], addrs[i]);
+				addrs[i] = 0;	//what is left are the rows of keys already in the table
+			}
+		} catch(IOException | RuntimeException e) {
+			//the keys from i on are not indexed, so they are taken out again and their rows freed with the rest
+			for(; i < keys.length; i++) {
+				if(inserted[i]) tree.remove(keys[i]);
+			}
+			release(addrs);
+			throw e;
+		}
+		release(addrs);
+		return inserted;
+	}
+	
+	public boolean[] removeAll(int keys[]) throws IOException {
+		//removes every key, true where it was in the table
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			if(wal == null) return removeRows(keys);
+			boolean removed[];
+			long pos;
+			writes.lock();
+			try {
+				removed = removeRows(keys);
+				pos = commit();
+			} finally {
+				writes.unlock();
+			}
+			if(durability == Durability.SYNC) wal.sync(pos);
+			return removed;
+		} finally {
+			if(m != null) m.end(Metrics.Op.REMOVE_BATCH, start);
+		}
+	}
+	
+	private boolean[] removeRows(int keys[]) throws IOException {
+		long addrs[] = tree.removeAll(keys);
+		boolean removed[] = new boolean[keys.length];
+		int i = 0;
+		try {
+			for(; i < keys.length; i++) {
+				removed[i] = addrs[i] != 0;
+				if(removed[i]) unindex(addrs[i]);
+			}
+		} catch(IOException | RuntimeException e) {
+			//the rows from i on are still indexed and intact, so their keys go back and only the rows before i are freed
+			for(int j = i; j < keys.length; j++) {
+				if(addrs[j] != 0) tree.insert(keys[j], addrs[j]);
+			}
+			release(Arrays.copyOf(addrs, i));
+			throw e;
+		}
+		release(addrs);
+		return removed;
+	}
+	
+	public LinkedList<LinkedList<String>> searchAll(int keys[]) throws IOException {
+		//the fields of each key as search returns them, in the order of keys
+		//the index is searched in one pass and the rows are then read in the order they lie in the file
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		try {
+			long addrs[] = tree.searchAll(keys);
+			long byAddr[] = new long[keys.length];	//row number in the high half and index into keys in the low half
+			for(int i = 0; i < keys.length; i++) byAddr[i] = (addrs[i] == 0 ? -1 : (addrs[i] - firstRow)/rowSize) << 32 | i;
+			Arrays.sort(byAddr);
+			ArrayList<LinkedList<String>> found = new ArrayList<>(Collections.nCopies(keys.length, null));
+			for(long packed : byAddr) {
+				int i = (int) packed;
+				LinkedList<String> fields = new LinkedList<>();
+				if(addrs[i] != 0) {
+					Row cur = new Row(addrs[i]);
+					if(cur.keyField == keys[i]) addFields(cur, fields);
+				}
+				found.set(i, fields);
+			}
+			return new LinkedList<>(found);
+		} finally {
+			if(m != null) m.end(Metrics.Op.SEARCH_BATCH, start);
+		}
+	}
+	
+	private boolean removeRow(int key) throws IOException {
 		long addr = tree.remove(key);
 		if(addr == 0) return false;
-		addToFree(addr);
+		try {
+			unindex(addr);
+		} catch(IOException | RuntimeException e) {
+			//the field indexes are as they were and the row is intact, so the key goes back rather than leave them pointing at a freed row
+			tree.insert(key, addr);
+			throw e;
+		}
+		release(addr);
 		return true;
 	}
 	
 	public LinkedList<String> search(int key) throws IOException {
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
 		LinkedList<String> toReturn = new LinkedList<>();
 		long loc = tree.search(key);
-		if(loc == 0) return toReturn;
-		return addFields(loc, toReturn);
+		if(loc != 0) {
+			Row cur = new Row(loc);
+			if(cur.keyField == key) addFields(cur, toReturn);	//otherwise the row was removed and its space reused after the lookup
+		}
+		if(m != null) m.end(Metrics.Op.SEARCH, start);
+		return toReturn;
+	}
+	
+	public LinkedList<CharSequence> search(int key, int... columns) throws IOException {
+		//columns <- indexes into the other fields, only those are read and they are returned in the order given
+		//each field is a view over one copy of the bytes the columns span, cut before the '\0's that pad it
+		//empty fields are kept so the list lines up with columns, an empty list is returned if key is not in the table
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		long loc = tree.search(key);
+		LinkedList<CharSequence> toReturn = loc == 0 ? null : readColumns(loc, key, columns, false);
+		if(m != null) m.end(Metrics.Op.SEARCH, start);
+		return toReturn == null ? new LinkedList<>() : toReturn;
+	}
+	
+	public LinkedList<LinkedList<CharSequence>> rangeSearch(int low, int high, int... columns) throws IOException {
+		//rows from low to high in ascending key order, each the key followed by the fields in columns as search returns them
+		return rangeSearch(low, high, null, columns);
+	}
+	
+	LinkedList<LinkedList<CharSequence>> rangeSearch(int low, int high, LongList keys, int... columns) throws IOException {
+		//keys <- gets the key of each row returned, in the same order, unless null
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		LinkedList<LinkedList<CharSequence>> toReturn = new LinkedList<>();
+		BTree.Cursor cursor = tree.cursor(low, true, high, true, false);
+		while(cursor.hasNext()) {
+			int key = cursor.peekKey();
+			LinkedList<CharSequence> row = readColumns(cursor.nextLong(), key, columns, true);
+			if(row != null) {
+				toReturn.add(row);
+				if(keys != null) keys.add(key);
+			}
+		}
+		if(m != null) m.end(Metrics.Op.RANGE_SEARCH, start);
+		return toReturn;
 	}
 	
 	public LinkedList<LinkedList<String>> rangeSearch(int low, int high) throws IOException {
-		LinkedList<Long> addrs = tree.rangeSearch(low, high);
+		return rangeSearch(low, true, high, true, false);
+	}
+	
+	public LinkedList<LinkedList<String>> rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//rows are returned in ascending key order, or descending order if descending is set
+		return rangeSearch(low, lowInclusive, high, highInclusive, descending, null);
+	}
+	
+	LinkedList<LinkedList<String>> rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending, LongList keys) throws IOException {
+		//keys <- gets the key of each row returned, in the same order, unless null
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
 		LinkedList<LinkedList<String>> toReturn = new LinkedList<>();
-		LinkedList<String> toAdd;
-		Row cur;
-		for(long addr: addrs) {
-			toAdd = new LinkedList<>();
-			cur = new Row(addr);
-			toAdd.add(cur.keyField + "");
-			toReturn.add(addFields(addr, toAdd));
+		BTree.Cursor cursor = tree.cursor(low, lowInclusive, high, highInclusive, descending);
+		while(cursor.hasNext()) {
+			int key = cursor.peekKey();
+			LinkedList<String> row = readRow(cursor.nextLong(), key);
+			if(row != null) {
+				toReturn.add(row);
+				if(keys != null) keys.add(key);
+			}
 		}
+		if(m != null) m.end(Metrics.Op.RANGE_SEARCH, start);
 		return toReturn;
 	}
-
-	private LinkedList<String> addFields(long addr, LinkedList<String> list) throws IOException {
+	
+	public Iterator<LinkedList<String>> iterator(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//lazy version of rangeSearch, rows are read as they are asked for and I/O errors are thrown as UncheckedIOException
+		BTree.Cursor cursor = tree.cursor(low, lowInclusive, high, highInclusive, descending);
+		return new Iterator<LinkedList<String>>() {
+			private LinkedList<String> row;	//next row, read one ahead so rows removed after the cursor passed their key are skipped
+			
+			public boolean hasNext() {
+				try {
+					while(row == null && cursor.hasNext()) {
+						Metrics m = metrics;
+						long start = m == null ? 0 : m.start();
+						int key = cursor.peekKey();
+						row = readRow(cursor.nextLong(), key);
+						if(m != null) m.end(Metrics.Op.CURSOR_READ, start);
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return row != null;
+			}
+			
+			public LinkedList<String> next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				LinkedList<String> toReturn = row;
+				row = null;
+				return toReturn;
+			}
+		};
+	}
+	
+	public Stream<LinkedList<String>> stream() throws IOException {
+		//every row in ascending key order
+		return stream(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, false);
+	}
+	
+	public Stream<LinkedList<String>> stream(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//rows of the range as a lazy stream, use limit or a short-circuiting operation to stop early
+		Iterator<LinkedList<String>> it = iterator(low, lowInclusive, high, highInclusive, descending);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	public Spliterator<LinkedList<String>> spliterator(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) {
+		//rows of the range as stream returns them, split at keys of the index's internal nodes so each part walks whole subtrees
+		//rows are read lazily and I/O errors are thrown as UncheckedIOException
+		long l = lowInclusive ? low : low + 1L;
+		long h = highInclusive ? high : high - 1L;
+		if(l > h) return new RangeSpliterator(1, 0, descending, 0);
+		return new RangeSpliterator((int) l, (int) h, descending, Long.MAX_VALUE);
+	}
+	
+	public Stream<LinkedList<String>> parallelStream(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) {
+		//rows of the range read and decoded in parallel, on the common ForkJoinPool or on the pool the terminal operation is started from
+		//the stream keeps key order, call unordered on it when the order does not matter so no part waits on the ones before it
+		//a table that is not concurrent must not be changed meanwhile
+		return StreamSupport.stream(spliterator(low, lowInclusive, high, highInclusive, descending), true);
+	}
+	
+	public LinkedList<LinkedList<String>> rangeSearchParallel(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//rangeSearch with the range cut into parts that are read on every core, the rows come back in the same order
+		Metrics m = metrics;
+		long start = m == null ? 0 : m.start();
+		LinkedList<LinkedList<String>> toReturn;
+		try {
+			toReturn = new LinkedList<>(parallelStream(low, lowInclusive, high, highInclusive, descending).collect(Collectors.toList()));	//parts are joined as arrays, linking once at the end
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if(m != null) m.end(Metrics.Op.RANGE_SEARCH, start);
+		return toReturn;
+	}
+	
+	public Stream<LinkedList<String>> scanRows() throws IOException {
+		//every row as rangeSearch returns them, in the order the rows lie in the file rather than by key
+		//the file is read front to back in chunks of SCAN_CHUNK_SIZE past the cache and the index is never read, so a full export runs at the speed of the disk
+		//changed rows are written to the file first, a logged table is checkpointed, and rows inserted or removed while the scan runs may or may not be seen
+		//I/O errors are thrown as UncheckedIOException
+		if(wal != null) checkpoint();
+		else store.flush();
+		FileChannel channel = rows.getChannel();
+		long end = store.length();
+		ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(1, SCAN_CHUNK_SIZE/rowSize)*rowSize).limit(0);
+		Iterator<LinkedList<String>> it = new Iterator<LinkedList<String>>() {
+			private long next = firstRow;	//address of the row after the chunk
+			private int at;	//offset in the chunk of the next row to look at
+			private LinkedList<String> row;	//next row in use, read one ahead so free rows are skipped
+			
+			public boolean hasNext() {
+				while(row == null) {
+					if(at == chunk.limit() && !readChunk()) return false;
+					if(!space.isFree(next - chunk.limit() + at)) {
+						Row cur = new Row(chunk, at);
+						row = new LinkedList<>();
+						row.add(cur.keyField + "");
+						addFields(cur, row);
+					}
+					at += rowSize;
+				}
+				return true;
+			}
+			
+			private boolean readChunk() {
+				//the rows from next on up to end, as many as the chunk holds
+				Metrics m = metrics;
+				long start = m == null ? 0 : m.start();
+				long n = Math.min(chunk.capacity(), end - next)/rowSize;
+				chunk.clear().limit((int) n*rowSize);
+				try {
+					while(chunk.hasRemaining()) {
+						if(channel.read(chunk, next + chunk.position()) < 0) break;	//cut by a vacuum meanwhile
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				chunk.limit(chunk.position() - chunk.position() % rowSize);
+				next += chunk.limit();
+				at = 0;
+				if(m != null) m.end(Metrics.Op.CURSOR_READ, start);
+				return chunk.limit() > 0;
+			}
+			
+			public LinkedList<String> next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				LinkedList<String> toReturn = row;
+				row = null;
+				return toReturn;
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.NONNULL), false);
+	}
+	
+	private LinkedList<String> readRow(long addr, int key) throws IOException {
+		//key followed by the other fields of the row at addr, or null if the row no longer holds key
+		LinkedList<String> toAdd = new LinkedList<>();
 		Row cur = new Row(addr);
+		if(cur.keyField != key) return null;
+		toAdd.add(cur.keyField + "");
+		return addFields(cur, toAdd);
+	}
+
+	private LinkedList<CharSequence> readColumns(long addr, int key, int columns[], boolean withKey) throws IOException {
+		//fields of the row at addr numbered in columns, preceded by the key if withKey, or null if the row no longer holds key
+		int from = rowSize;
+		int to = 4;
+		for(int c : columns) {
+			if(c < 0 || c >= numOtherFields) throw new IllegalArgumentException("no column " + c);
+			from = Math.min(from, fieldOffsets[c]);
+			to = Math.max(to, fieldOffsets[c] + fieldWidths[c]);
+		}
+		if(from > to) from = to;	//no columns, only the key is read
+		byte copy[] = new byte[to - from];
+		ByteBuffer buffer = store.pin(addr);
+		int rowKey = buffer.getInt(0);
+		buffer.get(from, copy);
+		store.unpin(addr, false);
+		if(rowKey != key) return null;
+		
+		ByteBuffer bytes = ByteBuffer.wrap(copy);
+		LinkedList<CharSequence> list = new LinkedList<>();
+		if(withKey) list.add(Integer.toString(key));
+		for(int c : columns) {
+			CharBuffer field = encoding == FieldEncoding.CHARS ? bytes.slice(fieldOffsets[c] - from, fieldWidths[c]).asCharBuffer() : CharBuffer.wrap(decode(bytes, fieldOffsets[c] - from, c));
+			int length = field.length();
+			while(length > 0 && field.get(length - 1) == '\0') length--;
+			list.add(field.limit(length));
+		}
+		return list;
+	}
+	
+	private LinkedList<String> addFields(Row cur, LinkedList<String> list) {
 		for(int i = 0; i < cur.otherFields.length; i++) {
-			String temp = "";
+			StringBuilder temp = new StringBuilder(cur.otherFields[i].length);
 			for(int j = 0; j < cur.otherFields[i].length; j++) {
-				if(cur.otherFields[i][j] != '\0') temp += cur.otherFields[i][j];
+				if(cur.otherFields[i][j] != '\0') temp.append(cur.otherFields[i][j]);
 			}
-			if(temp != "") list.add(temp);
+			if(temp.length() > 0) list.add(temp.toString());
 		}
 		return list;
 	}
 	
-	private long getFree() throws IOException {
-		return free == 0 ? rows.length() : free;
+	private byte[] encode(int field, char value[]) {
+		//value in the table's encoding without the '\0's that pad it, refused if a char has no LATIN1 byte
+		int length = value.length;
+		while(length > 0 && value[length - 1] == '\0') length--;
+		if(encoding == FieldEncoding.UTF8) return new String(value, 0, length).getBytes(StandardCharsets.UTF_8);
+		byte bytes[] = new byte[length];
+		for(int j = 0; j < length; j++) {
+			if(value[j] > 0xFF) throw new IllegalArgumentException("field " + field + " holds a char that is not LATIN1");
+			bytes[j] = (byte) value[j];
+		}
+		return bytes;
 	}
 	
-	private void removeFromFree() throws IOException {
-		if(free == 0) return;
-		rows.seek(free);
-		long next = rows.readLong();
-		rows.seek(8);
-		rows.writeLong(next);
-		free = next;
+	private char[] decode(ByteBuffer bytes, int at, int field) {
+		//the field stored from at in a byte encoding, padded with '\0's to the length of the field
+		char value[] = new char[otherFieldLengths[field]];
+		if(encoding == FieldEncoding.LATIN1) {
+			for(int j = 0; j < value.length; j++) value[j] = (char) (bytes.get(at + j) & 0xFF);
+			return value;
+		}
+		int length = fieldWidths[field];
+		while(length > 0 && bytes.get(at + length - 1) == 0) length--;
+		CharBuffer chars = StandardCharsets.UTF_8.decode(bytes.slice(at, length));	//never more chars than bytes
+		chars.get(value, 0, chars.remaining());
+		return value;
+	}
+	
+	private long allocate() throws IOException {
+		return allocate(1)[0];
+	}
+	
+	private synchronized long[] allocate(int n) throws IOException {
+		//n rows one after another in the lowest run of free rows long enough, otherwise the scattered free rows are used up before the file grows
+		long length = store.length();
+		long rs[] = new long[n];
+		long r = space.allocate(n, length);
+		if(r < length || space.count() == 0) {
+			for(int i = 0; i < n; i++) rs[i] = r + (long) i*rowSize;
+		} else {
+			long end = length;
+			for(int i = 0; i < n; i++) {
+				rs[i] = space.allocate(end);
+				if(rs[i] == end) end += rowSize;
+			}
+		}
+		long last = 0;
+		for(long addr : rs) {
+			last = Math.max(last, addr);
+			count(addr < length ? Metrics.Event.FREE_HIT : Metrics.Event.APPEND);
+		}
+		if(last >= length) {
+			store.pin(last);
+			store.unpin(last, true);	//a dirty row counts toward the length, so the next allocation starts past it
+		}
+		return rs;
 	}
 
-	private void addToFree(long r) throws IOException {
-		rows.seek(8);
-		rows.writeLong(r);
-		rows.seek(r);
-		rows.writeLong(free);
-		free = r;
+	private void release(long r) {
+		space.release(r);
+	}
+	
+	private void release(long rs[]) {
+		//frees every nonzero address in rs
+		for(long r : rs) {
+			if(r != 0) space.release(r);
+		}
+	}
+	
+	private void count(Metrics.Event e) {
+		Metrics m = metrics;
+		if(m != null) m.record(e);
+	}
+	
+	public Metrics enableMetrics(String name) {
+		//times the table's operations and counts row writes and allocations, registered with JMX as BTree:type=DBTable,name=<name>
+		//the index gets metrics of its own, registered as BTree:type=BTree under the same name
+		//name <- null to keep the metrics out of JMX
+		if(metrics == null) {
+			synchronized(this) {
+				if(metrics == null) {
+					tree.enableMetrics(name);
+					metrics = new Metrics("DBTable", name, new Metrics.Gauges() {
+						public int height() throws IOException {
+							return tree.getHeight();
+						}
+						
+						public double fill() {
+							//rows in use over the rows the file holds
+							long slots = (store.length() - firstRow)/rowSize;
+							return slots == 0 ? 0 : (double) (slots - space.count())/slots;
+						}
+						
+						public BufferPool pool() {
+							SlabStore slabs = slabs();
+							return slabs == null ? null : slabs.getPool();
+						}
+						
+						public int pageSize() {
+							//the pool moves whole slabs
+							SlabStore slabs = slabs();
+							return slabs == null ? rowSize : slabs.getSlabSize();
+						}
+					});
+				}
+			}
+		}
+		return metrics;
+	}
+	
+	private SlabStore slabs() {
+		//the store under the log, null when the file is mapped
+		PageStore base = store instanceof LoggedStore ? ((LoggedStore) store).getBase() : store;
+		return base instanceof SlabStore ? (SlabStore) base : null;
+	}
+	
+	public synchronized void disableMetrics() {
+		Metrics m = metrics;
+		metrics = null;
+		if(m != null) m.unregister();
+		tree.disableMetrics();
+	}
+	
+	public Metrics getMetrics() {
+		//null while metrics are off
+		return metrics;
+	}
+	
+	public Metrics getIndexMetrics() {
+		//the metrics of the key index, null while metrics are off
+		return tree.getMetrics();
+	}
+	
+	boolean isConcurrent() {
+		return concurrent;
+	}
+	
+	BTree.Cursor keys(int low, int high) throws IOException {
+		//row addresses from low to high in key order, for ShardedDBTable to count and move rows
+		return tree.cursor(low, true, high, true, false);
+	}
+	
+	Iterator<Map.Entry<Integer, char[][]>> entries(int low, int high) throws IOException {
+		//rows from low to high in key order as bulkInsert takes them, short fields still padded with '\0's
+		//I/O errors are thrown as UncheckedIOException
+		BTree.Cursor cursor = tree.cursor(low, true, high, true, false);
+		return new Iterator<Map.Entry<Integer, char[][]>>() {
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+			
+			public Map.Entry<Integer, char[][]> next() {
+				int key = cursor.peekKey();
+				try {
+					return Map.entry(key, new Row(cursor.nextLong()).otherFields);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+	
+	public FieldEncoding getEncoding() {
+		return encoding;
+	}
+	
+	public int getFreeRows() {
+		//rows inside the file that are not in use, what vacuum would give back
+		return space.count();
+	}
+	
+	public void vacuum() throws IOException {
+		//moves the rows into key order at the start of the file and the index nodes likewise (see BTree.compact), then cuts both files after what is in use
+		//the table must not be used by other threads meanwhile
+		//a logged table moves everything in one log record, forced before either file is cut, without a log a crash part way through leaves the table unusable
+		if(wal == null) {
+			long rowsEnd = moveRows();
+			long treeEnd = tree.relocate();
+			store.truncate(rowsEnd);
+			tree.truncate(treeEnd);
+			return;
+		}
+		writes.lock();
+		try {
+			long rowsEnd = moveRows();
+			long treeEnd = tree.relocate();
+			wal.commit();
+			wal.checkpoint();
+			store.truncate(rowsEnd);
+			tree.truncate(treeEnd);
+		} finally {
+			writes.unlock();
+		}
+	}
+	
+	private long moveRows() throws IOException {
+		//gives the i-th row in key order the i-th place in the file, returns the length of the file the rows then take
+		int to[] = new int[(int) ((store.length() - firstRow)/rowSize)];
+		Arrays.fill(to, -1);
+		int n = 0;
+		BTree.Cursor cursor = tree.cursor();
+		while(cursor.hasNext()) to[(int) ((cursor.nextLong() - firstRow)/rowSize)] = n++;
+		FreeSpace.relocate(store, firstRow, rowSize, to, null);
+		tree.renumber(firstRow, rowSize);
+		moveIndexes(to);
+		space.clear();
+		return firstRow + (long) n*rowSize;
+	}
+	
+	private void moveIndexes(int to[]) throws IOException {
+		//points the field index entries at the places moveRows gave their rows
+		//the keys stay as they are, so a cursor can walk each index while its entries change
+		for(ByteKeyBTree index : indexes) {
+			if(index == null) continue;
+			ByteKeyBTree.Cursor cursor = index.cursor();
+			try {
+				while(cursor.hasNext()) {
+					byte key[] = cursor.peekKey();
+					long addr = cursor.nextLong();
+					index.replace(key, firstRow + (long) to[(int) ((addr - firstRow)/rowSize)]*rowSize);
+				}
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+	
+	public void createIndex(int field) throws IOException {
+		//builds an index from the values of other field number field to the rows holding them, every change keeps it up to date from then on
+		//the index is kept in filename + "Index" + field and opened with the table from then on
+		//the table must not be changed by other threads while the index is built
+		if(field < 0 || field >= numOtherFields) throw new IllegalArgumentException("no field " + field);
+		if(indexes[field] != null) throw new IllegalStateException("field " + field + " is already indexed");
+		if(wal != null && 2 + field > 0xFF) throw new IllegalArgumentException("field " + field + " is past the 254 fields the log can number");
+		if(wal == null) {
+			indexes[field] = buildIndex(field);
+			return;
+		}
+		writes.lock();
+		try {
+			wal.sync();	//the index is built from the rows as the log has them on disk, so a crash cannot leave it ahead of the table
+			indexes[field] = buildIndex(field);
+			loggedIndexes[field] = indexes[field].logTo(2 + field);
+			wal.attach(2 + field, loggedIndexes[field]);
+		} finally {
+			writes.unlock();
+		}
+	}
+	
+	private ByteKeyBTree buildIndex(int field) throws IOException {
+		//the index is built and closed under a temporary name and then renamed, so a crash part way leaves no index at all
+		int bSize = Math.max(INDEX_BLOCK_SIZE, 4*(2*otherFieldLengths[field] + 4 + 16) + 16);	//see ByteKeyBTree.getMaxKeyLength
+		File building = new File(indexFile(field).getPath() + "New");
+		building.delete();	//left by a crash during an earlier build
+		new File(building.getPath() + "Free").delete();
+		ByteKeyBTree index = new ByteKeyBTree(building.getPath(), bSize, mode, cacheSize);
+		BTree.Cursor cursor = tree.cursor();
+		while(cursor.hasNext()) {
+			long addr = cursor.nextLong();
+			Row cur = new Row(addr);
+			index.insert(indexKey(field, cur.otherFields[field], cur.keyField), addr);
+		}
+		index.close();
+		//the index file appears whole or not at all, if a crash loses the rename recovery skips what the log holds for it
+		Files.move(new File(building.getPath() + "Free").toPath(), new File(indexFile(field).getPath() + "Free").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(building.toPath(), indexFile(field).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new ByteKeyBTree(indexFile(field).getPath(), mode, cacheSize, concurrent);
+	}
+	
+	public boolean isIndexed(int field) {
+		return indexes[field] != null;
+	}
+	
+	private byte[] indexKey(int field, char value[], int key) {
+		//the value as big endian chars padded with '\0' to the length of the field, which sort as the chars do,
+		//then the key with its sign flipped, so rows sharing a value stay apart and come in key order
+		int length = otherFieldLengths[field];
+		ByteBuffer k = ByteBuffer.allocate(2*length + 4);
+		for(int j = 0; j < value.length && j < length; j++) k.putChar(2*j, value[j]);
+		k.putInt(2*length, key ^ Integer.MIN_VALUE);
+		return k.array();
+	}
+	
+	private void index(int key, char fields[][], long addr) throws IOException {
+		//adds the row at addr to every field index, or to none of them if one fails
+		int i = 0;
+		try {
+			for(; i < numOtherFields; i++) {
+				if(indexes[i] != null) indexes[i].insert(indexKey(i, i < fields.length ? fields[i] : new char[0], key), addr);
+			}
+		} catch(IOException | RuntimeException e) {
+			while(--i >= 0) {
+				if(indexes[i] != null) indexes[i].remove(indexKey(i, i < fields.length ? fields[i] : new char[0], key));
+			}
+			throw e;
+		}
+	}
+	
+	private void unindex(long addr) throws IOException {
+		//drops the row at addr, which must still be intact, from every field index, or from none of them if one fails
+		Row cur = null;
+		int i = 0;
+		try {
+			for(; i < numOtherFields; i++) {
+				if(indexes[i] == null) continue;
+				if(cur == null) cur = new Row(addr);
+				indexes[i].remove(indexKey(i, cur.otherFields[i], cur.keyField));
+			}
+		} catch(IOException | RuntimeException e) {
+			while(--i >= 0) {
+				if(indexes[i] != null) indexes[i].insert(indexKey(i, cur.otherFields[i], cur.keyField), addr);
+			}
+			throw e;
+		}
+	}
+	
+	private void indexRows() throws IOException {
+		//adds every row to the field indexes, once a bulk insert has filled the table
+		boolean indexed = false;
+		for(ByteKeyBTree index : indexes) indexed |= index != null;
+		if(!indexed) return;
+		BTree.Cursor cursor = tree.cursor();
+		while(cursor.hasNext()) {
+			long addr = cursor.nextLong();
+			Row cur = new Row(addr);
+			index(cur.keyField, cur.otherFields, addr);
+		}
+	}
+	
+	public LinkedList<LinkedList<String>> searchByField(int field, char value[]) throws IOException {
+		//rows whose other field number field holds value, each the key followed by the other fields as rangeSearch returns them, in key order
+		//the field must be indexed, see createIndex
+		if(value.length > otherFieldLengths[field]) return new LinkedList<>();	//no row can hold it
+		return rangeSearchByField(field, value, value);
+	}
+	
+	public LinkedList<LinkedList<String>> rangeSearchByField(int field, char low[], char high[]) throws IOException {
+		//rows whose other field number field lies from low to high, ordered by that field and then by key
+		//fields are compared char by char with values shorter than the field padded by '\0's and longer ones cut to it
+		ByteKeyBTree index = field >= 0 && field < numOtherFields ? indexes[field] : null;
+		if(index == null) throw new IllegalStateException("field " + field + " is not indexed");
+		LinkedList<LinkedList<String>> toReturn = new LinkedList<>();
+		ByteKeyBTree.Cursor cursor = index.cursor(indexKey(field, low, Integer.MIN_VALUE), true, indexKey(field, high, Integer.MAX_VALUE), true);
+		try {
+			while(cursor.hasNext()) {
+				byte key[] = cursor.peekKey();
+				LinkedList<String> row = readRow(cursor.nextLong(), ByteBuffer.wrap(key).getInt(key.length - 4) ^ Integer.MIN_VALUE);
+				if(row != null) toReturn.add(row);
+			}
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return toReturn;
+	}
+	
+	private void writeHeader(long free) throws IOException {
+		//free space field, then the field lengths, written without moving the file pointer
+		//none of it changes while the table is open, so it is written straight to the file on open and close and never logged
+		ByteBuffer header = ByteBuffer.allocate((int) firstRow);
+		header.putLong(free);
+		header.putInt(numOtherFields | encoding.ordinal() << 24);
+		for(int i = 0; i < numOtherFields; i++) header.putInt(otherFieldLengths[i]);
+		header.flip();
+		while(header.hasRemaining()) rows.getChannel().write(header, header.position());
 	}
 	
 	public void print() throws IOException {
-		for(long addr : tree.inOrder()) {
-			printRow(addr);
+		BTree.Cursor cursor = tree.cursor();
+		while(cursor.hasNext()) {
+			printRow(cursor.nextLong());
 			System.out.print('\n');
 		}
 	}
@@ -169,12 +1336,19 @@ public class DBTable {
 	}
 
 	public void close() throws IOException {
+		disableMetrics();
+		if(wal != null) wal.sync();	//the log must hold every change before the stores write them to the files
 		tree.close();
-		rows.seek(0);
-		rows.writeLong(free);
-		rows.writeInt(numOtherFields);
-		for(int i = 0; i < numOtherFields; i++) {
-			rows.writeInt(otherFieldLengths[i]);
+		for(ByteKeyBTree index : indexes) {
+			if(index != null) index.close();
+		}
+		store.close();
+		//the map is forced before the header points at it, a crash in between only costs a rebuild on open
+		space.save(spaceFile, store.length());
+		writeHeader(SPACE_SAVED);
+		if(wal != null) {
+			wal.close();
+			log.close();
 		}
 		rows.close();
 	}
@@ -0,0 +1,5 @@
+public enum Durability {
+	NONE,	//no log, changes reach the files when pages are written back and on close
+	DEFERRED,	//changes are logged, the log is forced only by sync, checkpoints and close, a crash loses the latest operations but never leaves one half applied
+	SYNC	//insert and remove return once their log record is on disk, operations committing at the same time share one force
+}
@@ -0,0 +1,5 @@
+public enum FieldEncoding {
+	CHARS,	//two bytes a char, a field holds as many chars as its length, any char
+	LATIN1,	//one byte a char, a field holds as many chars as its length, chars above 0xFF are refused
+	UTF8	//a field holds as many bytes as its length in UTF-8, so ASCII takes one byte a char and anything else up to four
+}
@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class FreeSpace {
+	//free pages of a file made of equal sized pages, kept as a bitmap so allocating and freeing never touch the file
+	//the map is saved as a list of free extents in a file of its own when its owner closes, and rebuilt by the owner otherwise
+	private long first;	//address of page 0
+	private int pageSize;
+	private BitSet free;	//bit i is set if page i is free, pages past the end of the file are never set
+	private int count;	//number of bits set in free
+
+	public FreeSpace(long firstPage, int pSize) {
+		first = firstPage;
+		pageSize = pSize;
+		free = new BitSet();
+	}
+
+	public FreeSpace(long firstPage, int pSize, long length) {
+		//every page before length starts out free, for owners rebuilding the map by reserving the pages they reach
+		this(firstPage, pSize);
+		count = page(length);
+		free.set(0, count);
+	}
+
+	private int page(long addr) {
+		return (int) ((addr - first)/pageSize);
+	}
+
+	private long address(int page) {
+		return first + (long) page*pageSize;
+	}
+
+	public synchronized long allocate(long length) {
+		//lowest free page, or length when none is free and the file has to grow
+		//length <- current length of the file
+		int i = free.nextSetBit(0);
+		if(i < 0) return length;
+		take(i, 1);
+		return address(i);
+	}
+
+	public synchronized long allocateNear(long addr, long length) {
+		//first free page after addr, so a page split off from the one at addr is read soon after it by a scan
+		int i = free.nextSetBit(page(addr) + 1);
+		if(i < 0) return allocate(length);
+		take(i, 1);
+		return address(i);
+	}
+
+	public synchronized long allocate(int n, long length) {
+		//start of the lowest run of n free pages, or length when no run is long enough
+		int i = free.nextSetBit(0);
+		while(i >= 0) {
+			int j = free.nextClearBit(i);
+			if(j - i >= n) {
+				take(i, n);
+				return address(i);
+			}
+			i = free.nextSetBit(j);
+		}
+		return length;
+	}
+
+	private void take(int from, int n) {
+		free.clear(from, from + n);
+		count -= n;
+	}
+
+	public synchronized void release(long addr) {
+		int i = page(addr);
+		if(free.get(i)) throw new IllegalStateException("page " + addr + " is already free");
+		free.set(i);
+		count++;
+	}
+
+	public synchronized void reserve(long addr) {
+		//marks a free page as in use
+		int i = page(addr);
+		if(free.get(i)) take(i, 1);
+	}
+
+	public synchronized boolean isFree(long addr) {
+		return free.get(page(addr));
+	}
+
+	public synchronized void clear() {
+		//every page is in use, as after the owner has moved its pages together
+		free.clear();
+		count = 0;
+	}
+
+	public synchronized int count() {
+		return count;
+	}
+
+	public static void relocate(PageStore store, long first, int pageSize, int to[], Consumer<ByteBuffer> fix) throws IOException {
+		//moves page i of store to page to[i] for every i where to[i] >= 0, following each cycle of moves with one page in hand
+		//fix <- applied to a copy of every page moved before it is written, to repoint addresses held in it, may be null
+		BitSet moved = new BitSet(to.length);
+		ByteBuffer carry = ByteBuffer.allocate(pageSize);
+		ByteBuffer next = ByteBuffer.allocate(pageSize);
+		for(int s = 0; s < to.length; s++) {
+			if(to[s] < 0 || moved.get(s)) continue;
+			copyPage(store, first + (long) s*pageSize, carry, pageSize);
+			int at = s;
+			while(true) {
+				moved.set(at);
+				int dest = to[at];
+				boolean more = to[dest] >= 0 && !moved.get(dest);	//dest holds a page still to be moved, so it is read before being overwritten
+				if(more) copyPage(store, first + (long) dest*pageSize, next, pageSize);
+				if(fix != null) fix.accept(carry);
+				long addr = first + (long) dest*pageSize;
+				store.pin(addr).put(0, carry, 0, pageSize);
+				store.unpin(addr, true);
+				if(!more) break;
+				ByteBuffer t = carry;
+				carry = next;
+				next = t;
+				at = dest;
+			}
+		}
+	}
+
+	private static void copyPage(PageStore store, long addr, ByteBuffer into, int pageSize) throws IOException {
+		into.put(0, store.pin(addr), 0, pageSize);
+		store.unpin(addr, false);
+	}
+
+	public synchronized void save(File file, long length) throws IOException {
+		//file length, number of extents, then the first page and length of each extent, followed by a CRC32 of all of it
+		//the file is forced, so an owner that marks its header afterwards never points at a map that is not on disk
+		int extents = 0;
+		for(int i = free.nextSetBit(0); i >= 0; i = free.nextSetBit(free.nextClearBit(i))) extents++;
+		ByteBuffer out = ByteBuffer.allocate(12 + 8*extents + 8);
+		out.putLong(length);
+		out.putInt(extents);
+		for(int i = free.nextSetBit(0); i >= 0; ) {
+			int j = free.nextClearBit(i);
+			out.putInt(i);
+			out.putInt(j - i);
+			i = free.nextSetBit(j);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(out.array(), 0, out.position());
+		out.putLong(crc.getValue());
+		out.flip();
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			while(out.hasRemaining()) raf.getChannel().write(out, out.position());
+			raf.getChannel().force(false);
+		}
+	}
+
+	public static FreeSpace load(File file, long firstPage, int pSize, long length) throws IOException {
+		//the map saved by save, or null if there is none or it was saved for a file of another length
+		if(!file.exists()) return null;
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		if(in.remaining() < 20) return null;
+		CRC32 crc = new CRC32();
+		crc.update(in.array(), 0, in.limit() - 8);
+		if(crc.getValue() != in.getLong(in.limit() - 8)) return null;
+		if(in.getLong() != length) return null;
+		int extents = in.getInt();
+		if(in.remaining() != 8*extents + 8) return null;
+		FreeSpace space = new FreeSpace(firstPage, pSize);
+		for(int e = 0; e < extents; e++) {
+			int from = in.getInt();
+			int n = in.getInt();
+			space.free.set(from, from + n);
+			space.count += n;
+		}
+		return space;
+	}
+}
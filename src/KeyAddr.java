@@ -0,0 +1,9 @@
+public class KeyAddr {
+	public final int key;
+	public final long addr;	//address of the row related to key
+	
+	public KeyAddr(int k, long a) {
+		key = k;
+		addr = a;
+	}
+}
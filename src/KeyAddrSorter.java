@@ -0,0 +1,154 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+public class KeyAddrSorter {
+	public static final int DEFAULT_RUN_SIZE = 1 << 20;	//pairs sorted in memory before a run is spilled
+	
+	private int keys[];	//pairs of the run being collected
+	private long addrs[];
+	private int n;
+	private ArrayList<File> runs;	//sorted runs spilled to temporary files
+	private ArrayList<DataInputStream> open;	//runs being merged
+
+	public KeyAddrSorter() {
+		this(DEFAULT_RUN_SIZE);
+	}
+
+	public KeyAddrSorter(int runSize) {
+		keys = new int[runSize];
+		addrs = new long[runSize];
+		runs = new ArrayList<>();
+		open = new ArrayList<>();
+	}
+
+	public void add(int key, long addr) throws IOException {
+		if(n == keys.length) spill();
+		keys[n] = key;
+		addrs[n] = addr;
+		n++;
+	}
+
+	public Iterator<KeyAddr> sorted() throws IOException {
+		//returns every pair added in ascending key order, merging the spilled runs if there are any
+		sortRun();
+		if(runs.isEmpty()) return memoryRun();
+		if(n > 0) spill();
+		return merge();
+	}
+
+	public void close() throws IOException {
+		//removes the temporary files
+		for(DataInputStream in : open) in.close();
+		for(File run : runs) run.delete();
+		open.clear();
+		runs.clear();
+	}
+
+	private void sortRun() {
+		//sorts the run in memory by packing each key with its position so no objects are created
+		long packed[] = new long[n];
+		for(int i = 0; i < n; i++) packed[i] = ((long) keys[i] << 32) | i;
+		Arrays.sort(packed);
+		int sortedKeys[] = new int[keys.length];
+		long sortedAddrs[] = new long[addrs.length];
+		for(int i = 0; i < n; i++) {
+			int from = (int) packed[i];
+			sortedKeys[i] = keys[from];
+			sortedAddrs[i] = addrs[from];
+		}
+		keys = sortedKeys;
+		addrs = sortedAddrs;
+	}
+
+	private void spill() throws IOException {
+		sortRun();
+		File run = File.createTempFile("btree", ".run");
+		run.deleteOnExit();
+		runs.add(run);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+			for(int i = 0; i < n; i++) {
+				out.writeInt(keys[i]);
+				out.writeLong(addrs[i]);
+			}
+		}
+		n = 0;
+	}
+
+	private Iterator<KeyAddr> memoryRun() {
+		return new Iterator<KeyAddr>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+				return i < n;
+			}
+
+			public KeyAddr next() {
+				if(i == n) throw new NoSuchElementException();
+				KeyAddr toReturn = new KeyAddr(keys[i], addrs[i]);
+				i++;
+				return toReturn;
+			}
+		};
+	}
+
+	private Iterator<KeyAddr> merge() throws IOException {
+		//k-way merge holding the head pair of every run in a heap
+		PriorityQueue<RunHead> heap = new PriorityQueue<>((a, b) -> Integer.compare(a.pair.key, b.pair.key));
+		for(File run : runs) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+			open.add(in);
+			RunHead head = new RunHead(in);
+			if(head.advance()) heap.add(head);
+		}
+		return new Iterator<KeyAddr>() {
+			public boolean hasNext() {
+				return !heap.isEmpty();
+			}
+
+			public KeyAddr next() {
+				if(heap.isEmpty()) throw new NoSuchElementException();
+				RunHead head = heap.poll();
+				KeyAddr toReturn = head.pair;
+				try {
+					if(head.advance()) heap.add(head);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return toReturn;
+			}
+		};
+	}
+
+	private static class RunHead {
+		private DataInputStream in;
+		private KeyAddr pair;	//smallest pair of the run not yet returned
+
+		public RunHead(DataInputStream i) {
+			in = i;
+		}
+
+		private boolean advance() throws IOException {
+			int key;
+			try {
+				key = in.readInt();
+			} catch(EOFException e) {
+				return false;
+			}
+			pair = new KeyAddr(key, in.readLong());
+			return true;
+		}
+	}
+}
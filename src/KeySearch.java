@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+
+public interface KeySearch {
+	//finds a key among the sorted keys of a node, BTree uses the one best returns for every node it searches
+	public static final KeySearch SCALAR = new ScalarKeySearch();
+
+	//number of keys[0..count) <= key, the child of an internal node that covers key
+	public int upper(int keys[], int count, int key);
+
+	//number of keys[0..count) < key
+	public int lower(int keys[], int count, int key);
+
+	//upper over count keys stored one int after another from offset of page
+	public int upper(ByteBuffer page, int offset, int count, int key);
+
+	public default int find(int keys[], int count, int key) {
+		//index of key or -1 if it is not there
+		int i = upper(keys, count, key) - 1;
+		return i >= 0 && keys[i] == key ? i : -1;
+	}
+
+	public default int find(ByteBuffer page, int offset, int count, int key) {
+		int i = upper(page, offset, count, key) - 1;
+		return i >= 0 && page.getInt(offset + 4*i) == key ? i : -1;
+	}
+
+	public static KeySearch vector() {
+		//the SIMD search, null unless the vector profile built it and the JVM runs with --add-modules jdk.incubator.vector
+		//it is loaded by name so the default build needs neither the incubator module nor a newer Java
+		try {
+			KeySearch v = (KeySearch) Class.forName("VectorKeySearch").getDeclaredConstructor().newInstance();
+			return agrees(v) ? v : null;
+		} catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	public static KeySearch best() {
+		//the vector search where there is one, -Dbtree.vector=false keeps the scalar search anyway
+		if(!Boolean.parseBoolean(System.getProperty("btree.vector", "true"))) return SCALAR;
+		KeySearch v = vector();
+		return v == null ? SCALAR : v;
+	}
+
+	private static boolean agrees(KeySearch s) {
+		//s gives the answers of SCALAR for every count and probe over a few vectors' worth of keys
+		//an incubator API that changed under a newer JVM fails here rather than in the middle of a search
+		int keys[] = new int[70];
+		ByteBuffer page = ByteBuffer.allocate(4 + 4*keys.length);
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = 3*i - 100;
+			page.putInt(4 + 4*i, keys[i]);
+		}
+		for(int count = 0; count <= keys.length; count++) {
+			for(int key = -103; key <= 3*keys.length - 98; key++) {
+				if(s.upper(keys, count, key) != SCALAR.upper(keys, count, key)) return false;
+				if(s.lower(keys, count, key) != SCALAR.lower(keys, count, key)) return false;
+				if(s.upper(page, 4, count, key) != SCALAR.upper(page, 4, count, key)) return false;
+			}
+		}
+		return true;
+	}
+}
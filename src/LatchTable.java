@@ -0,0 +1,78 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LatchTable {
+	private ConcurrentHashMap<Long, Latch> latches;	//latches of the pages someone holds or waits for
+	private AtomicInteger active;	//latches held or waited for, summed over all pages
+	private ReentrantLock idleLock;
+	private Condition idle;	//signalled when active drops to zero
+
+	private static class Latch {
+		private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private int users;	//threads holding or waiting for the latch, it is dropped from the table at zero
+	}
+
+	public LatchTable() {
+		latches = new ConcurrentHashMap<>();
+		active = new AtomicInteger();
+		idleLock = new ReentrantLock();
+		idle = idleLock.newCondition();
+	}
+
+	public void acquire(long addr, boolean exclusive) {
+		//blocks until the page at addr is latched, shared latches may be held by many readers at once
+		Latch latch = join(addr);
+		if(exclusive) latch.lock.writeLock().lock();
+		else latch.lock.readLock().lock();
+	}
+
+	public boolean tryAcquire(long addr, boolean exclusive) {
+		//latches the page only if that can be done without waiting
+		Latch latch = join(addr);
+		boolean acquired = exclusive ? latch.lock.writeLock().tryLock() : latch.lock.readLock().tryLock();
+		if(!acquired) leave(addr);
+		return acquired;
+	}
+
+	public void release(long addr, boolean exclusive) {
+		Latch latch = latches.get(addr);
+		if(exclusive) latch.lock.writeLock().unlock();
+		else latch.lock.readLock().unlock();
+		leave(addr);
+	}
+
+	public void awaitIdle() {
+		//waits until no page is latched or waited for, the caller keeps new latches from being taken meanwhile
+		idleLock.lock();
+		try {
+			while(active.get() > 0) idle.awaitUninterruptibly();
+		} finally {
+			idleLock.unlock();
+		}
+	}
+
+	private Latch join(long addr) {
+		active.incrementAndGet();
+		return latches.compute(addr, (a, latch) -> {
+			if(latch == null) latch = new Latch();
+			latch.users++;
+			return latch;
+		});
+	}
+
+	private void leave(long addr) {
+		latches.computeIfPresent(addr, (a, latch) -> --latch.users == 0 ? null : latch);
+		if(active.decrementAndGet() == 0) {
+			//taking the lock orders this after a waiter's check of active, so the signal cannot fall between its check and its wait
+			idleLock.lock();
+			try {
+				idle.signalAll();
+			} finally {
+				idleLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+public class LoggedStore implements PageStore {
+	//keeps every page changed since the last checkpoint to itself, so nothing reaches the file before the log holds it
+	private PageStore base;	//store the pages are read from, and written to at checkpoints
+	private FileChannel channel;	//file of base, the header is written to it directly
+	private int file;	//number of the file in log records
+	private int pageSize;
+	private HashMap<Long, ByteBuffer> changed;	//pages changed since the last checkpoint, address 0 holds the file's header
+	private LinkedHashSet<Long> touched;	//addresses changed by the operation being built
+	private long end;	//length of the file including changed pages
+	private boolean logging;	//false while changes go straight to base, as during a bulk load
+
+	public LoggedStore(PageStore b, FileChannel c, int fileNum, int pSize) {
+		//fileNum <- number of the file in log records, which keep it in a byte
+		if(fileNum < 0 || fileNum > 0xFF) throw new IllegalArgumentException("log file number " + fileNum + " does not fit a byte");
+		base = b;
+		channel = c;
+		file = fileNum;
+		pageSize = pSize;
+		changed = new HashMap<>();
+		touched = new LinkedHashSet<>();
+		end = base.length();
+		logging = true;
+	}
+
+	public ByteBuffer pin(long addr) throws IOException {
+		//base is always pinned as well, so its pins stay balanced however the page moves into changed
+		//base is pinned outside the lock, so a read of one page does not hold up pins of pages already in memory
+		ByteBuffer page = base.pin(addr);
+		synchronized(this) {
+			ByteBuffer copy = changed.get(addr);
+			return copy != null ? copy : page;
+		}
+	}
+
+	public synchronized void unpin(long addr, boolean dirty) {
+		if(!logging || !dirty) {
+			base.unpin(addr, dirty);
+			return;
+		}
+		if(!changed.containsKey(addr)) {
+			//the change was made in base's buffer, move it out before base can write it back
+			ByteBuffer copy = ByteBuffer.allocate(pageSize);
+			try {
+				copy.put(0, base.pin(addr), 0, pageSize);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);	//the page is pinned, so it cannot need reading
+			}
+			base.unpin(addr, false);
+			changed.put(addr, copy);
+		}
+		base.unpin(addr, false);
+		touched.add(addr);
+		end = Math.max(end, addr + pageSize);
+	}
+
+	public synchronized long length() {
+		return Math.max(end, base.length());
+	}
+
+	public synchronized void truncate(long length) throws IOException {
+		//only safe once the log holds whatever made the dropped pages unused, a replay may still write them past the new end
+		changed.keySet().removeIf(addr -> addr != 0 && addr >= length);
+		touched.removeIf(addr -> addr != 0 && addr >= length);
+		end = Math.min(end, length);
+		base.truncate(length);
+	}
+
+	public void flush() {
+		//changes are made durable through the log, the file catches up at checkpoints
+	}
+
+	public synchronized void close() throws IOException {
+		checkpoint();
+		base.close();
+	}
+
+	public synchronized void writeHeader(ByteBuffer header) throws IOException {
+		//header bytes for offset 0 of the file, held back like a page while logging
+		if(!logging) {
+			//the pages it points at are made durable first
+			base.flush();
+			channel.force(false);
+			while(header.hasRemaining()) channel.write(header, header.position());
+			return;
+		}
+		ByteBuffer copy = ByteBuffer.allocate(header.remaining());
+		copy.put(0, header, header.position(), header.remaining());
+		changed.put(0L, copy);
+		touched.add(0L);
+	}
+
+	public synchronized void setLogging(boolean on) {
+		logging = on;
+	}
+
+	public synchronized ByteBuffer drain(ByteBuffer record) {
+		//appends a redo entry for every address touched since the last call, returns record or a larger copy of it
+		for(long addr : touched) {
+			ByteBuffer page = changed.get(addr);
+			int length = page.capacity();
+			record = Wal.ensure(record, 13 + length);
+			record.put((byte) file);
+			record.putLong(addr);
+			record.putInt(length);
+			record.put(record.position(), page, 0, length);
+			record.position(record.position() + length);
+		}
+		touched.clear();
+		return record;
+	}
+
+	public synchronized void checkpoint() throws IOException {
+		//writes every changed page into base and forces the file, the log must already be on disk
+		for(Map.Entry<Long, ByteBuffer> entry : changed.entrySet()) {
+			long addr = entry.getKey();
+			ByteBuffer page = entry.getValue();
+			if(addr == 0) {
+				page.clear();
+				while(page.hasRemaining()) channel.write(page, page.position());
+				continue;
+			}
+			base.pin(addr).put(0, page, 0, pageSize);
+			base.unpin(addr, true);
+		}
+		base.flush();
+		channel.force(false);
+		changed.clear();
+	}
+
+	public PageStore getBase() {
+		return base;
+	}
+}
@@ -0,0 +1,61 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.stream.LongStream;
+
+public class LongList {
+	//growable list of longs kept in a long[], so adding and reading them creates no objects
+	private long values[];
+	private int size;
+
+	public LongList() {
+		this(16);
+	}
+
+	public LongList(int capacity) {
+		values = new long[Math.max(1, capacity)];
+	}
+
+	public void add(long value) {
+		if(size == values.length) values = Arrays.copyOf(values, 2*size);
+		values[size++] = value;
+	}
+
+	public long get(int i) {
+		if(i < 0 || i >= size) throw new IndexOutOfBoundsException("index " + i + " of " + size);
+		return values[i];
+	}
+
+	public long last() {
+		if(size == 0) throw new NoSuchElementException();
+		return values[size-1];
+	}
+
+	public long removeLast() {
+		if(size == 0) throw new NoSuchElementException();
+		return values[--size];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public long[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	public LongStream stream() {
+		return Arrays.stream(values, 0, size);
+	}
+
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
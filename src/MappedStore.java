@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class MappedStore implements PageStore {
+	private static final long SEGMENT_SIZE = 1L << 26;	//bytes of the file covered by each mapping
+	
+	private FileChannel channel;	//file being mapped
+	private int pageSize;
+	private MappedByteBuffer segments[];	//segment i maps the file from i*SEGMENT_SIZE, mapped on first use
+	private long end;	//length of the file in use, the mappings may extend the file past it
+
+	public MappedStore(FileChannel c, int pSize) throws IOException {
+		channel = c;
+		pageSize = pSize;
+		segments = new MappedByteBuffer[4];
+		end = channel.size();
+	}
+
+	public synchronized ByteBuffer pin(long addr) throws IOException {
+		//returns a view of the mapping, reads and writes through it go straight to the file's pages
+		int s = (int) (addr/SEGMENT_SIZE);
+		return segment(s).slice((int) (addr - s*SEGMENT_SIZE), pageSize);
+	}
+
+	public synchronized void unpin(long addr, boolean dirty) {
+		if(dirty) end = Math.max(end, addr + pageSize);
+	}
+
+	public synchronized long length() {
+		return end;
+	}
+
+	public synchronized void truncate(long length) throws IOException {
+		//the mappings are dropped first, touching a mapping past the end of its file is fatal
+		Arrays.fill(segments, null);
+		end = Math.min(end, length);
+		channel.truncate(length);
+	}
+
+	public void flush() {
+		//writes to a mapping are already visible through the file
+	}
+
+	public synchronized void close() throws IOException {
+		//mapping a segment grows the file to cover it, so cut it back to what is in use
+		Arrays.fill(segments, null);
+		channel.truncate(end);
+	}
+
+	private MappedByteBuffer segment(int s) throws IOException {
+		if(s >= segments.length) segments = Arrays.copyOf(segments, Math.max(s+1, 2*segments.length));
+		if(segments[s] == null) {
+			//each mapping overlaps the next by a page so a page never straddles two mappings
+			segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, s*SEGMENT_SIZE, SEGMENT_SIZE + pageSize);
+		}
+		return segments[s];
+	}
+}
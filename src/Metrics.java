@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMXBean {
+	//operation latencies and event counts of one BTree or DBTable, from its enableMetrics until its disableMetrics or close
+	//owners hold null while metrics are off, so a disabled tree pays one field read per operation and per event
+	private static final int BUCKETS = 488;	//eight per power of two up to 2^62 nanoseconds
+
+	public enum Op {
+		INSERT,
+		SEARCH,
+		REMOVE,
+		RANGE_SEARCH,
+		INSERT_BATCH,	//an insertAll, one call however many keys it holds
+		SEARCH_BATCH,
+		REMOVE_BATCH,
+		CURSOR_READ	//a lazy walk reading on: a tree cursor its first or next leaf, a table iterator or stream a row, scanRows a chunk
+	}
+
+	public enum Event {
+		WRITE,	//a node or row written
+		SPLIT,
+		MERGE,
+		BORROW,	//an entry moved from a neighbor into a node that fell below half full
+		FREE_HIT,	//a free page reused
+		APPEND	//a page added at the end of the file
+	}
+
+	interface Gauges {
+		//what the owner knows without counting, read only when asked for
+		public int height() throws IOException;
+		public double fill() throws IOException;
+		public BufferPool pool();	//null when the file is mapped
+		public int pageSize();
+	}
+
+	private final LongAdder latencies[][] = new LongAdder[Op.values().length][BUCKETS];	//[op][bucket], calls that took as long as the bucket holds
+	private final LongAdder totals[] = new LongAdder[Op.values().length];	//nanoseconds spent in each op
+	private final LongAdder events[] = new LongAdder[Event.values().length];
+	private final CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+	private final Gauges gauges;
+	private final ObjectName name;	//null when JMX registration was not asked for
+	private long hits, misses, writeBacks;	//buffer pool counts at the last reset
+
+	Metrics(String type, String name, Gauges g) {
+		//type <- BTree or DBTable, name <- JMX name, null to skip registering
+		gauges = g;
+		for(LongAdder op[] : latencies) {
+			for(int b = 0; b < BUCKETS; b++) op[b] = new LongAdder();
+		}
+		for(int i = 0; i < totals.length; i++) totals[i] = new LongAdder();
+		for(int i = 0; i < events.length; i++) events[i] = new LongAdder();
+		baseline();
+		if(name == null) {
+			this.name = null;
+			return;
+		}
+		try {
+			this.name = new ObjectName("BTree:type=" + type + ",name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+		} catch(JMException e) {
+			throw new IllegalArgumentException("cannot register metrics as " + name, e);
+		}
+	}
+
+	void unregister() {
+		if(name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch(JMException e) {
+			//already gone, nothing is left to release
+		}
+	}
+
+	long start() {
+		return System.nanoTime();
+	}
+
+	void end(Op op, long start) {
+		long nanos = System.nanoTime() - start;
+		latencies[op.ordinal()][bucket(nanos)].increment();
+		totals[op.ordinal()].add(nanos);
+		for(MetricsListener l : listeners) l.operation(op, nanos);
+	}
+
+	void record(Event e) {
+		events[e.ordinal()].increment();
+		for(MetricsListener l : listeners) l.event(e);
+	}
+
+	private static int bucket(long nanos) {
+		//below 8 one bucket per nanosecond, then the top four bits, so each bucket is at most an eighth of its lower bound wide
+		if(nanos < 8) return (int) Math.max(nanos, 0);
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		return (exp - 2) << 3 | (int) (nanos >>> (exp - 3) & 7);
+	}
+
+	private static long lowerBound(int b) {
+		if(b < 8) return b;
+		return (8L | (b & 7)) << ((b >>> 3) - 1);
+	}
+
+	public void addListener(MetricsListener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(MetricsListener l) {
+		listeners.remove(l);
+	}
+
+	public long count(Op op) {
+		long n = 0;
+		for(LongAdder b : latencies[op.ordinal()]) n += b.sum();
+		return n;
+	}
+
+	public long count(Event e) {
+		return events[e.ordinal()].sum();
+	}
+
+	public double mean(Op op) {
+		//nanoseconds, 0 before the first call
+		long n = count(op);
+		return n == 0 ? 0 : (double) totals[op.ordinal()].sum()/n;
+	}
+
+	public long percentile(Op op, double q) {
+		//nanoseconds under which a fraction q of the calls finished, the upper bound of the bucket holding that call
+		if(q <= 0 || q > 1) throw new IllegalArgumentException("q must be in (0, 1]");
+		long n = count(op);
+		if(n == 0) return 0;
+		long rank = (long) Math.ceil(q*n);
+		long seen = 0;
+		for(int b = 0; b < BUCKETS; b++) {
+			seen += latencies[op.ordinal()][b].sum();
+			if(seen >= rank) return b + 1 < BUCKETS ? lowerBound(b + 1) : Long.MAX_VALUE;
+		}
+		return Long.MAX_VALUE;	//calls recorded after n was summed
+	}
+
+	public synchronized void reset() {
+		for(LongAdder op[] : latencies) {
+			for(LongAdder b : op) b.reset();
+		}
+		for(LongAdder t : totals) t.reset();
+		for(LongAdder e : events) e.reset();
+		baseline();
+	}
+
+	private synchronized void baseline() {
+		BufferPool pool = gauges.pool();
+		if(pool == null) return;
+		hits = pool.getHits();
+		misses = pool.getMisses();
+		writeBacks = pool.getWriteBacks();
+	}
+
+	public long getInserts() {
+		return count(Op.INSERT);
+	}
+
+	public long getSearches() {
+		return count(Op.SEARCH);
+	}
+
+	public long getRemoves() {
+		return count(Op.REMOVE);
+	}
+
+	public long getRangeSearches() {
+		return count(Op.RANGE_SEARCH);
+	}
+
+	public long getInsertBatches() {
+		return count(Op.INSERT_BATCH);
+	}
+
+	public long getSearchBatches() {
+		return count(Op.SEARCH_BATCH);
+	}
+
+	public long getRemoveBatches() {
+		return count(Op.REMOVE_BATCH);
+	}
+
+	public long getCursorReads() {
+		return count(Op.CURSOR_READ);
+	}
+
+	public double meanMicros(String op) {
+		return mean(Op.valueOf(op))/1000;
+	}
+
+	public double percentileMicros(String op, double q) {
+		return percentile(Op.valueOf(op), q)/1000.0;
+	}
+
+	public long getPageWrites() {
+		return count(Event.WRITE);
+	}
+
+	public long getSplits() {
+		return count(Event.SPLIT);
+	}
+
+	public long getMerges() {
+		return count(Event.MERGE);
+	}
+
+	public long getBorrows() {
+		return count(Event.BORROW);
+	}
+
+	public long getFreeHits() {
+		return count(Event.FREE_HIT);
+	}
+
+	public long getAppends() {
+		return count(Event.APPEND);
+	}
+
+	public synchronized long getCacheHits() {
+		BufferPool pool = gauges.pool();
+		return pool == null ? 0 : pool.getHits() - hits;
+	}
+
+	public synchronized long getCacheMisses() {
+		BufferPool pool = gauges.pool();
+		return pool == null ? 0 : pool.getMisses() - misses;
+	}
+
+	public long getBytesRead() {
+		return getCacheMisses()*gauges.pageSize();
+	}
+
+	public synchronized long getBytesWritten() {
+		BufferPool pool = gauges.pool();
+		return pool == null ? 0 : (pool.getWriteBacks() - writeBacks)*gauges.pageSize();
+	}
+
+	public int getHeight() throws IOException {
+		return gauges.height();
+	}
+
+	public double fillFactor() throws IOException {
+		return gauges.fill();
+	}
+}
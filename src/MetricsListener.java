@@ -0,0 +1,8 @@
+public interface MetricsListener {
+	//called by the thread that ran op as it returns, nanos <- time the operation took
+	public void operation(Metrics.Op op, long nanos);
+
+	//called where the event happens, possibly with nodes latched, so it must not call back into the tree or table
+	public default void event(Metrics.Event event) {
+	}
+}
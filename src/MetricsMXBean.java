@@ -0,0 +1,60 @@
+import java.io.IOException;
+
+public interface MetricsMXBean {
+	//the JMX view of Metrics, registered as BTree:type=BTree or BTree:type=DBTable with the name given to enableMetrics
+	//op names are those of Metrics.Op, times are in microseconds
+
+	public long getInserts();
+
+	public long getSearches();
+
+	public long getRemoves();
+
+	public long getRangeSearches();
+
+	public long getInsertBatches();
+
+	public long getSearchBatches();
+
+	public long getRemoveBatches();
+
+	//leaves read by cursors, rows by table iterators and streams, chunks by scanRows
+	public long getCursorReads();
+
+	//mean time of op since the last reset
+	public double meanMicros(String op);
+
+	//time under which a fraction q of op's calls finished, to within an eighth
+	public double percentileMicros(String op, double q);
+
+	public long getPageWrites();
+
+	public long getSplits();
+
+	public long getMerges();
+
+	public long getBorrows();
+
+	//allocations that reused a free page
+	public long getFreeHits();
+
+	//allocations that grew the file
+	public long getAppends();
+
+	//pages found in the buffer pool, 0 when the file is mapped
+	public long getCacheHits();
+
+	//pages read from the file, 0 when the file is mapped
+	public long getCacheMisses();
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public int getHeight() throws IOException;
+
+	//fraction of the slots in use, read from every leaf of a tree when called, so an operation rather than an attribute monitors poll
+	public double fillFactor() throws IOException;
+
+	public void reset();
+}
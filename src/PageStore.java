@@ -0,0 +1,22 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface PageStore {
+	//returns the page at addr, addressed from index 0, and keeps it in memory until unpinned
+	public ByteBuffer pin(long addr) throws IOException;
+	
+	//releases a pin taken by pin, dirty marks the page as modified
+	public void unpin(long addr, boolean dirty);
+	
+	//file length as seen through the store, including pages not yet written back
+	public long length();
+	
+	//drops every page at or past length, none of which may be pinned, and cuts the file there
+	public void truncate(long length) throws IOException;
+	
+	//makes every modified page visible in the file
+	public void flush() throws IOException;
+	
+	//flushes and releases the store, the file itself is closed by its owner
+	public void close() throws IOException;
+}
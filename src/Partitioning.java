@@ -0,0 +1,4 @@
+public enum Partitioning {
+	RANGE,	//each shard holds one run of keys, so a range search reads only the shards it overlaps and a shard that grows too large can be split
+	HASH	//keys are spread over the shards by a hash of the key, which evens out runs of keys written together, every range search reads every shard
+}
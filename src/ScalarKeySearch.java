@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+public class ScalarKeySearch implements KeySearch {
+	//binary search, one key compared at a time
+
+	public int upper(int keys[], int count, int key) {
+		int lo = 0;
+		int hi = count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid] <= key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	public int lower(int keys[], int count, int key) {
+		int lo = 0;
+		int hi = count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	public int upper(ByteBuffer page, int offset, int count, int key) {
+		int lo = 0;
+		int hi = count;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(page.getInt(offset + 4*mid) <= key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
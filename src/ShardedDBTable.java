@@ -0,0 +1,644 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ShardedDBTable {
+	//a table divided by key into shards, each a DBTable with files of its own, so operations on different shards run in parallel
+	//the list of shards is kept in <name>Shards and shard <id> is stored as the DBTable <name>Shard<id>
+	private static final int REMOVE_BATCH = 4096;	//keys removed at a time from a shard that was split
+
+	private String name;
+	private Partitioning partitioning;
+	private int blockSize;
+	private int fieldLengths[];
+	private StorageMode mode;
+	private long cacheSize;	//bytes of cache for each shard
+	private boolean concurrent;
+	private Durability durability;
+	private FieldEncoding encoding;	//of every shard, kept in the shards' own headers
+	private volatile Shard shards[];	//in key order for range shards, by hash bucket for hash shards
+	private int nextId;	//id the next shard made by a split gets
+	private volatile long maxShardRows;	//a range shard holding more rows than this is split, 0 never splits
+	private ExecutorService executor;	//searches the shards of a range, and the groups of a batch, in parallel
+
+	private class Shard {
+		private final int id;
+		private final int low;	//smallest key a range shard holds
+		private volatile long high;	//keys of a range shard are below high, lowered when the shard is split
+		private DBTable table;
+		private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();	//shared by operations on concurrent shards, exclusive otherwise and while the shard is split
+		private AtomicLong rows = new AtomicLong(-1);	//rows the shard holds, -1 until counted
+
+		private Shard(int i, int l, long h, DBTable t) {
+			id = i;
+			low = l;
+			high = h;
+			table = t;
+		}
+
+		private boolean holds(int key) {
+			return partitioning == Partitioning.HASH || key >= low && key < high;
+		}
+
+		private Lock use() {
+			return concurrent ? lock.readLock() : lock.writeLock();
+		}
+
+		private void added(long n) {
+			rows.updateAndGet(r -> r < 0 ? r : r + n);
+		}
+	}
+
+	private interface ShardCall<T> {
+		public T call(Shard s) throws IOException;
+	}
+
+	private interface RangeCall<R> {
+		//keys <- gets the key of each row returned, in the same order
+		public LinkedList<R> call(DBTable t, int low, int high, LongList keys) throws IOException;
+	}
+
+	private static class Run<R> {
+		//rows from one shard in key order, with their keys so merging them reads no key back out of a row
+		private LinkedList<R> rows;
+		private LongList keys = new LongList();
+	}
+
+	private interface BatchCall {
+		//at <- indexes into the batch of the keys s holds, s is held meanwhile
+		public void call(Shard s, int at[]) throws IOException;
+	}
+
+	public ShardedDBTable(String filename, int fl[], int bSize, int n) throws IOException {
+		this(filename, fl, bSize, n, Partitioning.RANGE);
+	}
+
+	public ShardedDBTable(String filename, int fl[], int bSize, int n, Partitioning p) throws IOException {
+		this(filename, fl, bSize, n, p, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE, false, Durability.NONE);
+	}
+
+	public ShardedDBTable(String filename, int fl[], int bSize, int n, Partitioning p, StorageMode m, long cache, boolean c, Durability d) throws IOException {
+		this(filename, fl, bSize, n, p, m, cache, c, d, FieldEncoding.CHARS);
+	}
+
+	public ShardedDBTable(String filename, int fl[], int bSize, int n, Partitioning p, StorageMode m, long cache, boolean c, Durability d, FieldEncoding e) throws IOException {
+		//n <- shards to start with, range shards divide the keys into n runs of equal width
+		//cache <- bytes of cache for all the shards together, divided evenly between them
+		//concurrent <- true if the shards themselves are shared between threads, otherwise each shard runs one operation at a time
+		if(n < 1) throw new IllegalArgumentException("a table needs at least one shard");
+		name = filename;
+		partitioning = p;
+		blockSize = bSize;
+		fieldLengths = fl.clone();
+		mode = m;
+		cacheSize = cache/n;
+		concurrent = c;
+		durability = d;
+		encoding = e;
+		File old = new File(name + "Shards");
+		if(old.exists()) {
+			//the shards of an earlier table of the same name, and those of its splits that never made it into its list
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(old.toPath()));
+			in.position(8);
+			int fields = in.getInt();
+			in.position(in.position() + 4*fields);
+			int ids = in.getInt() + in.getInt();
+			deleteShards(new HashSet<>(), ids, fields);
+		}
+		Shard list[] = new Shard[n];
+		for(int i = 0; i < n; i++) {
+			long low = p == Partitioning.RANGE ? Integer.MIN_VALUE + ((long) i << 32)/n : Integer.MIN_VALUE;
+			long high = p == Partitioning.RANGE ? Integer.MIN_VALUE + ((i + 1L) << 32)/n : Integer.MAX_VALUE + 1L;
+			list[i] = new Shard(i, (int) low, high, new DBTable(shardFile(i), fieldLengths, blockSize, mode, cacheSize, concurrent, durability, encoding));
+			list[i].rows.set(0);
+		}
+		nextId = n;
+		writeShards(list);
+		shards = list;
+		setupExecutor();
+	}
+
+	public ShardedDBTable(String filename) throws IOException {
+		this(filename, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE, false, Durability.NONE);
+	}
+
+	public ShardedDBTable(String filename, StorageMode m, long cache, boolean c, Durability d) throws IOException {
+		//opens the shards in the list, files of shards a crash left out of it are deleted
+		name = filename;
+		mode = m;
+		concurrent = c;
+		durability = d;
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(new File(name + "Shards").toPath()));
+		partitioning = Partitioning.values()[in.getInt()];
+		blockSize = in.getInt();
+		fieldLengths = new int[in.getInt()];
+		for(int i = 0; i < fieldLengths.length; i++) fieldLengths[i] = in.getInt();
+		nextId = in.getInt();
+		Shard list[] = new Shard[in.getInt()];
+		int ids[] = new int[list.length];
+		int lows[] = new int[list.length];
+		for(int i = 0; i < list.length; i++) {
+			ids[i] = in.getInt();
+			lows[i] = in.getInt();
+		}
+		cacheSize = cache/list.length;
+		Set<Integer> keep = new HashSet<>();
+		for(int i = 0; i < list.length; i++) {
+			long high = partitioning == Partitioning.RANGE && i + 1 < list.length ? lows[i + 1] : Integer.MAX_VALUE + 1L;
+			list[i] = new Shard(ids[i], lows[i], high, new DBTable(shardFile(ids[i]), mode, cacheSize, concurrent, durability));
+			keep.add(ids[i]);
+		}
+		deleteShards(keep, nextId + list.length, fieldLengths.length);
+		encoding = list[0].table.getEncoding();
+		shards = list;
+		for(Shard s : list) trim(s);
+		setupExecutor();
+	}
+
+	private void setupExecutor() {
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "ShardedDBTable");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private String shardFile(int id) {
+		return name + "Shard" + id;
+	}
+
+	private void deleteShards(Set<Integer> keep, int ids, int fields) {
+		//deletes the files of the shards below ids not in keep, those of a split that never made it into the list
+		//ids <- the next id of the list plus its length, as each split in progress holds a listed shard and has taken one id past it
+		//only the names a shard of fields indexable fields can have are deleted, so files that merely start like a shard's are left alone
+		for(int id = 0; id < ids; id++) {
+			if(keep.contains(id)) continue;
+			String shard = shardFile(id);
+			for(String suffix : new String[] {"", "Free", "Wal", "BTree", "BTreeFree"}) new File(shard + suffix).delete();
+			for(int i = 0; i < fields; i++) {
+				for(String suffix : new String[] {"", "Free", "New", "NewFree"}) new File(shard + "Index" + i + suffix).delete();
+			}
+		}
+	}
+
+	private void writeShards(Shard list[]) throws IOException {
+		//partitioning, block size, field lengths, next id, then the id and lowest key of each shard
+		//written to a new file and moved over the list, so a crash leaves the old list or the new one whole
+		ByteBuffer out = ByteBuffer.allocate(20 + 4*fieldLengths.length + 8*list.length);
+		out.putInt(partitioning.ordinal());
+		out.putInt(blockSize);
+		out.putInt(fieldLengths.length);
+		for(int length : fieldLengths) out.putInt(length);
+		out.putInt(nextId);
+		out.putInt(list.length);
+		for(Shard s : list) {
+			out.putInt(s.id);
+			out.putInt(s.low);
+		}
+		out.flip();
+		File next = new File(name + "ShardsNew");
+		try(RandomAccessFile raf = new RandomAccessFile(next, "rw")) {
+			raf.setLength(0);
+			while(out.hasRemaining()) raf.getChannel().write(out, out.position());
+			raf.getChannel().force(false);
+		}
+		Files.move(next.toPath(), new File(name + "Shards").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Shard route(int key) {
+		//shard that holds key according to the list as it is now
+		Shard list[] = shards;
+		if(partitioning == Partitioning.HASH) return list[Math.floorMod(mix(key), list.length)];
+		int lo = 0;
+		int hi = list.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(list[mid].low <= key) lo = mid;
+			else hi = mid - 1;
+		}
+		return list[lo];
+	}
+
+	private static int mix(int key) {
+		//spreads runs of keys over the buckets
+		int h = key*0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private <T> T onShard(int key, ShardCall<T> call) throws IOException {
+		//runs call holding the shard that holds key, looking again if a split moved key while the shard was waited for
+		while(true) {
+			Shard s = route(key);
+			Lock l = s.use();
+			l.lock();
+			try {
+				if(s.holds(key)) return call.call(s);
+			} finally {
+				l.unlock();
+			}
+		}
+	}
+
+	public boolean insert(int key, char fields[][]) throws IOException {
+		Shard into[] = new Shard[1];
+		boolean inserted = onShard(key, s -> {
+			into[0] = s;
+			boolean added = s.table.insert(key, fields);
+			if(added) s.added(1);
+			return added;
+		});
+		if(inserted) splitIfFull(into[0]);
+		return inserted;
+	}
+
+	public boolean remove(int key) throws IOException {
+		return onShard(key, s -> {
+			boolean removed = s.table.remove(key);
+			if(removed) s.added(-1);
+			return removed;
+		});
+	}
+
+	public LinkedList<String> search(int key) throws IOException {
+		return onShard(key, s -> s.table.search(key));
+	}
+
+	public LinkedList<CharSequence> search(int key, int... columns) throws IOException {
+		return onShard(key, s -> s.table.search(key, columns));
+	}
+
+	public LinkedList<LinkedList<String>> rangeSearch(int low, int high) throws IOException {
+		return rangeSearch(low, true, high, true, false);
+	}
+
+	public LinkedList<LinkedList<String>> rangeSearch(int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) throws IOException {
+		//rows as DBTable.rangeSearch returns them, every shard the range overlaps is searched at once and their rows are merged by key
+		long from = lowInclusive ? low : low + 1L;
+		long to = highInclusive ? high : high - 1L;
+		if(from > to) return new LinkedList<>();
+		return merge(gather(from, to, (t, l, h, keys) -> t.rangeSearch(l, true, h, true, descending, keys)), descending);
+	}
+
+	public LinkedList<LinkedList<CharSequence>> rangeSearch(int low, int high, int... columns) throws IOException {
+		if(low > high) return new LinkedList<>();
+		return merge(gather(low, high, (t, l, h, keys) -> t.rangeSearch(l, h, keys, columns)), false);
+	}
+
+	private <R> List<Run<R>> gather(long low, long high, RangeCall<R> call) throws IOException {
+		//one run of rows from each shard overlapping [low, high], the shards searched in parallel
+		List<Callable<List<Run<R>>>> tasks = new ArrayList<>();
+		for(Shard s : shards) {
+			long seen = s.high;	//a split after this moves keys out of what the task searches, it then finds them again
+			if(partitioning == Partitioning.RANGE && (s.low > high || seen <= low)) continue;
+			tasks.add(() -> searchShard(s, seen, low, high, call));
+		}
+		List<Run<R>> runs = new ArrayList<>();
+		for(List<Run<R>> part : parallel(tasks)) runs.addAll(part);
+		return runs;
+	}
+
+	private <R> List<Run<R>> searchShard(Shard s, long seen, long low, long high, RangeCall<R> call) throws IOException {
+		//seen <- high of s when it was picked
+		List<Run<R>> runs = new ArrayList<>();
+		long now;
+		Lock l = s.use();
+		l.lock();
+		try {
+			now = s.high;
+			long from = partitioning == Partitioning.RANGE ? Math.max(low, s.low) : low;
+			long to = partitioning == Partitioning.RANGE ? Math.min(high, now - 1) : high;
+			if(from <= to) {
+				Run<R> run = new Run<>();
+				run.rows = call.call(s.table, (int) from, (int) to, run.keys);
+				runs.add(run);
+			}
+		} finally {
+			l.unlock();
+		}
+		if(now < seen && now <= high) runs.addAll(gather(Math.max(low, now), Math.min(high, seen - 1), call));
+		return runs;
+	}
+
+	private static class Head<R> {
+		//next row of one run in a merge
+		private Iterator<R> rest;
+		private LongList keys;
+		private int next;	//index in keys of the row after row
+		private R row;
+		private long key;
+
+		private Head(Run<R> run) {
+			rest = run.rows.iterator();
+			keys = run.keys;
+		}
+
+		private boolean advance() {
+			if(!rest.hasNext()) return false;
+			row = rest.next();
+			key = keys.get(next++);
+			return true;
+		}
+	}
+
+	private static <R> LinkedList<R> merge(List<Run<R>> runs, boolean descending) {
+		//k-way merge of runs sorted by key
+		if(runs.size() == 1) return runs.get(0).rows;
+		PriorityQueue<Head<R>> heads = new PriorityQueue<>((a, b) -> descending ? Long.compare(b.key, a.key) : Long.compare(a.key, b.key));
+		for(Run<R> run : runs) {
+			Head<R> head = new Head<>(run);
+			if(head.advance()) heads.add(head);
+		}
+		LinkedList<R> merged = new LinkedList<>();
+		while(!heads.isEmpty()) {
+			Head<R> head = heads.poll();
+			merged.add(head.row);
+			if(head.advance()) heads.add(head);
+		}
+		return merged;
+	}
+
+	public boolean[] insertAll(int keys[], char fields[][][]) throws IOException {
+		//keys are grouped by shard and each group goes in with the shard's insertAll, the groups in parallel
+		if(keys.length != fields.length) throw new IllegalArgumentException("keys and fields differ in length");
+		boolean inserted[] = new boolean[keys.length];
+		batch(keys, (s, at) -> {
+			int k[] = new int[at.length];
+			char f[][][] = new char[at.length][][];
+			for(int i = 0; i < at.length; i++) {
+				k[i] = keys[at[i]];
+				f[i] = fields[at[i]];
+			}
+			boolean done[] = s.table.insertAll(k, f);
+			int added = 0;
+			for(int i = 0; i < at.length; i++) {
+				inserted[at[i]] = done[i];
+				if(done[i]) added++;
+			}
+			s.added(added);
+		});
+		for(Shard s : shards) splitIfFull(s);
+		return inserted;
+	}
+
+	public boolean[] removeAll(int keys[]) throws IOException {
+		boolean removed[] = new boolean[keys.length];
+		batch(keys, (s, at) -> {
+			int k[] = new int[at.length];
+			for(int i = 0; i < at.length; i++) k[i] = keys[at[i]];
+			boolean done[] = s.table.removeAll(k);
+			int gone = 0;
+			for(int i = 0; i < at.length; i++) {
+				removed[at[i]] = done[i];
+				if(done[i]) gone++;
+			}
+			s.added(-gone);
+		});
+		return removed;
+	}
+
+	public LinkedList<LinkedList<String>> searchAll(int keys[]) throws IOException {
+		//the fields of each key as search returns them, in the order of keys
+		List<LinkedList<String>> found = new ArrayList<>(Collections.nCopies(keys.length, null));	//each group sets its own slots
+		batch(keys, (s, at) -> {
+			int k[] = new int[at.length];
+			for(int i = 0; i < at.length; i++) k[i] = keys[at[i]];
+			Iterator<LinkedList<String>> rows = s.table.searchAll(k).iterator();
+			for(int i = 0; i < at.length; i++) found.set(at[i], rows.next());
+		});
+		return new LinkedList<>(found);
+	}
+
+	private void batch(int keys[], BatchCall call) throws IOException {
+		int at[] = new int[keys.length];
+		for(int i = 0; i < at.length; i++) at[i] = i;
+		batch(keys, at, call);
+	}
+
+	private void batch(int keys[], int at[], BatchCall call) throws IOException {
+		//groups the keys at the indexes in at by shard and runs call on each group in parallel
+		//keys a split moved while their shard was waited for are grouped again and sent after the rest
+		HashMap<Shard, int[]> groups = new HashMap<>();
+		HashMap<Shard, Integer> sizes = new HashMap<>();
+		for(int i : at) sizes.merge(route(keys[i]), 1, Integer::sum);
+		for(int i : at) {
+			Shard s = route(keys[i]);
+			int group[] = groups.computeIfAbsent(s, x -> new int[sizes.get(x) + 1]);	//the last slot counts the indexes filled
+			group[group[group.length - 1]++] = i;
+		}
+		List<Callable<int[]>> tasks = new ArrayList<>();
+		for(Map.Entry<Shard, int[]> group : groups.entrySet()) {
+			Shard s = group.getKey();
+			int indexes[] = Arrays.copyOf(group.getValue(), group.getValue().length - 1);
+			tasks.add(() -> {
+				Lock l = s.use();
+				l.lock();
+				try {
+					int held = 0;
+					int moved[] = new int[indexes.length];
+					int m = 0;
+					for(int i : indexes) {
+						if(s.holds(keys[i])) indexes[held++] = i;
+						else moved[m++] = i;
+					}
+					if(held > 0) call.call(s, Arrays.copyOf(indexes, held));
+					return Arrays.copyOf(moved, m);
+				} finally {
+					l.unlock();
+				}
+			});
+		}
+		int moved[] = new int[0];
+		for(int part[] : parallel(tasks)) {
+			int n = moved.length;
+			moved = Arrays.copyOf(moved, n + part.length);
+			System.arraycopy(part, 0, moved, n, part.length);
+		}
+		if(moved.length > 0) batch(keys, moved, call);
+	}
+
+	private <T> List<T> parallel(List<Callable<T>> tasks) throws IOException {
+		//results of tasks in order, run on the executor unless there is only one
+		List<T> results = new ArrayList<>();
+		if(tasks.size() == 1) {
+			try {
+				results.add(tasks.get(0).call());
+			} catch(IOException | RuntimeException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new IOException(e);
+			}
+			return results;
+		}
+		try {
+			for(Future<T> f : executor.invokeAll(tasks)) results.add(f.get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the shards");
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+		return results;
+	}
+
+	public void setMaxShardRows(long rows) throws IOException {
+		//range shards holding more than rows rows are split at their median key as they grow, 0 stops splitting
+		//shards are counted the first time this is set
+		if(partitioning != Partitioning.RANGE && rows > 0) throw new IllegalStateException("only range shards can be split");
+		maxShardRows = rows;
+		if(rows <= 0) return;
+		for(Shard s : shards) {
+			if(s.rows.get() >= 0) continue;
+			Lock l = s.lock.writeLock();
+			l.lock();
+			try {
+				s.rows.set(count(s));
+			} finally {
+				l.unlock();
+			}
+		}
+		for(Shard s : shards) splitIfFull(s);
+	}
+
+	private long count(Shard s) throws IOException {
+		long n = 0;
+		for(BTree.Cursor c = s.table.keys(s.low, (int) (s.high - 1)); c.hasNext(); c.nextLong()) n++;
+		return n;
+	}
+
+	private void splitIfFull(Shard s) throws IOException {
+		long max = maxShardRows;
+		if(max <= 0 || s.rows.get() <= max) return;
+		Lock l = s.lock.writeLock();
+		l.lock();
+		try {
+			if(s.rows.get() > max) split(s);	//unless another thread split it first
+		} finally {
+			l.unlock();
+		}
+	}
+
+	public boolean split(int key) throws IOException {
+		//splits the range shard holding key at its median key, false if it holds fewer than two rows
+		if(partitioning != Partitioning.RANGE) throw new IllegalStateException("only range shards can be split");
+		while(true) {
+			Shard s = route(key);
+			Lock l = s.lock.writeLock();
+			l.lock();
+			try {
+				if(s.holds(key)) return split(s);
+			} finally {
+				l.unlock();
+			}
+		}
+	}
+
+	private boolean split(Shard s) throws IOException {
+		//the upper half of s is copied into a new shard, which takes over those keys once the list naming it is written
+		//s is held exclusively meanwhile, the other shards carry on
+		int last = (int) (s.high - 1);
+		long n = count(s);
+		s.rows.set(n);
+		if(n < 2) return false;
+		BTree.Cursor c = s.table.keys(s.low, last);
+		for(long i = 0; i < n/2; i++) c.nextLong();
+		int median = c.peekKey();
+		int id = newId();
+		DBTable upper = new DBTable(shardFile(id), fieldLengths, blockSize, mode, cacheSize, concurrent, durability, encoding);
+		try {
+			upper.bulkInsert(s.table.entries(median, last), true);
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Shard added = new Shard(id, median, s.high, upper);
+		added.rows.set(n - n/2);
+		publish(s, added);
+		trim(s);
+		s.rows.set(n/2);
+		return true;
+	}
+
+	private synchronized int newId() {
+		return nextId++;
+	}
+
+	private synchronized void publish(Shard s, Shard added) throws IOException {
+		//lists added right after s, a crash before the list is written leaves added's files to be deleted on open
+		Shard list[] = shards;
+		Shard next[] = new Shard[list.length + 1];
+		int at = Arrays.asList(list).indexOf(s) + 1;
+		System.arraycopy(list, 0, next, 0, at);
+		next[at] = added;
+		System.arraycopy(list, at, next, at + 1, list.length - at);
+		writeShards(next);
+		s.high = added.low;
+		shards = next;
+	}
+
+	private void trim(Shard s) throws IOException {
+		//removes the rows of a range shard past its high, copied to the shard above by a split
+		if(partitioning != Partitioning.RANGE || s.high > Integer.MAX_VALUE) return;
+		int batch[] = new int[REMOVE_BATCH];
+		while(true) {
+			int n = 0;
+			for(BTree.Cursor c = s.table.keys((int) s.high, Integer.MAX_VALUE); c.hasNext() && n < batch.length; c.nextLong()) batch[n++] = c.peekKey();
+			if(n == 0) return;
+			s.table.removeAll(Arrays.copyOf(batch, n));
+		}
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public Partitioning getPartitioning() {
+		return partitioning;
+	}
+
+	public void sync() throws IOException {
+		for(Shard s : shards) s.table.sync();
+	}
+
+	public void checkpoint() throws IOException {
+		for(Shard s : shards) s.table.checkpoint();
+	}
+
+	public void close() throws IOException {
+		executor.shutdown();
+		for(Shard s : shards) {
+			s.lock.writeLock().lock();
+			try {
+				s.table.close();
+			} finally {
+				s.lock.writeLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class SlabStore implements PageStore {
+	//fixed size records packed into slabs, each slab a page of a buffer pool, so one transfer moves a slab and its neighbours come in with a record
+	//pages of the store are records, a pin is a view of the record inside its slab
+	public static final int DEFAULT_SLAB_SIZE = 4096;	//bytes per slab, rounded down to whole records, at least one
+
+	private BufferPool pool;	//pages of the pool are slabs
+	private FileChannel channel;
+	private long first;	//address of the first record, slabs are counted from it
+	private int recordSize;
+	private int slabSize;
+	private long end;	//length of the file in use, a slab written back may reach past it
+
+	public SlabStore(FileChannel c, long first, int rSize, long budget) throws IOException {
+		this(c, first, rSize, DEFAULT_SLAB_SIZE, budget);
+	}
+
+	public SlabStore(FileChannel c, long first, int rSize, int slabBytes, long budget) throws IOException {
+		//first <- address of the first record, what comes before it is never read or written through the store
+		//budget <- bytes of slabs kept in memory
+		channel = c;
+		this.first = first;
+		recordSize = rSize;
+		slabSize = Math.max(1, slabBytes/rSize)*rSize;
+		pool = new BufferPool(c, slabSize, budget);
+		end = channel.size();
+	}
+
+	private long slab(long addr) {
+		return first + (addr - first)/slabSize*slabSize;
+	}
+
+	public ByteBuffer pin(long addr) throws IOException {
+		long slab = slab(addr);
+		return pool.pin(slab).slice((int) (addr - slab), recordSize);
+	}
+
+	public void unpin(long addr, boolean dirty) {
+		pool.unpin(slab(addr), dirty);
+		if(dirty) {
+			synchronized(this) {
+				end = Math.max(end, addr + recordSize);
+			}
+		}
+	}
+
+	public synchronized long length() {
+		return end;
+	}
+
+	public synchronized void truncate(long length) throws IOException {
+		//a slab cut part way stays cached, what it holds past length is never read before it is written
+		pool.truncate(length);
+		end = Math.min(end, length);
+	}
+
+	public void flush() throws IOException {
+		pool.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		//the last slab is written whole, so cut the file back to the records in use
+		pool.close();
+		channel.truncate(end);
+	}
+
+	public BufferPool getPool() {
+		return pool;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+}
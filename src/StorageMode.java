@@ -0,0 +1,4 @@
+public enum StorageMode {
+	BUFFERED,	//pages are read and written with positional I/O through a bounded BufferPool
+	MAPPED	//the file is mapped in segments and pages are used straight from the mapping
+}
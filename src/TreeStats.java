@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TreeStats {
+	//what BTree.analyze found in one walk of the tree, filled in by the walk
+	private static final int MAX_PROBLEMS = 100;	//problems kept word for word, the rest are only counted
+
+	int order;
+	long nodesPerLevel[] = new long[0];	//root level first, the last level is the leaves
+	long keys;	//keys in the leaves
+	long internalKeys;
+	long underfull;	//nodes other than the root below half full
+	long leafJumps;	//leaf links that do not lead to the next node in the file
+	long backwardLinks;	//leaf links to a node earlier in the file, which a scan has to seek back for
+	long nodes;	//node slots in the file
+	long freeNodes;
+	long orphans;	//nodes neither reachable nor free, lost to a crash or a bug
+	long problemCount;
+	private List<String> problems = new ArrayList<>();
+
+	void level(int depth) {
+		//counts one more node at depth
+		if(depth >= nodesPerLevel.length) nodesPerLevel = Arrays.copyOf(nodesPerLevel, depth + 1);
+		nodesPerLevel[depth]++;
+	}
+
+	void problem(String p) {
+		if(problems.size() < MAX_PROBLEMS) problems.add(p);
+		problemCount++;
+	}
+
+	public int getHeight() {
+		return nodesPerLevel.length;
+	}
+
+	public long[] getNodesPerLevel() {
+		return nodesPerLevel.clone();
+	}
+
+	public long getKeys() {
+		return keys;
+	}
+
+	public long getLeaves() {
+		return nodesPerLevel.length == 0 ? 0 : nodesPerLevel[nodesPerLevel.length-1];
+	}
+
+	public long getInternalNodes() {
+		long n = 0;
+		for(int i = 0; i < nodesPerLevel.length-1; i++) n += nodesPerLevel[i];
+		return n;
+	}
+
+	public double getLeafFill() {
+		//keys over the slots of the leaves holding them
+		return getLeaves() == 0 ? 0 : (double) keys/(getLeaves()*(order-1));
+	}
+
+	public double getInternalFill() {
+		return getInternalNodes() == 0 ? 0 : (double) internalKeys/(getInternalNodes()*(order-1));
+	}
+
+	public long getUnderfullNodes() {
+		return underfull;
+	}
+
+	public double getLeafFragmentation() {
+		//fraction of the leaf links that do not lead to the next node in the file, 0 right after compact
+		return getLeaves() <= 1 ? 0 : (double) leafJumps/(getLeaves() - 1);
+	}
+
+	public long getBackwardLinks() {
+		return backwardLinks;
+	}
+
+	public long getNodes() {
+		return nodes;
+	}
+
+	public long getFreeNodes() {
+		return freeNodes;
+	}
+
+	public long getOrphanedNodes() {
+		return orphans;
+	}
+
+	public int getMinHeight() {
+		//height of the same keys loaded by bulkLoad at its default fill factor
+		int perNode = Math.max(1, (int) ((order-1)*BTree.DEFAULT_FILL_FACTOR));
+		if(keys == 0) return 0;
+		long n = (keys + perNode - 1)/perNode;
+		int height = 1;
+		for(; n > 1; height++) n = (n + perNode)/(perNode + 1);
+		return height;
+	}
+
+	public boolean isValid() {
+		return problemCount == 0;
+	}
+
+	public List<String> getProblems() {
+		//the first problems found, getProblemCount tells how many there were in all
+		return problems;
+	}
+
+	public long getProblemCount() {
+		return problemCount;
+	}
+
+	public boolean shouldRebuild() {
+		//a bulkLoad of the keys would take fewer levels, so every lookup would read fewer nodes
+		return getHeight() > getMinHeight();
+	}
+
+	public boolean shouldCompact() {
+		//a quarter of the file is free or lost, or a quarter of the leaf links seek, which compact fixes without changing the nodes
+		return 4*(freeNodes + orphans) > nodes || 4*leafJumps > getLeaves();
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append("height ").append(getHeight()).append(" (").append(getMinHeight()).append(" at best), nodes per level ").append(Arrays.toString(nodesPerLevel)).append('\n');
+		s.append("keys ").append(keys).append(", leaf fill ").append(String.format("%.3f", getLeafFill()));
+		s.append(", internal fill ").append(String.format("%.3f", getInternalFill())).append(", underfull nodes ").append(underfull).append('\n');
+		s.append("leaf fragmentation ").append(String.format("%.3f", getLeafFragmentation())).append(", backward links ").append(backwardLinks).append('\n');
+		s.append("nodes ").append(nodes).append(", free ").append(freeNodes).append(", orphaned ").append(orphans).append('\n');
+		if(shouldRebuild()) s.append("a rebuild would lower the tree\n");
+		if(shouldCompact()) s.append("compact would shrink the file or straighten the leaves\n");
+		s.append(problemCount == 0 ? "no problems" : problemCount + " problems").append('\n');
+		for(String p : problems) s.append("  ").append(p).append('\n');
+		return s.toString();
+	}
+}
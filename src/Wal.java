@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+public class Wal {
+	public static final long DEFAULT_CHECKPOINT_SIZE = 1 << 25;	//bytes of log after which changed pages are written to their files
+
+	//the log is a sequence of records, one per operation: payload length, CRC32 of the payload, then the payload
+	//the payload holds an entry per changed page or header: file number, address, length and the bytes to write there
+	//records are redo only, pages reach their files at checkpoints after the log is forced, so replaying every whole record is enough
+	private FileChannel channel;
+	private LoggedStore stores[];	//stores[i] is file number i in the records, null for a number not in use
+	private ByteBuffer record;	//record being built by commit, reused
+	private ByteBuffer pending;	//records appended but not yet written to the log
+	private ByteBuffer spare;	//buffer to swap in for pending while it is written
+	private long start;	//position of the first byte in the log, positions keep counting up across checkpoints
+	private long appended;	//position after the last record appended
+	private long flushed;	//position up to which the log is on disk
+	private boolean forcing;	//a thread is writing and forcing the log, the others wait for it
+	private CRC32 crc;
+
+	public Wal(FileChannel c, LoggedStore s[]) throws IOException {
+		//c <- log file, it should have been replayed and is cut to nothing here
+		channel = c;
+		stores = s;
+		record = ByteBuffer.allocate(1 << 12);
+		pending = ByteBuffer.allocate(1 << 12);
+		spare = ByteBuffer.allocate(1 << 12);
+		crc = new CRC32();
+		channel.truncate(0);
+	}
+
+	public static void recover(FileChannel log, FileChannel files[]) throws IOException {
+		//applies every complete record in log to files, then forces them and cuts the log
+		//files <- indexed by file number, null for a number not in use
+		//a record cut short or failing its checksum was being written during the crash and ends the log
+		ByteBuffer header = ByteBuffer.allocate(8);
+		CRC32 check = new CRC32();
+		long pos = 0;
+		while(true) {
+			header.clear();
+			if(!readFully(log, header, pos)) break;
+			int length = header.getInt(0);
+			if(length <= 0 || pos + 8 + length > log.size()) break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			if(!readFully(log, payload, pos + 8)) break;
+			check.reset();
+			check.update(payload.array(), 0, length);
+			if((int) check.getValue() != header.getInt(4)) break;
+			payload.flip();
+			check(payload, files.length, pos);
+			while(payload.hasRemaining()) {
+				int file = payload.get() & 0xFF;
+				long addr = payload.getLong();
+				int size = payload.getInt();
+				ByteBuffer bytes = payload.slice(payload.position(), size);
+				if(files[file] != null) {	//a file that is gone was an index whose build never finished, so it has nothing to redo
+					while(bytes.hasRemaining()) files[file].write(bytes, addr + bytes.position());
+				}
+				payload.position(payload.position() + size);
+			}
+			pos += 8 + length;
+		}
+		for(FileChannel file : files) {
+			if(file != null) file.force(false);
+		}
+		log.truncate(0);
+		log.force(false);
+	}
+
+	private static void check(ByteBuffer payload, int files, long pos) throws IOException {
+		//a record that passed its checksum was written whole, so an entry naming no file of the table or running past the record
+		//means the log is not this table's, and applying any of it would write over pages it does not describe
+		for(int at = 0; at < payload.limit(); ) {
+			if(payload.limit() - at < 13) throw new IOException("log record at " + pos + " ends inside an entry");
+			int file = payload.get(at) & 0xFF;
+			long addr = payload.getLong(at + 1);
+			int size = payload.getInt(at + 9);
+			if(file >= files) throw new IOException("log record at " + pos + " is for file " + file + " of a table with " + files);
+			if(addr < 0 || size < 0 || size > payload.limit() - at - 13) throw new IOException("log record at " + pos + " has an entry of " + size + " bytes at " + addr);
+			at += 13 + size;
+		}
+	}
+
+	private static boolean readFully(FileChannel c, ByteBuffer buffer, long pos) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(c.read(buffer, pos + buffer.position()) < 0) return false;
+		}
+		return true;
+	}
+
+	public static ByteBuffer ensure(ByteBuffer buffer, int more) {
+		//buffer, or a copy with room for more bytes past its position
+		if(buffer.remaining() >= more) return buffer;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(2*buffer.capacity(), buffer.position() + more));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	public long commit() {
+		//appends the changes made since the last commit as one record and returns the position to pass to sync
+		//callers commit one at a time, each operation's changes must not overlap another's
+		record.clear();
+		record.position(8);
+		for(LoggedStore store : stores) {
+			if(store != null) record = store.drain(record);
+		}
+		int length = record.position() - 8;
+		synchronized(this) {
+			if(length == 0) return appended;
+			crc.reset();
+			crc.update(record.array(), 8, length);
+			record.putInt(0, length);
+			record.putInt(4, (int) crc.getValue());
+			record.flip();
+			pending = ensure(pending, record.remaining());
+			pending.put(record);
+			appended += 8 + length;
+			return appended;
+		}
+	}
+
+	public void attach(int file, LoggedStore store) {
+		//makes store file number file from the next commit on, callers must keep operations from committing until it returns
+		stores[file] = store;
+	}
+
+	public void sync(long pos) throws IOException {
+		//waits until the log is on disk up to pos
+		//whoever finds no force running writes out everything appended so far, so the commits that piled up meanwhile share one force
+		ByteBuffer out;
+		long upTo;
+		synchronized(this) {
+			while(flushed < pos && forcing) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for the log");
+				}
+			}
+			if(flushed >= pos) return;
+			forcing = true;
+			out = pending;
+			pending = spare;
+			upTo = appended;
+		}
+		boolean done = false;
+		out.flip();
+		int size = out.remaining();
+		try {
+			long at = upTo - size - start;
+			while(out.hasRemaining()) at += channel.write(out, at);
+			channel.force(false);
+			done = true;
+		} finally {
+			synchronized(this) {
+				out.clear();
+				if(done) {
+					spare = out;
+					flushed = upTo;
+				} else {
+					//none of it is known to be on disk, put the records back in front of those appended since
+					out.position(size);
+					pending.flip();
+					out = ensure(out, pending.remaining());
+					out.put(pending);
+					pending.clear();
+					spare = pending;
+					pending = out;
+				}
+				forcing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	public void sync() throws IOException {
+		//forces everything committed so far
+		long pos;
+		synchronized(this) {
+			pos = appended;
+		}
+		sync(pos);
+	}
+
+	public synchronized long size() {
+		//log bytes appended since the last checkpoint
+		return appended - start;
+	}
+
+	public void checkpoint() throws IOException {
+		//forces the log, writes every changed page to its file and cuts the log
+		//callers must keep operations from committing until it returns
+		sync();
+		for(LoggedStore store : stores) {
+			if(store != null) store.checkpoint();
+		}
+		synchronized(this) {
+			channel.truncate(0);
+			channel.force(false);
+			start = appended;
+		}
+	}
+
+	public void close() throws IOException {
+		//the stores must be closed first, which writes their pages to the files
+		sync();
+		synchronized(this) {
+			channel.truncate(0);
+			channel.force(false);
+			start = appended;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AsyncTableTest {
+	private static final int FIELDS[] = {8};
+	private static final int SMALL_BLOCK = 60;
+
+	@TempDir
+	Path dir;
+
+	private String file(String name) {
+		return dir.resolve(name).toString();
+	}
+
+	private static class HeldChannel extends FileChannel {
+		//hands every call to a real channel, except that positional reads wait until the channel is let go
+		private FileChannel real;
+		private CountDownLatch held = new CountDownLatch(1);
+
+		public HeldChannel(FileChannel r) {
+			real = r;
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException {
+			try {
+				held.await();
+			} catch(InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return real.read(dst, position);
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			return real.read(dst);
+		}
+
+		public long read(ByteBuffer dsts[], int offset, int length) throws IOException {
+			return real.read(dsts, offset, length);
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			return real.write(src);
+		}
+
+		public long write(ByteBuffer srcs[], int offset, int length) throws IOException {
+			return real.write(srcs, offset, length);
+		}
+
+		public int write(ByteBuffer src, long position) throws IOException {
+			return real.write(src, position);
+		}
+
+		public long position() throws IOException {
+			return real.position();
+		}
+
+		public FileChannel position(long newPosition) throws IOException {
+			real.position(newPosition);
+			return this;
+		}
+
+		public long size() throws IOException {
+			return real.size();
+		}
+
+		public FileChannel truncate(long size) throws IOException {
+			real.truncate(size);
+			return this;
+		}
+
+		public void force(boolean metaData) throws IOException {
+			real.force(metaData);
+		}
+
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return real.transferTo(position, count, target);
+		}
+
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return real.transferFrom(src, position, count);
+		}
+
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return real.map(mode, position, size);
+		}
+
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return real.lock(position, size, shared);
+		}
+
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return real.tryLock(position, size, shared);
+		}
+
+		protected void implCloseChannel() throws IOException {
+			real.close();
+		}
+	}
+
+	private static class FailingTable extends DBTable {
+		public FailingTable(String filename) throws IOException {
+			super(filename, FIELDS, SMALL_BLOCK);
+		}
+
+		public LinkedList<String> search(int key) throws IOException {
+			throw new IOException("search failed");
+		}
+	}
+
+	@Test
+	public void pinsOfAPageBeingReadWaitForThatRead() throws Exception {
+		int threads = 8;
+		try(RandomAccessFile f = new RandomAccessFile(file("pages"), "rw")) {
+			byte page[] = new byte[64];
+			for(int i = 0; i < page.length; i++) page[i] = (byte) i;
+			f.write(page);
+			HeldChannel channel = new HeldChannel(f.getChannel());
+			BufferPool pool = new BufferPool(channel, page.length, 16*page.length);
+			ExecutorService pinners = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<ByteBuffer>> pinned = new ArrayList<>();
+				for(int t = 0; t < threads; t++) pinned.add(pinners.submit(() -> pool.pin(0)));
+				//the first pin reads and is held in the read, every other one has to find the page loading and wait
+				long deadline = System.nanoTime() + 10_000_000_000L;
+				while(pool.getCoalesced() < threads - 1) {
+					assertTrue(System.nanoTime() < deadline, "pins did not wait for the read under way");
+					Thread.sleep(1);
+				}
+				channel.held.countDown();
+				for(Future<ByteBuffer> p : pinned) {
+					ByteBuffer data = p.get();
+					for(int i = 0; i < page.length; i++) assertEquals(page[i], data.get(i));
+				}
+				assertEquals(1, pool.getMisses());
+				assertEquals(threads - 1, pool.getHits());
+				assertEquals(threads - 1, pool.getCoalesced());
+				for(int t = 0; t < threads; t++) pool.unpin(0, false);
+			} finally {
+				pinners.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void concurrentSearchesOfOneKeyReadEachPageOnce() throws Exception {
+		DBTable table = new DBTable(file("table"), FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 20, true);
+		for(int k = 0; k < 2000; k++) table.insert(k, DBTableTest.fields("row" + k));
+		table.close();
+
+		//the index pages one search reads into an empty cache
+		table = new DBTable(file("table"), StorageMode.BUFFERED, 1 << 20, true);
+		table.enableMetrics(null);
+		table.search(1234);
+		long one = table.getIndexMetrics().getCacheMisses();
+		table.close();
+		assertTrue(one > 1);
+
+		table = new DBTable(file("table"), StorageMode.BUFFERED, 1 << 20, true);
+		table.enableMetrics(null);
+		AsyncTable async = new AsyncTable(table);
+		try {
+			List<CompletableFuture<LinkedList<String>>> found = new ArrayList<>();
+			for(int i = 0; i < 32; i++) found.add(async.searchAsync(1234));
+			for(CompletableFuture<LinkedList<String>> f : found) assertEquals(List.of("row1234"), f.get());
+			assertEquals(one, table.getIndexMetrics().getCacheMisses());
+		} finally {
+			async.close();
+			table.close();
+		}
+	}
+
+	@Test
+	public void aFailedCallCompletesItsFutureWithTheIOException() throws Exception {
+		DBTable table = new FailingTable(file("failing"));
+		table.insert(1, DBTableTest.fields("one"));
+		AsyncTable async = new AsyncTable(table);
+		try {
+			CompletableFuture<LinkedList<String>> search = async.searchAsync(1);
+			ExecutionException e = assertThrows(ExecutionException.class, search::get);
+			assertInstanceOf(IOException.class, e.getCause());
+			assertEquals("search failed", e.getCause().getMessage());
+			assertTrue(search.isCompletedExceptionally());
+			assertTrue(async.insertAsync(2, DBTableTest.fields("two")).get());	//the failure leaves the table usable
+			assertEquals(List.of("1", "one"), async.rangeSearchAsync(1, 1).get().getFirst());
+		} finally {
+			async.close();
+			table.close();
+		}
+	}
+}
@@ -0,0 +1,626 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BTreeTest {
+	private static final int SMALL_BLOCK = 60;	//order 5, so a few thousand keys make a tree several levels high
+
+	@TempDir
+	Path dir;
+
+	private String file(String name) {
+		return dir.resolve(name).toString();
+	}
+
+	@Test
+	public void concurrentWritersKeepTheirOwnKeys() throws Exception {
+		//each thread owns the keys equal to its id mod threads and checks every answer against a map of its own,
+		//so splits, borrows and merges of leaves shared with other threads show up as wrong answers or an invalid tree
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<TreeMap<Integer, Long>>> owned = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				int id = t;
+				owned.add(pool.submit(() -> {
+					Random r = new Random(id);
+					TreeMap<Integer, Long> mine = new TreeMap<>();
+					for(int i = 0; i < 10000; i++) {
+						int key = r.nextInt(1000)*threads + id;
+						if(r.nextInt(3) == 0) {
+							Long had = mine.remove(key);
+							assertEquals(had == null ? 0 : had, tree.remove(key), "remove " + key);
+						} else {
+							long addr = 1 + r.nextInt(1 << 20);
+							boolean added = tree.insert(key, addr);
+							assertEquals(!mine.containsKey(key), added, "insert " + key);
+							if(added) mine.put(key, addr);
+						}
+						if(i % 64 == 0) {
+							int probe = r.nextInt(1000)*threads + id;
+							assertEquals(mine.getOrDefault(probe, 0L), tree.search(probe), "search " + probe);
+						}
+					}
+					return mine;
+				}));
+			}
+			TreeMap<Integer, Long> all = new TreeMap<>();
+			for(Future<TreeMap<Integer, Long>> f : owned) all.putAll(f.get());
+			tree.verify();
+			assertEquals(new LinkedList<>(all.values()), tree.inOrder());
+		} finally {
+			pool.shutdown();
+			tree.close();
+		}
+	}
+
+	@Test
+	public void concurrentBatchesAndCursors() throws Exception {
+		//batches take the same leaf-only path as single inserts and removes, while cursors cross the leaves they change
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+		int threads = 4;
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+		try {
+			Future<?> reader = pool.submit(() -> {
+				while(!done.get()) {
+					int last = Integer.MIN_VALUE;
+					for(BTree.Cursor c = tree.cursor(); c.hasNext(); c.nextLong()) {
+						int key = c.peekKey();
+						assertTrue(key > last, "cursor went from " + last + " to " + key);
+						last = key;
+					}
+				}
+				return null;
+			});
+			List<Future<?>> writers = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				int id = t;
+				writers.add(pool.submit(() -> {
+					Random r = new Random(id);
+					for(int round = 0; round < 200; round++) {
+						int keys[] = new int[32];
+						long addrs[] = new long[keys.length];
+						for(int i = 0; i < keys.length; i++) {
+							keys[i] = r.nextInt(2000)*threads + id;
+							addrs[i] = keys[i] + 1L;
+						}
+						tree.insertAll(keys, addrs);
+						long found[] = tree.searchAll(keys);
+						for(int i = 0; i < keys.length; i++) assertEquals(keys[i] + 1L, found[i]);
+						if(round % 2 == 1) {
+							long removed[] = tree.removeAll(keys);
+							for(int i = 0; i < keys.length; i++) assertEquals(0, tree.search(keys[i]), "key " + keys[i] + " removed as " + removed[i]);
+						}
+					}
+					return null;
+				}));
+			}
+			for(Future<?> w : writers) w.get();
+			done.set(true);
+			reader.get();
+			tree.verify();
+		} finally {
+			pool.shutdown();
+			tree.close();
+		}
+	}
+
+	@Test
+	public void openWithAnIntCacheSizeKeepsTheTree() throws Exception {
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		for(int k = 0; k < 500; k++) tree.insert(k, k + 1L);
+		tree.close();
+		tree = BTree.open(name, 4096);
+		assertEquals(500, tree.inOrder().size());
+		tree.verify();
+		tree.close();
+		tree = new BTree(name);
+		assertEquals(251L, tree.search(250));
+		tree.close();
+	}
+
+	@Test
+	public void fillFactorIsAnOperationNotAnAttribute() throws Exception {
+		//monitors read every attribute on each poll, and the fill factor walks every leaf
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		for(int k = 0; k < 1000; k++) tree.insert(k, k + 1L);
+		tree.enableMetrics("fillTest");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("BTree:type=BTree,name=" + ObjectName.quote("fillTest"));
+			MBeanInfo info = server.getMBeanInfo(name);
+			for(MBeanAttributeInfo a : info.getAttributes()) assertFalse(a.getName().contains("Fill"), a.getName());
+			double fill = (Double) server.invoke(name, "fillFactor", new Object[0], new String[0]);
+			assertEquals(tree.getFillFactor(), fill);
+		} finally {
+			tree.close();
+		}
+	}
+
+	@Test
+	public void metricsCountEveryKindOfOperationAndShowInJmx() throws Exception {
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		Metrics m = tree.enableMetrics("countTest");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("BTree:type=BTree,name=" + ObjectName.quote("countTest"));
+		try {
+			assertTrue(server.isRegistered(name));
+			for(int k = 0; k < 100; k++) tree.insert(k, k + 1L);
+			int batch[] = new int[100];
+			long addrs[] = new long[100];
+			for(int i = 0; i < 100; i++) {
+				batch[i] = 100 + i;
+				addrs[i] = 101L + i;
+			}
+			tree.insertAll(batch, addrs);
+			tree.search(5);
+			tree.search(500);
+			tree.searchAll(batch);
+			tree.rangeSearch(10, 20);
+			tree.removeAll(new int[] {1, 2, 3});
+			tree.remove(4);
+			assertEquals(100L, m.getInserts());
+			assertEquals(2L, m.getSearches());
+			assertEquals(1L, m.getRemoves());
+			assertEquals(1L, m.getRangeSearches());
+			assertEquals(1L, m.getInsertBatches());
+			assertEquals(1L, m.getSearchBatches());
+			assertEquals(1L, m.getRemoveBatches());
+			assertEquals(100L, server.getAttribute(name, "Inserts"));
+			assertEquals(1L, server.getAttribute(name, "InsertBatches"));
+			//a full walk reads each leaf once, the first by descending to it
+			long before = m.getCursorReads();
+			BTree.Cursor c = tree.cursor();
+			while(c.hasNext()) c.nextLong();
+			assertEquals(tree.analyze().getLeaves(), m.getCursorReads() - before);
+			assertEquals(m.getCursorReads(), server.getAttribute(name, "CursorReads"));
+			assertTrue((Double) server.invoke(name, "meanMicros", new Object[] {"CURSOR_READ"}, new String[] {String.class.getName()}) > 0);
+		} finally {
+			tree.close();
+		}
+		assertFalse(server.isRegistered(name), "close leaves the bean registered");
+	}
+
+	@Test
+	public void bulkLoadThenChange() throws Exception {
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		List<KeyAddr> pairs = new ArrayList<>();
+		for(int k = 0; k < 5000; k += 2) pairs.add(new KeyAddr(k, k + 1L));
+		tree.bulkLoad(pairs.iterator(), 0.7);
+		tree.verify();
+		TreeMap<Integer, Long> model = new TreeMap<>();
+		for(KeyAddr p : pairs) model.put(p.key, p.addr);
+		Random r = new Random(3);
+		for(int i = 0; i < 5000; i++) {
+			int k = r.nextInt(6000);
+			if(r.nextBoolean()) {
+				assertEquals(model.put(k, k + 1L) == null, tree.insert(k, k + 1L));
+			} else {
+				Long had = model.remove(k);
+				assertEquals(had == null ? 0 : had, tree.remove(k));
+			}
+		}
+		for(Map.Entry<Integer, Long> e : model.entrySet()) assertEquals((long) e.getValue(), tree.search(e.getKey()));
+		assertEquals(new LinkedList<>(model.subMap(100, true, 3000, false).values()), tree.rangeSearch(100, true, 3000, false, false));
+		tree.verify();
+		tree.close();
+	}
+
+	@Test
+	public void bulkLoadMatchesInsertingOneByOne() throws Exception {
+		for(double fill : new double[] {0.5, 0.7, BTree.DEFAULT_FILL_FACTOR, 1}) {
+			for(int n : new int[] {0, 1, 2, 3, 4, 5, 17, 1000, 4321}) {
+				//keys with gaps and negatives, so searches between and around them find nothing in either tree
+				List<KeyAddr> pairs = new ArrayList<>();
+				for(int i = 0; i < n; i++) pairs.add(new KeyAddr(3*i - n, i + 1L));
+				BTree loaded = new BTree(file("loaded"), SMALL_BLOCK);
+				loaded.bulkLoad(pairs.iterator(), fill);
+				BTree inserted = new BTree(file("inserted"), SMALL_BLOCK);
+				for(KeyAddr p : pairs) inserted.insert(p.key, p.addr);
+				loaded.verify();
+				assertEquals(inserted.inOrder(), loaded.inOrder(), n + " keys at " + fill);
+				for(int k = -n - 2; k < 2*n + 2; k++) assertEquals(inserted.search(k), loaded.search(k), "key " + k);
+				assertEquals(inserted.rangeSearch(-n/2, true, n, false, true), loaded.rangeSearch(-n/2, true, n, false, true));
+				loaded.close();
+				inserted.close();
+			}
+		}
+	}
+
+	@Test
+	public void bulkLoadOfAConcurrentTreeHoldsOffInserts() throws Exception {
+		//the load and an insert race for the empty tree, whichever is first the other sees what it left and the tree stays whole
+		for(int round = 0; round < 20; round++) {
+			BTree tree = new BTree(file("tree" + round), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+			List<KeyAddr> pairs = new ArrayList<>();
+			for(int k = 0; k < 3000; k += 2) pairs.add(new KeyAddr(k, k + 1L));
+			ExecutorService pool = Executors.newSingleThreadExecutor();
+			boolean loaded;
+			try {
+				Future<?> writer = pool.submit(() -> {
+					for(int k = 1; k < 3000; k += 2) assertTrue(tree.insert(k, k + 1L));
+					return null;
+				});
+				try {
+					tree.bulkLoad(pairs.iterator());
+					loaded = true;
+				} catch(IllegalStateException e) {
+					loaded = false;	//an insert got there first
+				}
+				writer.get();
+			} finally {
+				pool.shutdown();
+			}
+			tree.verify();
+			for(int k = 0; k < 3000; k++) assertEquals(k % 2 == 1 || loaded ? k + 1L : 0, tree.search(k), "key " + k);
+			tree.close();
+		}
+	}
+
+	private static LinkedList<Long> expected(TreeMap<Integer, Long> model, int low, boolean lowInclusive, int high, boolean highInclusive, boolean descending) {
+		//what rangeSearch should return, TreeMap refuses a range whose low is above its high so that one is empty here
+		if(low > high) return new LinkedList<>();
+		NavigableMap<Integer, Long> range = model.subMap(low, lowInclusive, high, highInclusive);
+		return new LinkedList<>((descending ? range.descendingMap() : range).values());
+	}
+
+	private static int bound(Random r, List<Integer> keys) {
+		//a key in the tree, one next to it, the ends of the int range or anything at all
+		switch(r.nextInt(5)) {
+			case 0: return keys.get(r.nextInt(keys.size()));
+			case 1: return keys.get(r.nextInt(keys.size())) + (r.nextBoolean() ? 1 : -1);
+			case 2: return Integer.MIN_VALUE;
+			case 3: return Integer.MAX_VALUE;
+			default: return r.nextInt();
+		}
+	}
+
+	private static void checkRanges(BTree tree, TreeMap<Integer, Long> model, Random r) throws IOException {
+		List<Integer> keys = new ArrayList<>(model.keySet());
+		for(int q = 0; q < 1000; q++) {
+			int low = bound(r, keys);
+			int high = r.nextInt(8) == 0 ? bound(r, keys) : low + r.nextInt(200);	//mostly short ranges, some crossing the whole tree
+			if(high < low && r.nextBoolean()) high = low;	//overflowed past MAX_VALUE, or a range of one key
+			boolean lowInclusive = r.nextBoolean();
+			boolean highInclusive = r.nextBoolean();
+			boolean descending = r.nextBoolean();
+			String range = (lowInclusive ? "[" : "(") + low + ", " + high + (highInclusive ? "]" : ")") + (descending ? " descending" : "");
+			LinkedList<Long> want = expected(model, low, lowInclusive, high, highInclusive, descending);
+			assertEquals(want, tree.rangeSearch(low, lowInclusive, high, highInclusive, descending), range);
+			assertEquals(want, new LinkedList<>(tree.rangeSearch(low, lowInclusive, high, highInclusive, descending, new LongList()).stream().boxed().toList()), range);
+		}
+	}
+
+	@Test
+	public void rangeSearchMatchesAReferenceMap() throws Exception {
+		for(boolean concurrent : new boolean[] {false, true}) {
+			//a concurrent tree's cursors find the next leaf from the root rather than through the link
+			BTree tree = new BTree(file("tree" + concurrent), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, concurrent);
+			TreeMap<Integer, Long> model = new TreeMap<>();
+			Random r = new Random(concurrent ? 8 : 7);
+			for(int k : new int[] {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}) {
+				tree.insert(k, k ^ 1L);
+				model.put(k, k ^ 1L);
+			}
+			for(int i = 0; i < 6000; i++) {
+				int k = r.nextInt(3) == 0 ? r.nextInt() : r.nextInt(4000) - 2000;
+				if(model.putIfAbsent(k, (long) i) == null) tree.insert(k, i);
+			}
+			checkRanges(tree, model, r);
+			//removes leave runs of keys gone, ranges now start and end in gaps and cross leaves that were merged
+			for(int k = -2000; k < 2000; k++) {
+				if(k % 7 < 4 && model.remove(k) != null) tree.remove(k);
+			}
+			checkRanges(tree, model, r);
+			tree.close();
+		}
+	}
+
+	@Test
+	public void emptyAndInvertedRanges() throws Exception {
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		for(boolean descending : new boolean[] {false, true}) {
+			assertTrue(tree.rangeSearch(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, descending).isEmpty());	//empty tree
+		}
+		for(int k = 0; k < 1000; k += 10) tree.insert(k, k + 1L);
+		for(boolean descending : new boolean[] {false, true}) {
+			assertTrue(tree.rangeSearch(500, true, 400, true, descending).isEmpty());
+			assertTrue(tree.rangeSearch(500, false, 500, true, descending).isEmpty());
+			assertTrue(tree.rangeSearch(500, true, 500, false, descending).isEmpty());
+			assertTrue(tree.rangeSearch(501, true, 509, true, descending).isEmpty());	//between two keys
+			assertTrue(tree.rangeSearch(Integer.MIN_VALUE, true, -1, true, descending).isEmpty());
+			assertTrue(tree.rangeSearch(991, true, Integer.MAX_VALUE, true, descending).isEmpty());
+			assertTrue(tree.rangeSearch(Integer.MAX_VALUE, false, Integer.MAX_VALUE, true, descending).isEmpty());
+			assertTrue(tree.rangeSearch(Integer.MIN_VALUE, true, Integer.MIN_VALUE, false, descending).isEmpty());
+			assertEquals(List.of(501L), tree.rangeSearch(500, true, 500, true, descending));
+			assertEquals(100, tree.rangeSearch(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, descending).size());
+		}
+		assertEquals(List.of(11L, 21L), tree.rangeSearch(0, false, 30, false, false));
+		assertEquals(List.of(21L, 11L), tree.rangeSearch(0, false, 30, false, true));
+		assertEquals(List.of(1L, 11L), tree.rangeSearch(0, 19));
+		tree.insert(Integer.MAX_VALUE, 7);
+		tree.insert(Integer.MIN_VALUE, 8);
+		assertEquals(List.of(7L), tree.rangeSearch(991, true, Integer.MAX_VALUE, true, false));
+		assertTrue(tree.rangeSearch(991, true, Integer.MAX_VALUE, false, true).isEmpty());
+		assertEquals(List.of(8L), tree.rangeSearch(Integer.MIN_VALUE, Integer.MIN_VALUE));
+		assertEquals(List.of(7L, 991L), tree.rangeSearch(990, true, Integer.MAX_VALUE, true, true));
+		assertEquals(List.of(1L, 8L), tree.rangeSearch(Integer.MIN_VALUE, true, 0, true, true));
+		tree.close();
+	}
+
+	@Test
+	public void fullScanCursorReadsOneLeafAtATime() throws Exception {
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		List<KeyAddr> pairs = new ArrayList<>();
+		for(int k = 0; k < 20000; k++) pairs.add(new KeyAddr(k, k + 1L));
+		tree.bulkLoad(pairs.iterator(), 1);	//full leaves of four keys
+		int height = tree.analyze().getHeight();
+		tree.close();
+
+		tree = BTree.open(name, 1 << 20);
+		BufferPool pool = tree.getBufferPool();
+		long opened = pool.getMisses();
+		BTree.Cursor c = tree.cursor();
+		assertTrue(pool.getMisses() - opened <= height, "opening the cursor reads at most the path to the first leaf");
+		long first = pool.getMisses();
+		for(int i = 0; i < 3; i++) assertEquals(i + 1L, c.nextLong());	//the first leaf is already in hand
+		assertEquals(first, pool.getMisses());
+		assertEquals(4L, c.nextLong());	//the last of it, the cursor moves on to the second leaf
+		assertEquals(first + 1, pool.getMisses());
+		assertEquals(10, tree.stream(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, false).limit(10).count());
+		assertTrue(pool.getMisses() - first < 5, pool.getMisses() - first + " pages read for ten keys");
+		long expected = 5;
+		while(c.hasNext()) {
+			assertEquals(expected - 1, c.peekKey());
+			assertEquals(expected++, c.nextLong());
+		}
+		assertEquals(20001, expected);
+		assertTrue(pool.getMisses() - opened < 20000/4 + 2*height, pool.getMisses() - opened + " pages read, leaves are read once each");
+		tree.close();
+	}
+
+	@Test
+	public void cursorsCrossLeafBoundariesBothWays() throws Exception {
+		//with at most four keys a leaf every few keys is a boundary, each start and end is tried against every neighbour
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		for(int k = 0; k < 400; k += 2) tree.insert(k, k);
+		for(int low = -3; low < 403; low++) {
+			for(int span : new int[] {0, 1, 2, 7, 15}) {
+				for(boolean descending : new boolean[] {false, true}) {
+					List<Long> want = new ArrayList<>();
+					for(int k = low + 1; k < low + span; k++) {
+						if(k >= 0 && k < 400 && k % 2 == 0) want.add((long) k);
+					}
+					if(descending) Collections.reverse(want);
+					List<Long> got = new ArrayList<>();
+					tree.cursor(low, false, low + span, false, descending).forEachRemaining((long a) -> got.add(a));
+					assertEquals(want, got, "(" + low + ", " + (low + span) + ")" + (descending ? " descending" : ""));
+				}
+			}
+		}
+		tree.close();
+	}
+
+	@Test
+	public void concurrentCursorDescendsAgainAfterSplitsAndMerges() throws Exception {
+		//a cursor on a concurrent tree holds a copy of its leaf and no latch, the leaves after it split and merge under it
+		//and it must find the next leaf from the root by the key it stopped at, skipping nothing that was there all along
+		for(boolean descending : new boolean[] {false, true}) {
+			BTree tree = new BTree(file("tree" + descending), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+			for(int k = 0; k < 2000; k += 10) tree.insert(k, k + 1L);
+			BTree.Cursor c = tree.cursor(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, descending);
+			List<Integer> seen = new ArrayList<>();
+			Random r = new Random(descending ? 2 : 1);
+			while(c.hasNext()) {
+				int at = c.peekKey();
+				seen.add(at);
+				c.nextLong();
+				if(at % 10 != 0) continue;	//only the keys there from the start change the tree, the odd ones it adds do not
+				int ahead = descending ? at - 101 : at + 101;	//well past the leaf the cursor holds
+				int step = descending ? -2 : 2;
+				if(seen.size() % 3 == 0) {
+					for(int i = 0; i < 20; i++) tree.insert(ahead + i*step, 1);	//splits the leaves ahead
+				} else if(seen.size() % 3 == 1) {
+					for(int i = 0; i < 20; i++) tree.remove(ahead + (i + r.nextInt(20))*step);	//and merges them
+				}
+			}
+			for(int i = 1; i < seen.size(); i++) assertTrue(descending ? seen.get(i) < seen.get(i-1) : seen.get(i) > seen.get(i-1), "cursor went from " + seen.get(i-1) + " to " + seen.get(i));
+			for(int k = 0; k < 2000; k += 10) assertTrue(seen.contains(k), "skipped " + k);
+			tree.verify();
+			tree.close();
+		}
+	}
+
+	@Test
+	public void freeSpaceIsRebuiltWhenItWasNotSaved() throws Exception {
+		//a tree that was not closed has no saved map, the nodes the root does not reach must come back as free
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		for(int k = 0; k < 3000; k++) tree.insert(k, k + 1L);
+		for(int k = 0; k < 3000; k += 3) tree.remove(k);
+		for(int k = 1000; k < 2000; k++) tree.remove(k);
+		int free = tree.getFreeNodes();
+		assertTrue(free > 0);
+		tree.close();
+		clearSavedSpace(name);
+
+		tree = new BTree(name, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE);
+		assertEquals(free, tree.getFreeNodes());
+		TreeStats stats = tree.analyze();
+		assertTrue(stats.isValid(), () -> stats.getProblems().toString());
+		assertEquals(0, stats.getOrphanedNodes());
+		//reused nodes must not clobber any in use
+		for(int k = 3000; k < 4000; k++) tree.insert(k, k + 1L);
+		for(int k = 0; k < 4000; k++) assertEquals(k % 3 != 0 && (k < 1000 || k >= 2000) || k >= 3000 ? k + 1L : 0, tree.search(k), "key " + k);
+		tree.verify();
+		tree.close();
+	}
+
+	@Test
+	public void savedFreeSpaceIsKeptAcrossClose() throws Exception {
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		for(int k = 0; k < 1000; k++) tree.insert(k, k + 1L);
+		for(int k = 0; k < 1000; k += 2) tree.remove(k);
+		int free = tree.getFreeNodes();
+		tree.close();
+		tree = new BTree(name, StorageMode.BUFFERED, BTree.DEFAULT_CACHE_SIZE);
+		assertEquals(free, tree.getFreeNodes());
+		tree.verify();
+		tree.close();
+	}
+
+	@Test
+	public void reopeningReadsTheSavedMap() throws Exception {
+		//a map saved for the file's length is taken as it is, so one claiming no node free shows the tree did not rebuild it
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		for(int k = 0; k < 1000; k++) tree.insert(k, k + 1L);
+		for(int k = 0; k < 1000; k += 2) tree.remove(k);
+		assertTrue(tree.getFreeNodes() > 0);
+		tree.close();
+		new FreeSpace(0, 1).save(new File(name + "Free"), new File(name).length());
+		tree = new BTree(name);
+		assertEquals(0, tree.getFreeNodes());
+		tree.close();
+		//one saved for another length is stale and the tree rebuilds its own
+		new FreeSpace(0, 1).save(new File(name + "Free"), new File(name).length() + 1);
+		tree = new BTree(name);
+		assertTrue(tree.getFreeNodes() > 0);
+		tree.verify();
+		tree.close();
+	}
+
+	@Test
+	public void compactShrinksTheFileAndKeepsEveryKey() throws Exception {
+		String name = file("tree");
+		BTree tree = new BTree(name, SMALL_BLOCK);
+		TreeMap<Integer, Long> model = new TreeMap<>();
+		Random r = new Random(4);
+		for(int i = 0; i < 8000; i++) {
+			int k = r.nextInt(100000);
+			if(model.putIfAbsent(k, k + 1L) == null) tree.insert(k, k + 1L);
+		}
+		for(int k : new ArrayList<>(model.keySet())) {
+			if(r.nextInt(4) != 0) {
+				model.remove(k);
+				tree.remove(k);
+			}
+		}
+		long before = tree.analyze().getNodes();
+		tree.compact();
+		TreeStats stats = tree.analyze();
+		assertTrue(stats.isValid(), () -> stats.getProblems().toString());
+		assertEquals(0, stats.getFreeNodes());
+		assertEquals(stats.getLeaves() + stats.getInternalNodes(), stats.getNodes(), "the file ends after the last node in use");
+		assertTrue(stats.getNodes() < before/2, stats.getNodes() + " nodes of " + before);
+		assertEquals(0, stats.getBackwardLinks(), "the leaves are in key order in the file");
+		tree.verify();
+		assertEquals(new LinkedList<>(model.values()), tree.inOrder());
+		for(int i = 0; i < 1000; i++) {
+			int k = r.nextInt(100000);
+			assertEquals(model.getOrDefault(k, 0L), tree.search(k));
+		}
+		//new nodes go after the compacted ones, and the file reopens as it was left
+		for(int k = 100000; k < 101000; k++) {
+			tree.insert(k, k + 1L);
+			model.put(k, k + 1L);
+		}
+		tree.close();
+		long length = new File(name).length();
+		tree = new BTree(name);
+		tree.verify();
+		assertEquals(new LinkedList<>(model.values()), tree.inOrder());
+		tree.compact();
+		tree.close();
+		assertTrue(new File(name).length() <= length);
+	}
+
+	static void clearSavedSpace(String name) throws IOException {
+		//puts the header back the way a tree left it while open, as if it had crashed, and drops the saved map
+		try(RandomAccessFile raf = new RandomAccessFile(name, "rw")) {
+			raf.seek(12);
+			raf.writeLong(0);
+		}
+		new File(name + "Free").delete();
+	}
+
+	@Test
+	public void snapshotSeesTheTreeAsItWas() throws Exception {
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+		for(int k = 0; k < 2000; k++) tree.insert(k, k + 1L);
+		LinkedList<Long> before = tree.inOrder();
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try(BTree.Snapshot snap = tree.snapshot()) {
+			Future<?> writer = pool.submit(() -> {
+				//every node changes, splits and merges while the snapshot is read
+				Random r = new Random(1);
+				while(!done.get()) {
+					int k = r.nextInt(4000);
+					if(k < 2000) tree.remove(k);
+					else tree.insert(k, -k);
+				}
+				return null;
+			});
+			for(int pass = 0; pass < 20; pass++) {
+				assertEquals(before, snap.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE));
+				for(int k = 0; k < 4000; k += 37) assertEquals(k < 2000 ? k + 1L : 0, snap.search(k));
+			}
+			done.set(true);
+			writer.get();
+		} finally {
+			pool.shutdown();
+		}
+		tree.verify();
+		tree.close();
+	}
+
+	@Test
+	public void snapshotOfATreeNotShared() throws Exception {
+		BTree tree = new BTree(file("tree"), SMALL_BLOCK);
+		for(int k = 0; k < 500; k++) tree.insert(k, k + 1L);
+		BTree.Snapshot snap = tree.snapshot();
+		for(int k = 0; k < 500; k += 2) tree.remove(k);
+		for(int k = 500; k < 700; k++) tree.insert(k, k + 1L);
+		LinkedList<Long> descending = snap.rangeSearch(100, true, 200, false, true);
+		assertEquals(100, descending.size());
+		assertEquals(200L, descending.getFirst());
+		assertEquals(101L, descending.getLast());
+		assertEquals(0, snap.search(600));
+		snap.close();
+		assertEquals(0, tree.search(100));
+		assertEquals(102L, tree.search(101));
+		tree.close();
+	}
+}
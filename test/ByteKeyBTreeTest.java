@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ByteKeyBTreeTest {
+	@TempDir
+	Path dir;
+
+	private String file(String name) {
+		return dir.resolve(name).toString();
+	}
+
+	private static byte[] indexKey(Random r, int length) {
+		//shaped like DBTable's field index keys: a field of length chars drawn from few letters, so neighbours share long prefixes, then a key
+		ByteBuffer k = ByteBuffer.allocate(2*length + 4);
+		int used = 1 + r.nextInt(length);
+		for(int j = 0; j < used; j++) k.putChar(2*j, (char) ('a' + r.nextInt(3)));
+		k.putInt(2*length, r.nextInt(64) ^ Integer.MIN_VALUE);
+		return k.array();
+	}
+
+	private static void check(ByteKeyBTree tree, TreeMap<byte[], Long> model) throws Exception {
+		LinkedList<Long> expected = new LinkedList<>(model.values());
+		assertEquals(expected, tree.rangeSearch(null, null));
+		ByteKeyBTree.Cursor c = tree.cursor();
+		for(Map.Entry<byte[], Long> e : model.entrySet()) {
+			assertArrayEquals(e.getKey(), c.peekKey());
+			assertEquals((long) e.getValue(), c.nextLong());
+		}
+		assertFalse(c.hasNext());
+	}
+
+	private void againstReferenceMap(int pageSize, long seed) throws Exception {
+		String name = file("t" + pageSize + "_" + seed);
+		ByteKeyBTree tree = new ByteKeyBTree(name, pageSize);
+		TreeMap<byte[], Long> model = new TreeMap<>(Arrays::compareUnsigned);
+		Random r = new Random(seed);
+		for(int i = 0; i < 30000; i++) {
+			byte key[] = indexKey(r, 6);
+			//removes lag inserts a little, so the tree grows and shrinks through every size of page
+			if(r.nextInt(100) < (i/3000 % 2 == 0 ? 40 : 60)) {
+				Long had = model.remove(key);
+				assertEquals(had == null ? 0 : had, tree.remove(key), "remove at op " + i);
+			} else {
+				long addr = 1 + r.nextInt(1 << 30);
+				boolean added = tree.insert(key, addr);
+				assertEquals(!model.containsKey(key), added, "insert at op " + i);
+				if(added) model.put(key, addr);
+			}
+			if(i % 1000 == 0) {
+				byte probe[] = indexKey(r, 6);
+				assertEquals(model.getOrDefault(probe, 0L), tree.search(probe));
+			}
+		}
+		check(tree, model);
+		tree.close();
+		tree = new ByteKeyBTree(name);
+		check(tree, model);
+		for(byte key[] : model.keySet().toArray(new byte[0][])) assertEquals((long) model.remove(key), tree.remove(key));
+		assertTrue(tree.isEmpty());
+		tree.close();
+	}
+
+	@Test
+	public void sharedPrefixKeysAgainstAReferenceMap() throws Exception {
+		//a remove can make a page's encoding longer, the key after the one removed shares less with its new neighbour
+		//and the entries after it move to other restart slots, so removes must split pages as inserts do
+		for(long seed = 0; seed < 6; seed++) {
+			againstReferenceMap(1024, seed);
+			againstReferenceMap(4096, seed);
+		}
+	}
+
+	@Test
+	public void smallPagesAgainstAReferenceMap() throws Exception {
+		//a handful of entries a page, so splits, merges and borrows reach the internal levels
+		for(long seed = 0; seed < 4; seed++) againstReferenceMap(256, seed);
+	}
+
+	@Test
+	public void longKeysKeepNumericOrder() throws Exception {
+		ByteKeyBTree tree = new ByteKeyBTree(file("t"), 256);
+		TreeMap<Long, Long> model = new TreeMap<>();
+		Random r = new Random(9);
+		for(int i = 0; i < 5000; i++) {
+			long k = r.nextLong() >> r.nextInt(60);
+			if(model.putIfAbsent(k, k ^ 1) == null) assertTrue(tree.insert(k, k ^ 1));
+		}
+		assertEquals(new LinkedList<>(model.subMap(-1000L, 1L << 40).values()), tree.rangeSearch(-1000L, (1L << 40) - 1));
+		for(Map.Entry<Long, Long> e : model.entrySet()) assertEquals((long) e.getValue(), tree.search(e.getKey()));
+		assertThrows(IllegalArgumentException.class, () -> tree.insert(new byte[tree.getMaxKeyLength() + 1], 1));
+		tree.close();
+	}
+}
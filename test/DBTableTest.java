@@ -0,0 +1,542 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DBTableTest {
+	private static final int FIELDS[] = {10, 6};
+	private static final int SMALL_BLOCK = 60;
+
+	@TempDir
+	Path dir;
+
+	private String file(String name) {
+		return dir.resolve(name).toString();
+	}
+
+	static char[][] fields(String... values) {
+		char f[][] = new char[values.length][];
+		for(int i = 0; i < values.length; i++) f[i] = values[i].toCharArray();
+		return f;
+	}
+
+	static List<String> row(int key, String... values) {
+		List<String> row = new ArrayList<>();
+		row.add(Integer.toString(key));
+		for(String v : values) {
+			if(!v.isEmpty()) row.add(v);
+		}
+		return row;
+	}
+
+	private static String word(Random r, int max) {
+		//from few letters, so many rows share a value and the index keys share long prefixes
+		char w[] = new char[1 + r.nextInt(max)];
+		for(int j = 0; j < w.length; j++) w[j] = (char) ('a' + r.nextInt(3));
+		return new String(w);
+	}
+
+	private static void checkIndexes(DBTable table, TreeMap<Integer, String[]> model) throws IOException {
+		//every row is found through both indexes, by its own value and by a range of values, and nothing else is
+		TreeMap<String, List<List<String>>> byField[] = new TreeMap[2];
+		for(int f = 0; f < 2; f++) {
+			byField[f] = new TreeMap<>();
+			for(Map.Entry<Integer, String[]> e : model.entrySet()) byField[f].computeIfAbsent(e.getValue()[f], v -> new ArrayList<>()).add(row(e.getKey(), e.getValue()));
+		}
+		for(int f = 0; f < 2; f++) {
+			for(Map.Entry<String, List<List<String>>> e : byField[f].entrySet()) assertEquals(e.getValue(), table.searchByField(f, e.getKey().toCharArray()), "field " + f + " = " + e.getKey());
+			List<List<String>> all = new ArrayList<>();
+			for(List<List<String>> rows : byField[f].values()) all.addAll(rows);
+			assertEquals(all, table.rangeSearchByField(f, new char[0], "cccccc".toCharArray()));
+		}
+	}
+
+	@Test
+	public void fieldIndexesFollowInsertsAndRemoves() throws Exception {
+		String name = file("t");
+		DBTable table = new DBTable(name, new int[] {6, 6}, SMALL_BLOCK);
+		table.createIndex(1);
+		TreeMap<Integer, String[]> model = new TreeMap<>();
+		Random r = new Random(21);
+		for(int i = 0; i < 20000; i++) {
+			int k = r.nextInt(3000);
+			if(i == 5000) table.createIndex(0);	//built from the rows there are, kept up from then on
+			if(r.nextInt(100) < (i/2000 % 2 == 0 ? 35 : 65)) {
+				assertEquals(model.remove(k) != null, table.remove(k), "remove " + k);
+			} else {
+				String values[] = {word(r, 6), word(r, 6)};
+				assertEquals(model.putIfAbsent(k, values) == null, table.insert(k, fields(values)), "insert " + k);
+			}
+		}
+		checkIndexes(table, model);
+		int batch[] = new int[200];
+		for(int i = 0; i < batch.length; i++) batch[i] = r.nextInt(3000);
+		boolean removed[] = table.removeAll(batch);
+		for(int i = 0; i < batch.length; i++) assertEquals(removed[i], model.remove(batch[i]) != null);
+		checkIndexes(table, model);
+		table.close();
+		table = new DBTable(name);
+		assertTrue(table.isIndexed(0) && table.isIndexed(1));
+		checkIndexes(table, model);
+		table.close();
+	}
+
+	private static class FailingIndex extends ByteKeyBTree {
+		//an index that hands every call to the real one, except the changes it is told to fail
+		private ByteKeyBTree real;
+		private boolean failInsert;
+		private boolean failRemove;
+
+		public FailingIndex(String filename, ByteKeyBTree r) throws IOException {
+			super(filename, DBTable.INDEX_BLOCK_SIZE);
+			real = r;
+		}
+
+		public boolean insert(byte key[], long addr) throws IOException {
+			if(failInsert) throw new IOException("insert failed");
+			return real.insert(key, addr);
+		}
+
+		public long remove(byte key[]) throws IOException {
+			if(failRemove) throw new IOException("remove failed");
+			return real.remove(key);
+		}
+
+		public Cursor cursor(byte low[], boolean lowInclusive, byte high[], boolean highInclusive) throws IOException {
+			return real.cursor(low, lowInclusive, high, highInclusive);
+		}
+
+		public void close() throws IOException {
+			super.close();
+			real.close();
+		}
+	}
+
+	private FailingIndex failLast(DBTable table) throws Exception {
+		//swaps the index of the last field for one that can be made to fail, the other indexes are then changed before it is
+		Field f = DBTable.class.getDeclaredField("indexes");
+		f.setAccessible(true);
+		ByteKeyBTree indexes[] = (ByteKeyBTree[]) f.get(table);
+		FailingIndex failing = new FailingIndex(file("failing"), indexes[indexes.length - 1]);
+		indexes[indexes.length - 1] = failing;
+		return failing;
+	}
+
+	@Test
+	public void aFailedIndexChangeLeavesTheTableAsItWas() throws Exception {
+		DBTable table = new DBTable(file("t"), new int[] {6, 6}, SMALL_BLOCK);
+		table.createIndex(0);
+		table.createIndex(1);
+		TreeMap<Integer, String[]> model = new TreeMap<>();
+		for(int k = 0; k < 300; k++) {
+			String values[] = {"a" + k % 7, "b" + k % 5};
+			table.insert(k, fields(values));
+			model.put(k, values);
+		}
+		FailingIndex failing = failLast(table);
+		int free = table.getFreeRows();
+
+		failing.failRemove = true;
+		assertThrows(IOException.class, () -> table.remove(10));
+		assertThrows(IOException.class, () -> table.removeAll(new int[] {20, 30, 40}));
+		failing.failRemove = false;
+		assertEquals(free, table.getFreeRows());
+		assertEquals(List.of("a3", "b0"), table.search(10));
+		checkIndexes(table, model);
+
+		failing.failInsert = true;
+		assertThrows(IOException.class, () -> table.insert(1000, fields("a0", "b0")));
+		assertThrows(IOException.class, () -> table.insertAll(new int[] {1001, 1002}, new char[][][] {fields("a1", "b1"), fields("a2", "b2")}));
+		failing.failInsert = false;
+		assertEquals(free + 2, table.getFreeRows());	//the rows written for them are free again, the batch reused the one the single insert left
+		assertTrue(table.search(1000).isEmpty());
+		assertTrue(table.search(1002).isEmpty());
+		checkIndexes(table, model);
+
+		assertTrue(table.remove(10));
+		model.remove(10);
+		assertTrue(table.insert(1000, fields("a0", "b0")));
+		model.put(1000, new String[] {"a0", "b0"});
+		checkIndexes(table, model);
+		table.close();
+	}
+
+	@Test
+	public void metricsCountTableOperationsAndShowInJmx() throws Exception {
+		DBTable table = new DBTable(file("table"), FIELDS, SMALL_BLOCK);
+		Metrics m = table.enableMetrics("tableCountTest");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("BTree:type=DBTable,name=" + ObjectName.quote("tableCountTest"));
+		ObjectName index = new ObjectName("BTree:type=BTree,name=" + ObjectName.quote("tableCountTest"));
+		try {
+			assertTrue(server.isRegistered(name));
+			assertTrue(server.isRegistered(index));
+			for(int k = 0; k < 20; k++) table.insert(k, fields("row" + k, "x"));
+			int batch[] = new int[20];
+			char rows[][][] = new char[20][][];
+			for(int i = 0; i < 20; i++) {
+				batch[i] = 20 + i;
+				rows[i] = fields("row" + batch[i], "y");
+			}
+			table.insertAll(batch, rows);
+			table.searchAll(batch);
+			table.removeAll(new int[] {0, 1});
+			table.search(5);
+			table.rangeSearch(2, 9);
+			assertEquals(20L, m.getInserts());
+			assertEquals(1L, m.getInsertBatches());
+			assertEquals(1L, m.getSearchBatches());
+			assertEquals(1L, m.getRemoveBatches());
+			assertEquals(1L, m.getSearches());
+			assertEquals(1L, m.getRangeSearches());
+			assertEquals(1L, table.getIndexMetrics().getInsertBatches());	//the table's batch is one of the index's
+			assertEquals(20L, server.getAttribute(name, "Inserts"));
+			//a stream reads one row at a time, a scan one chunk and then finds the end
+			long before = m.getCursorReads();
+			assertEquals(38L, table.stream().count());
+			assertEquals(38L, m.getCursorReads() - before);
+			before = m.getCursorReads();
+			assertEquals(38L, table.scanRows().count());
+			assertEquals(2L, m.getCursorReads() - before);
+			assertEquals(m.getCursorReads(), server.getAttribute(name, "CursorReads"));
+		} finally {
+			table.close();
+		}
+		assertFalse(server.isRegistered(name), "close leaves the table's bean registered");
+		assertFalse(server.isRegistered(index), "close leaves the index's bean registered");
+	}
+
+	@Test
+	public void replayKeepsWholeRecordsAndDropsATornTail() throws Exception {
+		//the table is copied while open, which is what a crash leaves: files as of the last checkpoint and the log since
+		String name = file("t");
+		DBTable table = new DBTable(name, FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, false, Durability.SYNC);
+		for(int k = 0; k < 300; k++) table.insert(k, fields("v" + k, "w" + k));
+		for(int k = 0; k < 300; k += 5) table.remove(k);
+		table.insert(1000, fields("last", "one"));
+		String crashed = file("crashed");
+		copy(name, crashed, "", "BTree", "Wal");
+		table.close();
+
+		long records[] = records(crashed + "Wal");
+		try(RandomAccessFile log = new RandomAccessFile(crashed + "Wal", "rw")) {
+			long last = records[records.length - 1];
+			log.setLength(last + (log.length() - last)/2);	//the record of the last insert was cut short
+		}
+		DBTable reopened = new DBTable(crashed);
+		assertEquals(0, Files.size(Paths.get(crashed + "Wal")));
+		assertTrue(reopened.search(1000).isEmpty());
+		for(int k = 0; k < 300; k++) {
+			List<String> expected = k % 5 == 0 ? List.of() : List.of("v" + k, "w" + k);
+			assertEquals(expected, reopened.search(k), "key " + k);
+		}
+		//the free rows were rebuilt from the index, so new rows go into them rather than over rows in use
+		int free = reopened.getFreeRows();
+		assertEquals(60, free);
+		for(int k = 2000; k < 2000 + free; k++) reopened.insert(k, fields("x", "y"));
+		assertEquals(0, reopened.getFreeRows());
+		assertEquals(List.of("v1", "w1"), reopened.search(1));
+		reopened.close();
+	}
+
+	@Test
+	public void replayStopsAtARecordFailingItsChecksum() throws Exception {
+		String name = file("t");
+		DBTable table = new DBTable(name, FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, false, Durability.DEFERRED);
+		for(int k = 0; k < 10; k++) table.insert(k, fields("v" + k));
+		table.sync();
+		String crashed = file("crashed");
+		copy(name, crashed, "", "BTree", "Wal");
+		table.close();
+
+		long records[] = records(crashed + "Wal");
+		try(RandomAccessFile log = new RandomAccessFile(crashed + "Wal", "rw")) {
+			long at = records[7] + 8;	//first payload byte of the eighth insert
+			log.seek(at);
+			int b = log.read();
+			log.seek(at);
+			log.write(b ^ 0xFF);
+		}
+		DBTable reopened = new DBTable(crashed);
+		for(int k = 0; k < 10; k++) assertEquals(k < 7 ? List.of("v" + k) : List.of(), reopened.search(k), "key " + k);
+		reopened.close();
+	}
+
+	private static void copy(String from, String to, String... suffixes) throws IOException {
+		for(String s : suffixes) Files.copy(Paths.get(from + s), Paths.get(to + s));
+	}
+
+	private static long[] records(String log) throws IOException {
+		//start of every record in a log, each is its payload length, a checksum and the payload
+		long starts[] = new long[0];
+		try(RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+			for(long pos = 0; pos < raf.length(); ) {
+				starts = Arrays.copyOf(starts, starts.length + 1);
+				starts[starts.length - 1] = pos;
+				raf.seek(pos);
+				pos += 8 + raf.readInt();
+			}
+		}
+		return starts;
+	}
+
+	@Test
+	public void replaySkipsAnIndexWhoseFileIsGone() throws Exception {
+		//the log holds the index's pages, but the rename that made its file was lost in the crash, so the table opens without it
+		String name = file("t");
+		DBTable table = new DBTable(name, FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, false, Durability.SYNC);
+		for(int k = 0; k < 50; k++) table.insert(k, fields("v" + k % 5, "w"));
+		table.createIndex(0);
+		for(int k = 50; k < 100; k++) table.insert(k, fields("v" + k % 5, "w"));
+		table.remove(3);
+		String crashed = file("crashed");
+		copy(name, crashed, "", "BTree", "Wal");
+		table.close();
+
+		DBTable reopened = new DBTable(crashed);
+		assertFalse(reopened.isIndexed(0));
+		for(int k = 0; k < 100; k++) assertEquals(k == 3 ? List.of() : List.of("v" + k % 5, "w"), reopened.search(k), "key " + k);
+		reopened.createIndex(0);
+		assertEquals(19, reopened.searchByField(0, "v3".toCharArray()).size());
+		reopened.close();
+	}
+
+	private static void append(String log, int file, long addr, byte bytes[]) throws IOException {
+		//a whole record with a good checksum holding one entry
+		ByteBuffer payload = ByteBuffer.allocate(13 + bytes.length);
+		payload.put((byte) file).putLong(addr).putInt(bytes.length).put(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		try(RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+			raf.seek(raf.length());
+			raf.writeInt(payload.capacity());
+			raf.writeInt((int) crc.getValue());
+			raf.write(payload.array());
+		}
+	}
+
+	@Test
+	public void recoverRefusesFileNumbersOutsideTheTable() throws Exception {
+		for(int file : new int[] {3, 0x90, 0xFF}) {	//0x90 is negative as a signed byte
+			String log = file("log" + file);
+			String data = file("data" + file);
+			append(log, 0, 0, new byte[] {1, 2});
+			append(log, 1, 4, new byte[] {3});	//a number not in use, passed over
+			append(log, file, 0, new byte[] {4});
+			try(RandomAccessFile l = new RandomAccessFile(log, "rw"); RandomAccessFile d = new RandomAccessFile(data, "rw")) {
+				FileChannel files[] = {d.getChannel(), null, null};
+				IOException e = assertThrows(IOException.class, () -> Wal.recover(l.getChannel(), files));
+				assertTrue(e.getMessage().contains("file " + file), e.getMessage());
+				assertTrue(l.length() > 0, "the log is kept for a look");
+			}
+		}
+		String log = file("log");
+		String data = file("data");
+		append(log, 0, 0, new byte[] {1, 2});
+		append(log, 1, 4, new byte[] {3});
+		append(log, 0, 1, new byte[] {5});
+		try(RandomAccessFile l = new RandomAccessFile(log, "rw"); RandomAccessFile d = new RandomAccessFile(data, "rw")) {
+			Wal.recover(l.getChannel(), new FileChannel[] {d.getChannel(), null});
+			assertEquals(0, l.length());
+			assertEquals(2, d.length());
+			assertEquals(1, d.read());
+			assertEquals(5, d.read());
+		}
+	}
+
+	@Test
+	public void vacuumKeepsEveryRowAndIndexLookup() throws Exception {
+		for(Durability d : new Durability[] {Durability.NONE, Durability.SYNC}) {
+			//a logged table moves rows and nodes through the log, a plain one in place
+			String name = file("t" + d);
+			DBTable table = new DBTable(name, FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, false, d);
+			table.createIndex(0);
+			TreeMap<Integer, String[]> model = new TreeMap<>();
+			Random r = new Random(12);
+			for(int i = 0; i < 3000; i++) {
+				int k = r.nextInt(6000);
+				String values[] = {"v" + k % 13, "w" + i % 100};
+				if(model.putIfAbsent(k, values) == null) table.insert(k, fields(values));
+			}
+			for(int k : new ArrayList<>(model.keySet())) {
+				if(r.nextInt(3) != 0) {
+					model.remove(k);
+					table.remove(k);
+				}
+			}
+			table.close();
+			long rows = Files.size(Paths.get(name));
+			long tree = Files.size(Paths.get(name + "BTree"));
+
+			table = new DBTable(name);
+			assertTrue(table.getFreeRows() > 0);
+			table.vacuum();
+			assertEquals(0, table.getFreeRows());
+			checkRows(table, model);
+			table.close();
+			assertTrue(Files.size(Paths.get(name)) < rows/2, "rows file " + Files.size(Paths.get(name)) + " of " + rows);
+			assertTrue(Files.size(Paths.get(name + "BTree")) < tree, "index file " + Files.size(Paths.get(name + "BTree")) + " of " + tree);
+
+			table = new DBTable(name);
+			checkRows(table, model);
+			table.insert(10000, fields("v0", "new"));	//rows now go after the ones vacuum packed
+			model.put(10000, new String[] {"v0", "new"});
+			checkRows(table, model);
+			table.close();
+		}
+	}
+
+	private static void checkRows(DBTable table, TreeMap<Integer, String[]> model) throws IOException {
+		//every row by key, in a full range and through the index of field 0
+		List<List<String>> all = new ArrayList<>();
+		TreeMap<String, List<List<String>>> byValue = new TreeMap<>();
+		for(Map.Entry<Integer, String[]> e : model.entrySet()) {
+			List<String> row = row(e.getKey(), e.getValue());
+			assertEquals(row.subList(1, row.size()), table.search(e.getKey()), "key " + e.getKey());
+			all.add(row);
+			byValue.computeIfAbsent(e.getValue()[0], v -> new ArrayList<>()).add(row);
+		}
+		assertEquals(all, table.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE));
+		for(Map.Entry<String, List<List<String>>> e : byValue.entrySet()) assertEquals(e.getValue(), table.searchByField(0, e.getKey().toCharArray()), "value " + e.getKey());
+	}
+
+	@Test
+	public void byteEncodingsRoundTripAndReopen() throws Exception {
+		for(FieldEncoding e : FieldEncoding.values()) {
+			String name = file("t" + e);
+			DBTable table = new DBTable(name, new int[] {8, 4}, SMALL_BLOCK, e);
+			assertEquals(e, table.getEncoding());
+			table.insert(1, fields("café", "ab"));
+			table.insert(2, fields("12345678", "wxyz"));
+			table.insert(3, fields("", "q"));
+			table.close();
+
+			table = new DBTable(name);
+			assertEquals(e, table.getEncoding());
+			assertEquals(List.of("café", "ab"), table.search(1));
+			assertEquals(List.of("12345678", "wxyz"), table.search(2));
+			assertEquals(List.of("q"), table.search(3));
+			LinkedList<CharSequence> columns = table.search(2, 1, 0);
+			assertEquals("wxyz", columns.get(0).toString());
+			assertEquals("12345678", columns.get(1).toString());
+			List<List<String>> scanned = table.scanRows().collect(Collectors.toList());
+			scanned.sort((a, b) -> a.get(0).compareTo(b.get(0)));
+			assertEquals(List.of(row(1, "café", "ab"), row(2, "12345678", "wxyz"), row(3, "q")), scanned);
+			table.close();
+		}
+	}
+
+	@Test
+	public void fieldsThatDoNotFitAreRefusedBeforeAnythingIsWritten() throws Exception {
+		DBTable latin = new DBTable(file("latin"), new int[] {4}, SMALL_BLOCK, FieldEncoding.LATIN1);
+		assertThrows(IllegalArgumentException.class, () -> latin.insert(1, fields("€")));
+		assertThrows(IllegalArgumentException.class, () -> latin.insert(1, fields("abcde")));
+		assertTrue(latin.search(1).isEmpty());
+		assertTrue(latin.insert(1, fields("ÿÿÿÿ")));
+		assertEquals(List.of("ÿÿÿÿ"), latin.search(1));
+		latin.close();
+
+		DBTable utf8 = new DBTable(file("utf8"), new int[] {4}, SMALL_BLOCK, FieldEncoding.UTF8);
+		assertThrows(IllegalArgumentException.class, () -> utf8.insert(1, fields("ééé")));	//six bytes
+		assertTrue(utf8.insert(1, fields("éé")));
+		assertTrue(utf8.insert(2, fields("€a")));
+		assertEquals(List.of("éé"), utf8.search(1));
+		assertEquals(List.of("€a"), utf8.search(2));
+		assertEquals(0, utf8.getFreeRows());
+		utf8.close();
+	}
+
+	private DBTable filled(int n) throws IOException {
+		//a table several levels deep, with keys 0, 2, 4 and on inserted in random order
+		DBTable table = new DBTable(file("t"), FIELDS, SMALL_BLOCK, StorageMode.BUFFERED, 1 << 16, true);
+		List<Integer> keys = new ArrayList<>();
+		for(int k = 0; k < n; k++) keys.add(2*k);
+		Collections.shuffle(keys, new Random(5));
+		for(int k : keys) table.insert(k, fields("f" + k, "g"));
+		return table;
+	}
+
+	private static void split(Spliterator<LinkedList<String>> s, List<Spliterator<LinkedList<String>>> parts) {
+		//splits s as far as it goes, adding the parts in the order of their rows
+		Spliterator<LinkedList<String>> prefix = s.trySplit();
+		if(prefix == null) {
+			parts.add(s);
+			return;
+		}
+		split(prefix, parts);
+		split(s, parts);
+	}
+
+	@Test
+	public void spliteratorPartsCoverTheRangeInOrder() throws Exception {
+		DBTable table = filled(3000);
+		for(boolean descending : new boolean[] {false, true}) {
+			LinkedList<LinkedList<String>> expected = table.rangeSearch(101, true, 5001, false, descending);
+			List<Spliterator<LinkedList<String>>> parts = new ArrayList<>();
+			split(table.spliterator(101, true, 5001, false, descending), parts);
+			assertTrue(parts.size() > 4, "only " + parts.size() + " parts");
+			List<LinkedList<String>> rows = new ArrayList<>();
+			for(Spliterator<LinkedList<String>> p : parts) {
+				assertEquals(Spliterator.ORDERED | Spliterator.NONNULL, p.characteristics());
+				p.forEachRemaining(rows::add);
+			}
+			assertEquals(expected, rows);
+		}
+		table.close();
+	}
+
+	@Test
+	public void spliteratorStopsSplittingOnceStarted() throws Exception {
+		DBTable table = filled(500);
+		Spliterator<LinkedList<String>> s = table.spliterator(0, true, 1000, true, false);
+		List<LinkedList<String>> first = new ArrayList<>();
+		assertTrue(s.tryAdvance(first::add));
+		assertEquals(null, s.trySplit());
+		assertEquals(row(0, "f0", "g"), first.get(0));
+		assertEquals(null, table.spliterator(6, false, 7, true, false).trySplit());
+		assertEquals(0, table.spliterator(5, false, 5, true, false).estimateSize());
+		table.close();
+	}
+
+	@Test
+	public void parallelRangeMatchesRangeSearch() throws Exception {
+		DBTable table = filled(4000);
+		assertEquals(table.rangeSearch(-5, true, 9000, true, false), table.rangeSearchParallel(-5, true, 9000, true, false));
+		assertEquals(table.rangeSearch(10, false, 7000, false, true), table.rangeSearchParallel(10, false, 7000, false, true));
+		assertTrue(table.rangeSearchParallel(3, true, 3, true, false).isEmpty());
+		long count = table.parallelStream(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, false).unordered().count();
+		assertEquals(4000, count);
+		LinkedList<String> row = table.parallelStream(0, true, 8000, true, false).filter(r -> r.get(0).equals("4242")).findAny().orElse(null);
+		assertNotNull(row);
+		assertEquals(row(4242, "f4242", "g"), row);
+		table.close();
+	}
+}
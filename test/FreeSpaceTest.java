@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FreeSpaceTest {
+	private static final int PAGE = 16;
+	private static final long FIRST = 8;
+
+	@TempDir
+	Path dir;
+
+	private static class Pages implements PageStore {
+		//pages in memory, enough of a store for relocate
+		private HashMap<Long, ByteBuffer> pages = new HashMap<>();
+		private int pinned;
+
+		public ByteBuffer pin(long addr) {
+			pinned++;
+			return pages.computeIfAbsent(addr, a -> ByteBuffer.allocate(PAGE));
+		}
+
+		public void unpin(long addr, boolean dirty) {
+			pinned--;
+		}
+
+		public long length() {
+			return FIRST + (long) pages.size()*PAGE;
+		}
+
+		public void truncate(long length) {
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+
+	private static Pages numbered(int n) throws IOException {
+		//page i holds i in its first four bytes
+		Pages store = new Pages();
+		for(int i = 0; i < n; i++) store.pin(FIRST + (long) i*PAGE).putInt(0, i);
+		store.pinned = 0;
+		return store;
+	}
+
+	private static void move(int to[]) throws IOException {
+		Pages store = numbered(to.length);
+		int fixed[] = new int[1];
+		FreeSpace.relocate(store, FIRST, PAGE, to, page -> {
+			fixed[0]++;
+			page.putInt(4, 1 + page.getInt(4));	//counts how often each page was fixed
+		});
+		assertEquals(0, store.pinned, "every pin released");
+		int moves = 0;
+		for(int i = 0; i < to.length; i++) {
+			if(to[i] < 0) continue;
+			moves++;
+			ByteBuffer page = store.pin(FIRST + (long) to[i]*PAGE);
+			assertEquals(i, page.getInt(0), "page " + i + " should be at " + to[i]);
+			assertEquals(1, page.getInt(4), "page " + i + " fixed once");
+		}
+		assertEquals(moves, fixed[0]);
+	}
+
+	@Test
+	public void relocateFollowsCyclesAndChains() throws Exception {
+		move(new int[] {1, 2, 0});	//one cycle through three pages
+		move(new int[] {1, 0, 3, 2});	//two swaps
+		move(new int[] {0, 1, 2});	//every page stays
+		move(new int[] {4, 0, 1, 2, 3});	//a cycle through all of them, against the direction of the loop
+		move(new int[] {-1, 0, 1, -1, 3});	//chains into the free pages, as compaction makes them
+		move(new int[] {2, -1, 5, 0, -1, 3, 1});	//a cycle, a chain into a free page and a page left behind
+		Random r = new Random(6);
+		for(int round = 0; round < 200; round++) {
+			//any permutation of the pages in use onto a set of places, as moves of the rows in a vacuum
+			int n = 1 + r.nextInt(40);
+			List<Integer> places = new ArrayList<>();
+			for(int i = 0; i < n; i++) places.add(i);
+			Collections.shuffle(places, r);
+			int to[] = new int[n];
+			int used = 0;
+			for(int i = 0; i < n; i++) to[i] = r.nextInt(3) == 0 ? -1 : places.get(used++);
+			move(to);
+		}
+	}
+
+	@Test
+	public void savedMapLoadsOnlyForItsLength() throws Exception {
+		File file = dir.resolve("free").toFile();
+		FreeSpace space = new FreeSpace(FIRST, PAGE, FIRST + 100L*PAGE);
+		for(int i = 0; i < 100; i++) {
+			if(i % 7 != 0 && i != 42 && i != 43) space.reserve(FIRST + (long) i*PAGE);
+		}
+		space.save(file, FIRST + 100L*PAGE);
+		FreeSpace loaded = FreeSpace.load(file, FIRST, PAGE, FIRST + 100L*PAGE);
+		assertNotNull(loaded);
+		assertEquals(space.count(), loaded.count());
+		for(int i = 0; i < 100; i++) assertEquals(space.isFree(FIRST + (long) i*PAGE), loaded.isFree(FIRST + (long) i*PAGE), "page " + i);
+		assertEquals(FIRST, loaded.allocate(FIRST + 100L*PAGE));
+		assertNull(FreeSpace.load(file, FIRST, PAGE, FIRST + 101L*PAGE), "saved for a file of another length");
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(14);
+			raf.write(raf.read() ^ 1);
+		}
+		assertNull(FreeSpace.load(file, FIRST, PAGE, FIRST + 100L*PAGE), "fails its checksum");
+		assertNull(FreeSpace.load(dir.resolve("none").toFile(), FIRST, PAGE, FIRST + 100L*PAGE));
+	}
+}
@@ -0,0 +1,28 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class LatchTableTest {
+	@Test
+	public void awaitIdleReturnsOnceTheLastLatchIsReleased() throws Exception {
+		LatchTable latches = new LatchTable();
+		latches.awaitIdle();	//nothing latched, nothing to wait for
+		latches.acquire(1, true);
+		latches.acquire(2, false);
+		CountDownLatch idle = new CountDownLatch(1);
+		Thread waiter = new Thread(() -> {
+			latches.awaitIdle();
+			idle.countDown();
+		});
+		waiter.start();
+		latches.release(1, true);
+		assertFalse(idle.await(100, TimeUnit.MILLISECONDS), "returned while page 2 was latched");
+		latches.release(2, false);
+		assertTrue(idle.await(10, TimeUnit.SECONDS));
+		waiter.join();
+	}
+}
@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardedDBTableTest {
+	private static final int FIELDS[] = {8};
+	private static final int SMALL_BLOCK = 120;
+
+	@TempDir
+	Path dir;
+
+	private String file(String name) {
+		return dir.resolve(name).toString();
+	}
+
+	private static List<List<String>> rows(TreeMap<Integer, String> model, int low, int high, boolean descending) {
+		List<List<String>> rows = new ArrayList<>();
+		for(var e : model.subMap(low, true, high, true).entrySet()) rows.add(List.of(e.getKey().toString(), e.getValue()));
+		if(descending) Collections.reverse(rows);
+		return rows;
+	}
+
+	@Test
+	public void shardsSplitAsTheyGrowAndKeepEveryRow() throws Exception {
+		String name = file("s");
+		ShardedDBTable table = new ShardedDBTable(name, FIELDS, SMALL_BLOCK, 2);
+		table.setMaxShardRows(200);
+		TreeMap<Integer, String> model = new TreeMap<>();
+		Random r = new Random(11);
+		for(int i = 0; i < 3000; i++) {
+			int k = r.nextInt(1 << 20) - (1 << 19);
+			String v = "v" + (k & 0xFFFF);
+			assertEquals(!model.containsKey(k), table.insert(k, DBTableTest.fields(v)));
+			model.putIfAbsent(k, v);
+		}
+		assertTrue(table.getShardCount() >= model.size()/200, table.getShardCount() + " shards");
+		for(int k : model.keySet()) assertEquals(List.of(model.get(k)), table.search(k), "key " + k);
+		assertEquals(rows(model, -1 << 19, 1 << 19, false), table.rangeSearch(-1 << 19, 1 << 19));
+		assertEquals(rows(model, -1000, 200000, true), table.rangeSearch(-1000, true, 200000, true, true));
+		int shards = table.getShardCount();
+		table.close();
+
+		table = new ShardedDBTable(name);
+		assertEquals(shards, table.getShardCount());
+		assertEquals(rows(model, Integer.MIN_VALUE, Integer.MAX_VALUE, false), table.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE));
+		table.close();
+	}
+
+	@Test
+	public void splitAtAKeyMovesTheUpperHalf() throws Exception {
+		ShardedDBTable table = new ShardedDBTable(file("s"), FIELDS, SMALL_BLOCK, 1);
+		assertFalse(table.split(0));	//nothing to split
+		int keys[] = new int[1000];
+		char values[][][] = new char[keys.length][][];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = i;
+			values[i] = DBTableTest.fields("r" + i);
+		}
+		table.insertAll(keys, values);
+		assertTrue(table.split(10));
+		assertTrue(table.split(900));
+		assertEquals(3, table.getShardCount());
+		LinkedList<LinkedList<String>> all = table.searchAll(keys);
+		for(int i = 0; i < keys.length; i++) assertEquals(List.of("r" + i), all.get(i));
+		boolean removed[] = table.removeAll(new int[] {0, 499, 500, 999, 5000});
+		assertEquals(List.of(true, true, true, true, false), List.of(removed[0], removed[1], removed[2], removed[3], removed[4]));
+		assertEquals(996, table.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+		table.close();
+	}
+
+	@Test
+	public void writersCarryOnWhileShardsSplit() throws Exception {
+		ShardedDBTable table = new ShardedDBTable(file("s"), FIELDS, SMALL_BLOCK, 1, Partitioning.RANGE, StorageMode.BUFFERED, 1 << 20, true, Durability.NONE);
+		table.setMaxShardRows(300);
+		int threads = 4;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> writers = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				int id = t;
+				writers.add(pool.submit(() -> {
+					for(int k = id; k < 4000; k += threads) assertTrue(table.insert(k, DBTableTest.fields("v" + k)));
+					return null;
+				}));
+			}
+			for(Future<?> w : writers) w.get();
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(table.getShardCount() > 4);
+		LinkedList<LinkedList<String>> all = table.rangeSearch(0, 3999);
+		assertEquals(4000, all.size());
+		for(int k = 0; k < 4000; k++) assertEquals(List.of(Integer.toString(k), "v" + k), all.get(k));
+		table.close();
+	}
+
+	@Test
+	public void hashShardsSpreadKeys() throws Exception {
+		ShardedDBTable table = new ShardedDBTable(file("s"), FIELDS, SMALL_BLOCK, 4, Partitioning.HASH);
+		TreeMap<Integer, String> model = new TreeMap<>();
+		for(int k = -500; k < 500; k++) {
+			table.insert(k, DBTableTest.fields("h" + k));
+			model.put(k, "h" + k);
+		}
+		assertEquals(rows(model, -100, 100, true), table.rangeSearch(-100, true, 100, true, true));
+		for(int i = 0; i < 4; i++) assertTrue(new File(file("sShard" + i)).length() > 0);
+		table.close();
+	}
+
+	@Test
+	public void columnsOfHashShardsMergeInKeyOrder() throws Exception {
+		//every shard holds keys from all over the range, so the runs interleave and the merge orders them by key alone
+		ShardedDBTable table = new ShardedDBTable(file("s"), new int[] {4, 4}, SMALL_BLOCK, 3, Partitioning.HASH);
+		List<List<String>> expected = new ArrayList<>();
+		for(int k = -300; k < 300; k += 3) {
+			table.insert(k, DBTableTest.fields("a" + (k & 7), "b" + (k & 7)));
+			if(k >= -50 && k <= 200) expected.add(List.of(Integer.toString(k), "b" + (k & 7)));
+		}
+		List<List<String>> found = new ArrayList<>();
+		for(LinkedList<CharSequence> row : table.rangeSearch(-50, 200, 1)) {
+			List<String> r = new ArrayList<>();
+			for(CharSequence c : row) r.add(c.toString());
+			found.add(r);
+		}
+		assertEquals(expected, found);
+		table.close();
+	}
+
+	@Test
+	public void anotherTableOfTheNameDeletesOnlyItsShards() throws Exception {
+		//"tShard1" and "tShard2old" start like the files of shards of "t" without being any
+		DBTable old = new DBTable(file("tShard2old"), FIELDS, SMALL_BLOCK);
+		old.insert(1, DBTableTest.fields("old"));
+		old.close();
+		ShardedDBTable named = new ShardedDBTable(file("tShard1"), FIELDS, SMALL_BLOCK, 2);
+		named.insert(2, DBTableTest.fields("named"));
+		named.close();
+
+		ShardedDBTable table = new ShardedDBTable(file("t"), FIELDS, SMALL_BLOCK, 2);
+		for(int k = 0; k < 100; k++) table.insert(k, DBTableTest.fields("v" + k));
+		assertTrue(table.split(0));
+		assertEquals(3, table.getShardCount());
+		table.close();
+		assertTrue(new File(file("tShard2")).exists());
+
+		table = new ShardedDBTable(file("t"), FIELDS, SMALL_BLOCK, 1);
+		assertFalse(new File(file("tShard1")).exists(), "shard 1 of the earlier table was kept");
+		assertFalse(new File(file("tShard2BTree")).exists(), "the shard the earlier table split off was kept");
+		assertEquals(List.of(), table.search(50));
+		table.close();
+
+		old = new DBTable(file("tShard2old"));
+		assertEquals(List.of("old"), old.search(1));
+		old.close();
+		named = new ShardedDBTable(file("tShard1"));
+		assertEquals(List.of("named"), named.search(2));
+		named.close();
+	}
+}
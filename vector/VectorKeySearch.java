@@ -0,0 +1,66 @@
+import java.nio.ByteBuffer;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorKeySearch implements KeySearch {
+	//compares a whole vector of keys with the key at once and counts the lanes that pass, built only by the vector profile
+	//binary search first narrows the keys down to one vector's worth, so wide nodes cost a few halvings and one compare
+	//instead of a halving per key, and the last steps, whose branches the CPU guesses worst, have no branches at all
+	//nodes holding fewer keys than a vector has lanes are scanned one key at a time
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+
+	public int upper(int keys[], int count, int key) {
+		if(count < LANES) {
+			int i = 0;
+			while(i < count && keys[i] <= key) i++;
+			return i;
+		}
+		int lo = 0;
+		int hi = count;
+		while(hi - lo > LANES) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid] <= key) lo = mid + 1;
+			else hi = mid;
+		}
+		//the vector ends at or before count, keys it holds before lo are <= key and those from hi on are > key
+		int from = Math.min(lo, count - LANES);
+		return from + IntVector.fromArray(SPECIES, keys, from).compare(VectorOperators.LE, key).trueCount();
+	}
+
+	public int lower(int keys[], int count, int key) {
+		if(count < LANES) {
+			int i = 0;
+			while(i < count && keys[i] < key) i++;
+			return i;
+		}
+		int lo = 0;
+		int hi = count;
+		while(hi - lo > LANES) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		int from = Math.min(lo, count - LANES);
+		return from + IntVector.fromArray(SPECIES, keys, from).compare(VectorOperators.LT, key).trueCount();
+	}
+
+	public int upper(ByteBuffer page, int offset, int count, int key) {
+		if(count < LANES) {
+			int i = 0;
+			while(i < count && page.getInt(offset + 4*i) <= key) i++;
+			return i;
+		}
+		int lo = 0;
+		int hi = count;
+		while(hi - lo > LANES) {
+			int mid = (lo + hi) >>> 1;
+			if(page.getInt(offset + 4*mid) <= key) lo = mid + 1;
+			else hi = mid;
+		}
+		int from = Math.min(lo, count - LANES);
+		return from + IntVector.fromByteBuffer(SPECIES, page, offset + 4*from, page.order()).compare(VectorOperators.LE, key).trueCount();
+	}
+}